@@ -1,5 +1,6 @@
 package net.sf.jrtps;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -154,6 +155,61 @@ public class Configuration {
         return getIntProperty("jrtps.buffer-size", 16384);
     }
 
+    /**
+     * Gets the maximum number of free receive buffers kept for reuse. Each
+     * buffer is of size buffer-size.
+     * 
+     * @return receive buffer pool size
+     * @see #getBufferSize()
+     */
+    public int getReceiveBufferPoolSize() {
+        return getIntProperty("jrtps.receive-buffer-pool.size", 64);
+    }
+
+    /**
+     * Gets the size of a fragment used, when a sample does not fit into
+     * a single message. Such samples are sent with DataFrag submessages,
+     * each carrying as many fragments as fits into buffer-size.
+     * 
+     * @return fragment size in bytes, default 1024
+     * @see #getBufferSize()
+     */
+    public int getFragmentSize() {
+        return getIntProperty("jrtps.fragment-size", 1024);
+    }
+
+    /**
+     * Gets the size of the reorder window of reliable readers. Samples received out of order
+     * are held in this window, until missing samples have been received. Samples beyond
+     * this window are dropped, and requested again later.
+     * 
+     * @return size of the reorder window in samples
+     */
+    public int getReorderWindowSize() {
+        return getIntProperty("jrtps.reader.reorder-window", 256);
+    }
+
+    /**
+     * Gets the maximum size of a sample, that readers reassemble from fragments. 
+     * DataFrags announcing a bigger sample are dropped.
+     * 
+     * @return maximum sample size in bytes, default 16777216
+     */
+    public int getMaxFragmentedSampleSize() {
+        return getIntProperty("jrtps.reader.max-fragmented-sample-size", 16777216);
+    }
+
+    /**
+     * Gets the maximum number of samples, that readers reassemble from fragments
+     * concurrently for each remote writer. DataFrags of other samples are dropped,
+     * until reassembly of some sample has finished.
+     * 
+     * @return maximum number of concurrent reassemblies per writer, default 16
+     */
+    public int getMaxFragmentBuffers() {
+        return getIntProperty("jrtps.reader.max-fragment-buffers", 16);
+    }
+
     /**
      * Gets a named integer property from configuration.
      * 
@@ -240,11 +296,118 @@ public class Configuration {
     }
 
     /**
-     * Gets the size of message queue. 
-     * @return queue size
+     * Gets the size of message queue. UDP selector threads do not block, when the queue
+     * is full, but drop the datagram. So, if not configured, a larger queue is used when
+     * jrtps.udp.selector-threads is greater than 0.
+     * 
+     * @return queue size, default 10, or 256 with UDP selector threads
+     * @see #getUDPSelectorThreads()
      */
     public int getMessageQueueSize() {
-        return getIntProperty("jrtps.message-queue.size", 10);
+        return getIntProperty("jrtps.message-queue.size", getUDPSelectorThreads() > 0 ? 256 : 10);
+    }
+
+    /**
+     * Gets the number of threads used to handle incoming messages. If greater than 1,
+     * messages are partitioned to threads by the GuidPrefix of the sending participant.
+     * @return number of message receiver threads
+     */
+    public int getMessageReceiverThreads() {
+        return getIntProperty("jrtps.message-receiver.threads", 1);
+    }
+
+    /**
+     * Gets the flush window of UDP transmitters in microseconds. Messages sent to the same
+     * locator within the window are combined into a single datagram. 0 disables combining.
+     * @return flush window, default 0
+     */
+    public int getUDPFlushWindow() {
+        return getIntProperty("jrtps.udp.flush-window", 0);
+    }
+
+    /**
+     * Gets the maximum size of a datagram combined by UDP transmitters.
+     * @return batch size, default 1472
+     */
+    public int getUDPBatchSize() {
+        return getIntProperty("jrtps.udp.batch-size", 1472);
+    }
+
+    /**
+     * Gets the rate in bytes per second, that each user defined writer may send data at. 
+     * @return rate, default 0, which means unlimited
+     */
+    public int getWriterFlowControlRate() {
+        return getIntProperty("rtps.writer.flow-control.rate", 0);
+    }
+
+    /**
+     * Gets the number of bytes, that a rate limited writer may send at once.
+     * @return burst size, default 65536
+     */
+    public int getWriterFlowControlBurst() {
+        return getIntProperty("rtps.writer.flow-control.burst", 65536);
+    }
+
+    /**
+     * Gets the maximum number of messages a rate limited writer queues. Messages exceeding
+     * this are dropped, and for reliable readers, later repaired.
+     * @return queue size, default 256
+     */
+    public int getWriterFlowControlQueueSize() {
+        return getIntProperty("rtps.writer.flow-control.queue-size", 256);
+    }
+
+    /**
+     * Gets the rate in bytes per second, that all the writers of a participant together
+     * may send data at. 
+     * @return rate, default 0, which means unlimited
+     */
+    public int getParticipantFlowControlRate() {
+        return getIntProperty("jrtps.flow-control.rate", 0);
+    }
+
+    /**
+     * Gets the number of bytes, that writers of a rate limited participant may send at once.
+     * @return burst size, default 65536
+     */
+    public int getParticipantFlowControlBurst() {
+        return getIntProperty("jrtps.flow-control.burst", 65536);
+    }
+
+    /**
+     * Gets the number of I/O threads, that receive from UDP channels of all the participants
+     * in this JVM. 0 uses a blocking thread for each UDP receiver.
+     * @return number of I/O threads, default 0
+     */
+    public int getUDPSelectorThreads() {
+        return getIntProperty("jrtps.udp.selector-threads", 0);
+    }
+
+    /**
+     * Gets the directory, where shared memory transport creates its files.
+     * @return directory
+     */
+    public String getShmDirectory() {
+        return getProperty("jrtps.shm.directory", "/dev/shm");
+    }
+
+    /**
+     * Gets the size of each ring buffer of shared memory transport in bytes. 
+     * Each transmitter has a ring buffer of its own for every receiver it sends to. 
+     * @return size of ring buffer
+     */
+    public int getShmRingSize() {
+        return getIntProperty("jrtps.shm.ring-size", 1048576);
+    }
+
+    /**
+     * Gets the tick duration of Watchdog in milliseconds. Watchdog notices missed
+     * trigger times at this resolution.
+     * @return tick duration
+     */
+    public int getWatchdogTickDuration() {
+        return getIntProperty("jrtps.watchdog.tick-duration", 10);
     }
 
     /**
@@ -358,6 +521,36 @@ public class Configuration {
     public int getSEDPDelay() {
         return getIntProperty("udds.sedp-delay", 0);
     }
+
+    /**
+     * Gets the directory, where journals of TRANSIENT and PERSISTENT DataWriters are kept.
+     * Each topic has a subdirectory of its own.
+     * 
+     * @return directory, default is jrtps-durability in java.io.tmpdir
+     */
+    public String getDurabilityDirectory() {
+        return getProperty("udds.durability.directory", 
+                new File(System.getProperty("java.io.tmpdir"), "jrtps-durability").getPath());
+    }
+
+    /**
+     * Gets the size of each memory mapped segment file of a durability journal in bytes.
+     * 
+     * @return segment size
+     */
+    public int getDurabilitySegmentSize() {
+        return getIntProperty("udds.durability.segment-size", 16777216);
+    }
+
+    /**
+     * Gets whether or not durability journal is forced to storage after each written sample.
+     * If not, written samples survive a crash of the process, but not a crash of the host.
+     * 
+     * @return true, if journal is synced on every write
+     */
+    public boolean getDurabilitySync() {
+        return getBooleanProperty("udds.durability.sync", false);
+    }
     
     private String[] getStringArrayProperty(String key, String[] deflt) {
         String property = props.getProperty(key);
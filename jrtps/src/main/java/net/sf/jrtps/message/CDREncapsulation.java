@@ -7,7 +7,8 @@ import net.sf.jrtps.transport.RTPSByteBuffer;
 
 /**
  * CDREncapsulation is a general purpose binary DataEncapsulation. It holds a RTPSByteBuffer,
- * which can be used by marshallers.
+ * which can be used by marshallers. A received CDREncapsulation reads its payload in place,
+ * from a read-only slice of the buffer the message was received into.
  * 
  * @author mcr70
  * 
@@ -23,6 +24,14 @@ public class CDREncapsulation extends DataEncapsulation {
         this.options = (short) bb.read_short(); // NOT Used
     }
 
+    private CDREncapsulation(CDREncapsulation other) {
+        ByteBuffer buffer = other.bb.getBuffer().duplicate();
+        buffer.order(other.bb.getBuffer().order()); // duplicate() does not keep byte order
+
+        this.bb = new RTPSByteBuffer(buffer);
+        this.options = other.options;
+    }
+
     public CDREncapsulation(int size) {
         this.bb = new RTPSByteBuffer(ByteBuffer.allocate(size));
         bb.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
@@ -38,12 +47,32 @@ public class CDREncapsulation extends DataEncapsulation {
 
     @Override
     public byte[] getSerializedPayload() {
-        byte[] serializedPayload = new byte[bb.position()];
-        System.arraycopy(bb.getBuffer().array(), 0, serializedPayload, 0, serializedPayload.length);
+        // Buffer of a received encapsulation may be a read-only slice, with no accessible array
+        ByteBuffer buffer = bb.getBuffer().duplicate();
+        buffer.flip();
+        
+        byte[] serializedPayload = new byte[buffer.remaining()];
+        buffer.get(serializedPayload);
 
         return serializedPayload;
     }
 
+    @Override
+    public int getSerializedPayloadLength() {
+        return bb.position();
+    }
+
+    /**
+     * Creates a CDREncapsulation, that shares the payload with this CDREncapsulation,
+     * but has its own read position.
+     * 
+     * @return CDREncapsulation
+     */
+    @Override
+    public DataEncapsulation duplicate() {
+        return new CDREncapsulation(this);
+    }
+
     /**
      * Gets a RTPSByteBuffer, which can be used to marshall/unmarshall data.
      * 
@@ -1,12 +1,15 @@
 package net.sf.jrtps.message;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.sf.jrtps.message.parameter.ContentFilterInfo;
 import net.sf.jrtps.message.parameter.ParameterId;
 import net.sf.jrtps.message.parameter.ParameterList;
 import net.sf.jrtps.message.parameter.StatusInfo;
 import net.sf.jrtps.transport.RTPSByteBuffer;
+import net.sf.jrtps.transport.ReceiveBuffer;
 import net.sf.jrtps.types.EntityId;
 import net.sf.jrtps.types.SequenceNumber;
 
@@ -34,6 +37,9 @@ public class Data extends SubMessage {
     private SequenceNumber writerSN;
     private ParameterList inlineQosParams;
     private DataEncapsulation dataEncapsulation;
+    private ReceiveBuffer receiveBuffer; // Buffer, that dataEncapsulation reads from
+    // Encoded form of this Data, shared with Data created by withReaderId(EntityId)
+    private AtomicReference<EncodedData> encodedData;
 
     /**
      * Constructor for creating a Data message.
@@ -67,6 +73,22 @@ public class Data extends SubMessage {
         this.dataEncapsulation = dEnc;
     }
 
+    /**
+     * Constructor used by withReaderId(EntityId) and duplicate().
+     */
+    private Data(Data template, EntityId readerId, DataEncapsulation dEnc) {
+        super(new SubMessageHeader(KIND, template.header.flags));
+
+        this.extraFlags = template.extraFlags;
+        this.readerId = readerId;
+        this.writerId = template.writerId;
+        this.writerSN = template.writerSN;
+        this.inlineQosParams = template.inlineQosParams;
+        this.dataEncapsulation = dEnc;
+        this.receiveBuffer = template.receiveBuffer;
+        this.encodedData = template.encodedData;
+    }
+
     /**
      * Constructor to read Data sub-message from RTPSByteBuffer.
      * 
@@ -97,12 +119,8 @@ public class Data extends SubMessage {
         int bytesRead = bb.position() - currentCount;
         int unknownOctets = octetsToInlineQos - bytesRead;
 
-        for (int i = 0; i < unknownOctets; i++) {
-            // TODO: Instead of looping, we should do just
-            // newPos = bb.getBuffer.position() + unknownOctets or something
-            // like that
-            bb.read_octet(); // Skip unknown octets, @see 9.4.5.3.3
-            // octetsToInlineQos
+        if (unknownOctets > 0) {
+            bb.skip(unknownOctets); // Skip unknown octets, @see 9.4.5.3.3 octetsToInlineQos
         }
 
         if (inlineQosFlag()) {
@@ -116,18 +134,23 @@ public class Data extends SubMessage {
             int end_count = bb.position(); // end of bytes read so far from the
             // beginning
 
-            byte[] serializedPayload = null;
+            int payloadLength;
             if (header.submessageLength != 0) {
-                serializedPayload = new byte[header.submessageLength - (end_count - start_count)];
+                payloadLength = header.submessageLength - (end_count - start_count);
             } else { // SubMessage is the last one. Rest of the bytes are read.
                 // @see 8.3.3.2.3
                 ByteBuffer buffer = bb.getBuffer();
-                serializedPayload = new byte[buffer.capacity() - buffer.position()];
+                payloadLength = buffer.limit() - buffer.position();
             }
 
-            log.trace("Serialized payload starts at {}, {} bytes", end_count, serializedPayload.length);
-            bb.read(serializedPayload);
-            dataEncapsulation = DataEncapsulation.createInstance(serializedPayload);
+            log.trace("Serialized payload starts at {}, {} bytes", end_count, payloadLength);
+            
+            // Payload is not copied. DataEncapsulation reads it from the receive buffer.
+            RTPSByteBuffer payload = bb.slice(payloadLength);
+            dataEncapsulation = DataEncapsulation.createInstance(payload);
+            if (dataEncapsulation instanceof CDREncapsulation) {
+                receiveBuffer = payload.getReceiveBuffer(); 
+            }
         }
     }
 
@@ -209,8 +232,64 @@ public class Data extends SubMessage {
         return extraFlags;
     }
 
+    /**
+     * Creates a copy of this Data, that is addressed to given reader. Data and the
+     * copies created share their encoded form. Once one of them has been written,
+     * the others are written by copying the encoded bytes, and patching readerId.
+     * This allows a writer to encode a sample only once, when it is sent to multiple readers.
+     * 
+     * @param readerId EntityId of the reader
+     * @return a new Data
+     */
+    public Data withReaderId(EntityId readerId) {
+        if (encodedData == null) {
+            encodedData = new AtomicReference<>();
+        }
+
+        return new Data(this, readerId, dataEncapsulation);
+    }
+
+    /**
+     * Creates a copy of this received Data, that can be handed to another reader.
+     * Copy shares the payload with this Data, but reads it independently.
+     * 
+     * @return a new Data
+     */
+    public Data duplicate() {
+        DataEncapsulation dEnc = dataEncapsulation != null ? dataEncapsulation.duplicate() : null;
+        return new Data(this, readerId, dEnc);
+    }
+
     @Override
     public void writeTo(RTPSByteBuffer bb) {
+        EncodedData ed = encodedData != null ? encodedData.get() : null;
+        if (ed != null && ed.order == bb.getBuffer().order()) {
+            int start = bb.position();
+            bb.write(ed.bytes);
+            
+            // readerId is the only field, that differs between Data sharing the encoded form
+            ByteBuffer buffer = bb.getBuffer();
+            buffer.position(start + 4); // extraFlags, octetsToInlineQos
+            readerId.writeTo(bb);
+            buffer.position(start + ed.bytes.length);
+            return;
+        }
+
+        int start = bb.position();
+        writeFields(bb);
+        
+        if (encodedData != null) {
+            ByteBuffer buffer = bb.getBuffer().duplicate();
+            buffer.limit(buffer.position());
+            buffer.position(start);
+            
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            encodedData.compareAndSet(null, new EncodedData(bytes, bb.getBuffer().order()));
+        }
+    }
+
+    private void writeFields(RTPSByteBuffer bb) {
         bb.write_short(extraFlags);
 
         short octets_to_inline_qos = 4 + 4 + 8;// EntityId.LENGTH + EntityId.LENGTH + SequenceNumber.LENGTH;
@@ -238,6 +317,50 @@ public class Data extends SubMessage {
         return dataEncapsulation;
     }
 
+    /**
+     * Retains the buffer, that the payload of this received Data is read from.
+     * Received Data is valid only while the message it came in is being handled.
+     * If Data is used after that, it must be retained, and later released.
+     * 
+     * @see #release()
+     */
+    public void retain() {
+        if (receiveBuffer != null) {
+            receiveBuffer.retain();
+        }
+    }
+
+    /**
+     * Releases the buffer, that the payload of this received Data is read from.
+     * 
+     * @see #retain()
+     */
+    public void release() {
+        if (receiveBuffer != null) {
+            receiveBuffer.release();
+        }
+    }
+
+    /**
+     * Copies the serialized payload of this received Data out of the receive buffer.
+     * The whole payload is copied, regardless of how much of it has been read.
+     * 
+     * @return serialized payload, or null if payload is not read from a receive buffer
+     */
+    public byte[] copyReceivedPayload() {
+        if (receiveBuffer == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = ((CDREncapsulation) dataEncapsulation).getBuffer().getBuffer().duplicate();
+        buffer.rewind();
+
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+
+        return payload;
+    }
+
     /**
      * Get the StatusInfo (PID 0x0071) inline QoS parameter if it is present. If inline Qos
      * is not present, an empty(default) StatusInfo is returned
@@ -282,4 +405,17 @@ public class Data extends SubMessage {
 
         return sb.toString();
     }
+
+    /**
+     * Encoded bytes of a Data, excluding SubMessageHeader.
+     */
+    private static class EncodedData {
+        private final byte[] bytes;
+        private final ByteOrder order;
+
+        EncodedData(byte[] bytes, ByteOrder order) {
+            this.bytes = bytes;
+            this.order = order;
+        }
+    }
 }
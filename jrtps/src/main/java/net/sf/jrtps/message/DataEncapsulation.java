@@ -44,6 +44,29 @@ public abstract class DataEncapsulation {
      */
     public abstract byte[] getSerializedPayload();
 
+    /**
+     * Gets the length of the serialized payload. Default implementation returns
+     * the length of array returned by getSerializedPayload(). Subclasses may override this
+     * method, if length can be determined without creating the serialized payload.
+     * 
+     * @return length of serialized payload in bytes
+     */
+    public int getSerializedPayloadLength() {
+        return getSerializedPayload().length;
+    }
+
+    /**
+     * Creates a DataEncapsulation, that can be read independently of this
+     * DataEncapsulation. Default implementation returns this DataEncapsulation.
+     * Subclasses, that keep a read position, should return a new DataEncapsulation
+     * sharing the same payload.
+     * 
+     * @return DataEncapsulation
+     */
+    public DataEncapsulation duplicate() {
+        return this;
+    }
+
     /**
      * Creates an instance of DataEncapsulation. Encapsulation identified by
      * reading first 2 bytes of serializedPayload.
@@ -52,7 +75,30 @@ public abstract class DataEncapsulation {
      * @return DataEncapsulation
      */
     public static DataEncapsulation createInstance(byte[] serializedPayload) {
-        RTPSByteBuffer bb = new RTPSByteBuffer(serializedPayload);
+        return createInstance(new RTPSByteBuffer(serializedPayload));
+    }
+
+    /**
+     * Wraps an already serialized payload into a DataEncapsulation, that writes the payload
+     * as is. Unlike createInstance(byte[]), the payload is not parsed. A DataEncapsulation,
+     * that can be read, is created from the same payload with createInstance(byte[]).
+     * 
+     * @param serializedPayload serialized payload, including encapsulation header
+     * @return DataEncapsulation
+     */
+    public static DataEncapsulation wrap(byte[] serializedPayload) {
+        return new SerializedPayloadEncapsulation(serializedPayload);
+    }
+
+    /**
+     * Creates an instance of DataEncapsulation from the bytes of given RTPSByteBuffer,
+     * starting at its current position. Encapsulation is identified by reading first 2 bytes.
+     * CDREncapsulation keeps reading from given RTPSByteBuffer, so no bytes are copied.
+     * 
+     * @param bb RTPSByteBuffer holding serialized payload
+     * @return DataEncapsulation
+     */
+    public static DataEncapsulation createInstance(RTPSByteBuffer bb) {
         byte[] encapsulationHeader = new byte[2];
         bb.read(encapsulationHeader);
 
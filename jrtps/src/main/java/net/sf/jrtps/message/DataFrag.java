@@ -1,25 +1,33 @@
 package net.sf.jrtps.message;
 
-import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import net.sf.jrtps.message.parameter.Parameter;
-import net.sf.jrtps.message.parameter.ParameterId;
-import net.sf.jrtps.message.parameter.ParameterFactory;
+import net.sf.jrtps.message.parameter.ParameterList;
 import net.sf.jrtps.transport.RTPSByteBuffer;
 import net.sf.jrtps.types.EntityId;
 import net.sf.jrtps.types.SequenceNumber;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * see 8.3.7.3 DataFrag
- * 
+ * The DataFrag Submessage extends the Data Submessage by enabling the
+ * serializedData to be fragmented and sent as multiple DataFrag Submessages.
+ * The fragments contained in the DataFrag Submessages are then re-assembled by
+ * the RTPS Reader.
+ *
+ * see 8.3.7.3 DataFrag, 9.4.5.4 DataFrag Submessage
+ *
  * @author mcr70
- * 
+ *
  */
 public class DataFrag extends SubMessage {
     public static final int KIND = 0x16;
 
+    private static final Logger log = LoggerFactory.getLogger(DataFrag.class);
+
     private short extraFlags;
     private EntityId readerId;
     private EntityId writerId;
@@ -29,19 +37,74 @@ public class DataFrag extends SubMessage {
     private int fragmentSize;
     private int sampleSize;
 
-    private List<Parameter> parameterList = new LinkedList<Parameter>();
+    private ParameterList inlineQosParams;
     private byte[] serializedPayload;
 
+    /**
+     * Constructor for creating a DataFrag message. Fragments of the serialized payload
+     * are taken from given byte array. Fragment numbering starts from 1.
+     *
+     * @param readerId EntityId of the reader
+     * @param writerId EntityId of the writer
+     * @param seqNum Sequence number of the sample being fragmented
+     * @param inlineQosParams Inline QoS parameters. May be null.
+     * @param payload whole serialized payload of the sample
+     * @param fragmentStartingNum number of the first fragment in this DataFrag
+     * @param fragmentsInSubmessage number of consecutive fragments in this DataFrag
+     * @param fragmentSize size of each fragment. Last fragment of the sample may be smaller.
+     */
+    public DataFrag(EntityId readerId, EntityId writerId, long seqNum, ParameterList inlineQosParams,
+            byte[] payload, int fragmentStartingNum, int fragmentsInSubmessage, int fragmentSize) {
+        super(new SubMessageHeader(KIND));
+
+        this.readerId = readerId;
+        this.writerId = writerId;
+        this.writerSN = new SequenceNumber(seqNum);
+        this.fragmentStartingNum = fragmentStartingNum;
+        this.fragmentsInSubmessage = fragmentsInSubmessage;
+        this.fragmentSize = fragmentSize;
+        this.sampleSize = payload.length;
+
+        if (inlineQosParams != null && inlineQosParams.size() > 0) {
+            header.flags |= 0x2;
+            this.inlineQosParams = inlineQosParams;
+        }
+
+        int start = (fragmentStartingNum - 1) * fragmentSize;
+        int end = Math.min(payload.length, start + fragmentsInSubmessage * fragmentSize);
+
+        this.serializedPayload = new byte[end - start];
+        System.arraycopy(payload, start, serializedPayload, 0, serializedPayload.length);
+    }
+
+    /**
+     * Constructor to read DataFrag sub-message from RTPSByteBuffer.
+     *
+     * @param smh
+     * @param bb
+     */
     public DataFrag(SubMessageHeader smh, RTPSByteBuffer bb) {
         super(smh);
 
         readMessage(bb);
     }
 
+    /**
+     * Indicates to the Reader the presence of a ParameterList containing QoS
+     * parameters that should be used to interpret the message.
+     *
+     * @return true, if inlineQos flag is set
+     */
     public boolean inlineQosFlag() {
         return (header.flags & 0x2) != 0;
     }
 
+    /**
+     * Indicates to the Reader that the serialized payload contains the
+     * serialized key of the data-object.
+     *
+     * @return true, if key flag is set
+     */
     public boolean keyFlag() {
         return (header.flags & 0x4) != 0;
     }
@@ -58,26 +121,72 @@ public class DataFrag extends SubMessage {
         return writerSN;
     }
 
+    /**
+     * Gets the number of the first fragment contained in this DataFrag.
+     * Fragment numbers start from 1.
+     *
+     * @return fragment starting number
+     */
     public int getFragmentStartingNumber() {
         return fragmentStartingNum;
     }
 
+    /**
+     * Gets the number of consecutive fragments contained in this DataFrag.
+     *
+     * @return number of fragments
+     */
     public int getFragmentsInSubmessage() {
         return fragmentsInSubmessage;
     }
 
+    /**
+     * Gets the size of a fragment in bytes. Last fragment of the sample may be
+     * smaller than this.
+     *
+     * @return fragment size
+     */
     public int getFragmentSize() {
         return fragmentSize;
     }
 
+    /**
+     * Gets the total size of the serialized payload, that is being fragmented.
+     *
+     * @return sample size
+     */
     public int getSampleSize() { // getDataSize()
         return sampleSize;
     }
 
+    /**
+     * Gets the inlineQos parameters if present. Inline QoS parameters are
+     * present, if inlineQosFlag() returns true.
+     *
+     * @return InlineQos parameters, or null if not present
+     */
+    public ParameterList getInlineQos() {
+        return inlineQosParams;
+    }
+
+    /**
+     * Gets the inline QoS parameters as a List.
+     *
+     * @return a List of Parameters. If inline QoS is not present, null is returned.
+     */
     public List<Parameter> getParameterList() {
-        return parameterList;
+        if (inlineQosParams == null) {
+            return null;
+        }
+
+        return inlineQosParams.getParameters();
     }
 
+    /**
+     * Gets the fragments carried by this DataFrag.
+     *
+     * @return serialized payload fragments
+     */
     public byte[] getSerializedPayload() {
         return serializedPayload;
     }
@@ -96,8 +205,8 @@ public class DataFrag extends SubMessage {
         this.writerSN = new SequenceNumber(bb);
 
         this.fragmentStartingNum = bb.read_long(); // ulong
-        this.fragmentsInSubmessage = bb.read_short(); // ushort
-        this.fragmentSize = bb.read_short(); // ushort
+        this.fragmentsInSubmessage = bb.read_short() & 0xffff; // ushort
+        this.fragmentSize = bb.read_short() & 0xffff; // ushort
         this.sampleSize = bb.read_long(); // ulong
 
         int bytesRead = bb.position() - currentCount;
@@ -108,30 +217,21 @@ public class DataFrag extends SubMessage {
         }
 
         if (inlineQosFlag()) {
-            readParameterList(bb);
+            log.trace("Reading inline QoS");
+            this.inlineQosParams = new ParameterList(bb);
         }
 
         int end_count = bb.position(); // end of bytes read so far from the beginning
 
-        this.serializedPayload = new byte[header.submessageLength - (end_count - start_count)];
-        bb.read(serializedPayload);
-    }
-
-    /**
-     * 
-     * @param bb
-     * @throws IOException
-     * @see 9.4.2.11 ParameterList
-     */
-    private void readParameterList(RTPSByteBuffer bb) {
-        while (true) {
-            bb.align(4);
-            Parameter param = ParameterFactory.readParameter(bb);
-            parameterList.add(param);
-            if (param.getParameterId() == ParameterId.PID_SENTINEL) {
-                break; 
-            }
+        if (header.submessageLength != 0) {
+            this.serializedPayload = new byte[header.submessageLength - (end_count - start_count)];
+        } else { // SubMessage is the last one. Rest of the bytes are read.
+            // @see 8.3.3.2.3
+            ByteBuffer buffer = bb.getBuffer();
+            this.serializedPayload = new byte[buffer.limit() - buffer.position()];
         }
+
+        bb.read(serializedPayload);
     }
 
     @Override
@@ -151,17 +251,25 @@ public class DataFrag extends SubMessage {
         bb.write_long(sampleSize);
 
         if (inlineQosFlag()) {
-            writeParameterList(bb);
+            inlineQosParams.writeTo(bb);
         }
 
-        bb.write(serializedPayload); // TODO: check this
+        bb.write(serializedPayload);
     }
 
-    private void writeParameterList(RTPSByteBuffer buffer) {
-        for (Parameter param : parameterList) {
-            param.writeTo(buffer);
+    public String toString() {
+        StringBuffer sb = new StringBuffer(super.toString());
+        sb.append(", readerId: ").append(getReaderId());
+        sb.append(", writerId: ").append(getWriterId());
+        sb.append(", writerSN: ").append(writerSN);
+        sb.append(", fragments: ").append(fragmentStartingNum).append('-');
+        sb.append(fragmentStartingNum + fragmentsInSubmessage - 1);
+        sb.append('/').append(sampleSize);
+
+        if (inlineQosFlag()) {
+            sb.append(", inline QoS: ").append(inlineQosParams);
         }
 
-        // TODO: last Parameter must be PID_SENTINEL
+        return sb.toString();
     }
 }
@@ -48,6 +48,25 @@ public class HeartbeatFrag extends SubMessage {
      */
     private int count;
 
+    /**
+     * Constructor for creating a HeartbeatFrag message.
+     * 
+     * @param readerId EntityId of the reader
+     * @param writerId EntityId of the writer
+     * @param seqNum sequence number of the sample, whose fragments are being announced
+     * @param lastFragmentNum highest fragment number available
+     * @param count a count
+     */
+    public HeartbeatFrag(EntityId readerId, EntityId writerId, long seqNum, int lastFragmentNum, int count) {
+        super(new SubMessageHeader(KIND));
+
+        this.readerId = readerId;
+        this.writerId = writerId;
+        this.writerSN = new SequenceNumber(seqNum);
+        this.lastFragmentNum = lastFragmentNum;
+        this.count = count;
+    }
+
     public HeartbeatFrag(SubMessageHeader smh, RTPSByteBuffer bb) {
         super(smh);
 
@@ -91,4 +110,9 @@ public class HeartbeatFrag extends SubMessage {
         bb.write_long(lastFragmentNum);
         bb.write_long(count);
     }
+
+    public String toString() {
+        return super.toString() + " #" + count + ", " + readerId + ", " + writerId + ", " + writerSN + ", "
+                + lastFragmentNum;
+    }
 }
@@ -34,6 +34,14 @@ public class InfoTimestamp extends SubMessage {
         this.timestamp = new Time(systemCurrentMillis);
     }
 
+    /**
+     * Creates an InfoTimestamp with InvalidateFlag set. Subsequent Submessages
+     * are interpreted as having no timestamp.
+     */
+    public InfoTimestamp() {
+        super(new SubMessageHeader(KIND, 0x2));
+    }
+
     /**
      * Indicates whether subsequent Submessages should be considered as having a
      * timestamp or not. Timestamp is present in _this_ submessage only if the
@@ -162,6 +162,19 @@ public class Message {
      * @return true, if an overflow occured during write.
      */
     public boolean writeTo(RTPSByteBuffer buffer) {
+        return writeTo(buffer, true);
+    }
+
+    /**
+     * Writes this Message to given RTPSByteBuffer.
+     * 
+     * @param buffer RTPSByteBuffer to write to
+     * @param lastSubMessageLengthZero if true, length of the last submessage is written as 0.
+     *        Actual length must be written, if other submessages are to follow in the same datagram.
+     * @return true, if an overflow occured during write.
+     * @see #writeTo(RTPSByteBuffer)
+     */
+    public boolean writeTo(RTPSByteBuffer buffer, boolean lastSubMessageLengthZero) {
         header.writeTo(buffer);
         boolean overFlowed = false;
 
@@ -197,7 +210,7 @@ public class Message {
         }
 
         // Length of last submessage is 0, @see 8.3.3.2.3 submessageLength
-        if (subMessageCount > 0) {
+        if (subMessageCount > 0 && lastSubMessageLengthZero) {
             buffer.getBuffer().putShort(position - 2, (short) 0);
         }
 
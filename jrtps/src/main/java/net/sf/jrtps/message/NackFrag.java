@@ -2,8 +2,8 @@ package net.sf.jrtps.message;
 
 import net.sf.jrtps.transport.RTPSByteBuffer;
 import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
 import net.sf.jrtps.types.SequenceNumber;
-import net.sf.jrtps.types.SequenceNumberSet;
 
 /**
  * The NackFrag Submessage is used to communicate the state of a Reader to a
@@ -22,9 +22,29 @@ public class NackFrag extends SubMessage {
     private EntityId readerId;
     private EntityId writerId;
     private SequenceNumber writerSN;
-    private SequenceNumberSet fragmentNumberState;
+    private FragmentNumberSet fragmentNumberState;
     private int count;
 
+    /**
+     * Constructor for creating a NackFrag message.
+     * 
+     * @param readerId EntityId of the reader requesting fragments
+     * @param writerId EntityId of the writer
+     * @param seqNum sequence number of the sample, for which some fragments are missing
+     * @param fragmentNumberState FragmentNumberSet of the missing fragments
+     * @param count a count
+     */
+    public NackFrag(EntityId readerId, EntityId writerId, long seqNum, FragmentNumberSet fragmentNumberState,
+            int count) {
+        super(new SubMessageHeader(KIND));
+
+        this.readerId = readerId;
+        this.writerId = writerId;
+        this.writerSN = new SequenceNumber(seqNum);
+        this.fragmentNumberState = fragmentNumberState;
+        this.count = count;
+    }
+
     public NackFrag(SubMessageHeader smh, RTPSByteBuffer bb) {
         super(smh);
 
@@ -64,9 +84,9 @@ public class NackFrag extends SubMessage {
      * ones that do not appear in the set are undetermined (could have been
      * received or not).
      * 
-     * @return SequenceNumberSet indicating missing fragments
+     * @return FragmentNumberSet indicating missing fragments
      */
-    public SequenceNumberSet getFragmentNumberState() {
+    public FragmentNumberSet getFragmentNumberState() {
         return fragmentNumberState;
     }
 
@@ -85,7 +105,7 @@ public class NackFrag extends SubMessage {
         this.readerId = EntityId.readEntityId(bb);
         this.writerId = EntityId.readEntityId(bb);
         this.writerSN = new SequenceNumber(bb);
-        this.fragmentNumberState = new SequenceNumberSet(bb);
+        this.fragmentNumberState = new FragmentNumberSet(bb);
 
         this.count = bb.read_long();
     }
@@ -99,4 +119,9 @@ public class NackFrag extends SubMessage {
 
         bb.write_long(count);
     }
+
+    public String toString() {
+        return super.toString() + " #" + count + ", " + readerId + ", " + writerId + ", " + writerSN + ", "
+                + fragmentNumberState;
+    }
 }
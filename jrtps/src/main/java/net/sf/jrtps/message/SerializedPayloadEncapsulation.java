@@ -0,0 +1,32 @@
+package net.sf.jrtps.message;
+
+/**
+ * SerializedPayloadEncapsulation holds a payload, that has already been serialized with
+ * some other DataEncapsulation. It is written as is, and it is converted into the original
+ * DataEncapsulation, when the payload needs to be read.
+ *
+ * @author mcr70
+ * @see DataEncapsulation#wrap(byte[])
+ */
+class SerializedPayloadEncapsulation extends DataEncapsulation {
+    private final byte[] serializedPayload;
+
+    SerializedPayloadEncapsulation(byte[] serializedPayload) {
+        this.serializedPayload = serializedPayload;
+    }
+
+    @Override
+    public boolean containsData() {
+        return true;
+    }
+
+    @Override
+    public byte[] getSerializedPayload() {
+        return serializedPayload;
+    }
+
+    @Override
+    public int getSerializedPayloadLength() {
+        return serializedPayload.length;
+    }
+}
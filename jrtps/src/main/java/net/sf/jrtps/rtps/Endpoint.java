@@ -135,38 +135,77 @@ public class Endpoint {
 			}
 		}
 
-		boolean overFlowed = false;
-		List<Locator> locators = new LinkedList<>();
-
 		if (GuidPrefix.GUIDPREFIX_UNKNOWN.equals(proxy.getGuid().getPrefix())) {
 			// GUIDPREFIX_UNKNOWN is used with SPDP; let's send message to every
 			// configured locator
-			locators.addAll(proxy.getLocators());
-		}
-		else {
-			locators.add(proxy.getLocator());
+			boolean overFlowed = false;
+			for (Locator locator : proxy.getLocators()) {
+				overFlowed = sendMessage(m, locator);
+			}
+
+			return overFlowed;
 		}
 
-		for (Locator locator : locators) {
-			logger.trace("Sending message to {}", locator);
+		try {
+			Transmitter tr = proxy.getTransmitter();
+			if (tr != null) {
+				logger.trace("Sending message to {}", proxy.getLocator());
+				return tr.sendMessage(m);
+			}
+
+			logger.warn("[{}] Unable to send message, no suitable locator for proxy {}", getGuid().getEntityId(), proxy);
+			// participant.ignoreParticipant(targetPrefix);
+		} catch (IOException e) {
+			logger.warn("[{}] Failed to send message to {}", getGuid().getEntityId(), proxy.getLocator(), e);
+		}
 
-			if (locator != null) {
-				try {
-					TransportProvider provider = TransportProvider.getProviderForKind(locator.getKind());
-					Transmitter tr = provider.getTransmitter(locator);
+		return false;
+	}
 
-					overFlowed = tr.sendMessage(m);
-				} catch (IOException e) {
-					logger.warn("[{}] Failed to send message to {}", getGuid().getEntityId(), locator, e);
-				}
-			} 
-			else {
-				logger.warn("[{}] Unable to send message, no suitable locator for proxy {}", getGuid().getEntityId(), proxy);
-				// participant.ignoreParticipant(targetPrefix);
+	/**
+	 * Sends a message to the group locator of given proxy. Message is not encoded,
+	 * even if this Endpoint is secure.
+	 * 
+	 * @param m Message to send
+	 * @param proxy proxy of one of the remote entities sharing the group locator
+	 * @return true, if an overflow occurred during send.
+	 * @see RemoteProxy#getGroupLocator()
+	 */
+	boolean sendGroupMessage(Message m, RemoteProxy proxy) {
+		try {
+			Transmitter tr = proxy.getGroupTransmitter();
+			if (tr != null) {
+				logger.trace("Sending message to {}", proxy.getGroupLocator());
+				return tr.sendMessage(m);
 			}
+		} catch (IOException e) {
+			logger.warn("[{}] Failed to send message to {}", getGuid().getEntityId(), proxy.getGroupLocator(), e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends a message to given Locator. Message is not encoded, even if
+	 * this Endpoint is secure.
+	 * 
+	 * @param m Message to send
+	 * @param locator Locator to send message to
+	 * @return true, if an overflow occurred during send.
+	 */
+	protected boolean sendMessage(Message m, Locator locator) {
+		logger.trace("Sending message to {}", locator);
+
+		try {
+			TransportProvider provider = TransportProvider.getProviderForKind(locator.getKind());
+			Transmitter tr = provider.getTransmitter(locator);
+
+			return tr.sendMessage(m);
+		} catch (IOException e) {
+			logger.warn("[{}] Failed to send message to {}", getGuid().getEntityId(), locator, e);
 		}
 
-		return overFlowed;
+		return false;
 	}
 
 	/**
@@ -0,0 +1,28 @@
+package net.sf.jrtps.rtps;
+
+/**
+ * FlowController limits the rate at which RTPSWriter sends data. Messages carrying
+ * samples, that a FlowController does not allow to be sent yet, are queued by the writer
+ * and sent later. Heartbeats and other control messages are not flow controlled.
+ * <p>
+ * A FlowController may be shared by several writers, so implementations must be thread safe.
+ *
+ * @author mcr70
+ * @see TokenBucketFlowController
+ */
+public interface FlowController {
+    /**
+     * Gets the time to wait, before given number of bytes may be sent.
+     *
+     * @param bytes number of bytes to send
+     * @return delay in nanoseconds, or 0 if bytes may be sent immediately
+     */
+    long getDelay(int bytes);
+
+    /**
+     * Called when given number of bytes is sent.
+     *
+     * @param bytes number of bytes sent
+     */
+    void sent(int bytes);
+}
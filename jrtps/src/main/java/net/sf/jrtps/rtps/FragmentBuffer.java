@@ -0,0 +1,157 @@
+package net.sf.jrtps.rtps;
+
+import java.util.BitSet;
+
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.DataFrag;
+import net.sf.jrtps.message.parameter.ParameterList;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
+
+/**
+ * FragmentBuffer is used to reassemble a fragmented sample from DataFrag
+ * submessages. There is one FragmentBuffer for each sequence number of a remote
+ * writer, that is being received in fragments. Once all the fragments have been
+ * received, FragmentBuffer can be converted to Data submessage, which is then
+ * processed as if it was received as is.
+ *
+ * @see DataFrag
+ * @author mcr70
+ */
+class FragmentBuffer {
+    private final long seqNum;
+    private final int sampleSize;
+    private final int fragmentSize;
+    private final int fragmentCount;
+    private final byte[] payload;
+    private final BitSet receivedFragments;
+
+    private ParameterList inlineQos;
+    private int receivedCount = 0;
+
+    /**
+     * Creates a FragmentBuffer for the sample of given DataFrag.
+     * 
+     * @param df DataFrag
+     * @throws IllegalArgumentException if fragment size or sample size of DataFrag is not positive
+     */
+    FragmentBuffer(DataFrag df) {
+        if (df.getFragmentSize() <= 0 || df.getSampleSize() <= 0) {
+            throw new IllegalArgumentException("Invalid fragment size " + df.getFragmentSize() + 
+                    " or sample size " + df.getSampleSize());
+        }
+
+        this.seqNum = df.getWriterSequenceNumber().getAsLong();
+        this.sampleSize = df.getSampleSize();
+        this.fragmentSize = df.getFragmentSize();
+        this.fragmentCount = (sampleSize + fragmentSize - 1) / fragmentSize;
+        this.payload = new byte[sampleSize];
+        this.receivedFragments = new BitSet(fragmentCount);
+    }
+
+    /**
+     * Adds fragments of given DataFrag to this FragmentBuffer. Fragments already
+     * received are ignored.
+     *
+     * @param df DataFrag
+     * @return true, if all the fragments of the sample have been received
+     */
+    boolean addFragments(DataFrag df) {
+        if (df.getSampleSize() != sampleSize || df.getFragmentSize() != fragmentSize) {
+            return false; // Inconsistent DataFrag; ignore it
+        }
+
+        if (inlineQos == null && df.inlineQosFlag()) {
+            inlineQos = df.getInlineQos();
+        }
+
+        byte[] fragments = df.getSerializedPayload();
+        int fragmentNum = df.getFragmentStartingNumber();
+        int offset = 0;
+
+        for (int i = 0; i < df.getFragmentsInSubmessage() && offset < fragments.length; i++) {
+            int idx = fragmentNum + i - 1;
+            if (idx < 0 || idx >= fragmentCount) {
+                break;
+            }
+
+            int length = Math.min(fragmentSize, fragments.length - offset);
+            length = Math.min(length, sampleSize - idx * fragmentSize);
+
+            if (!receivedFragments.get(idx)) {
+                System.arraycopy(fragments, offset, payload, idx * fragmentSize, length);
+                receivedFragments.set(idx);
+                receivedCount++;
+            }
+
+            offset += length;
+        }
+
+        return isComplete();
+    }
+
+    /**
+     * Checks, if all the fragments have been received.
+     * @return true or false
+     */
+    boolean isComplete() {
+        return receivedCount == fragmentCount;
+    }
+
+    /**
+     * Gets the fragments still missing from this FragmentBuffer. FragmentNumberSet
+     * starts from the first missing fragment, and covers at most 256 fragments.
+     *
+     * @param lastFragmentNum highest fragment number, that writer has announced
+     * @return FragmentNumberSet of missing fragments, or null if nothing is missing
+     */
+    FragmentNumberSet getMissingFragments(int lastFragmentNum) {
+        int last = Math.min(lastFragmentNum, fragmentCount);
+        int first = receivedFragments.nextClearBit(0); // 0 based index of fragment
+
+        if (first >= last) {
+            return null;
+        }
+
+        int numBits = Math.min(last - first, 256);
+        int[] bitmaps = new int[(numBits + 31) / 32];
+
+        for (int i = 0; i < numBits; i++) {
+            if (!receivedFragments.get(first + i)) {
+                bitmaps[i / 32] |= 0x80000000 >>> (i % 32);
+            }
+        }
+
+        return new FragmentNumberSet(first + 1, numBits, bitmaps);
+    }
+
+    /**
+     * Gets the sequence number of the sample being reassembled.
+     * @return sequence number
+     */
+    long getSequenceNumber() {
+        return seqNum;
+    }
+
+    /**
+     * Gets the total number of fragments of the sample being reassembled.
+     * @return number of fragments
+     */
+    int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    /**
+     * Creates a Data submessage out of reassembled fragments.
+     *
+     * @param readerId EntityId of the reader
+     * @param writerId EntityId of the writer
+     * @return Data
+     */
+    Data toData(EntityId readerId, EntityId writerId) {
+        DataEncapsulation dEnc = DataEncapsulation.createInstance(payload);
+
+        return new Data(readerId, writerId, seqNum, inlineQos, dEnc);
+    }
+}
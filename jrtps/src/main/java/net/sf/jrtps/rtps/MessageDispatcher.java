@@ -0,0 +1,83 @@
+package net.sf.jrtps.rtps;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import net.sf.jrtps.transport.ReceiveBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MessageDispatcher is used when RTPSParticipant is configured to receive messages
+ * with more than one RTPSMessageReceiver. It takes ReceiveBuffers from the queue the network
+ * receivers produce into, and partitions them to worker queues by the GuidPrefix found
+ * in the RTPS message header. Since every message from a given remote participant
+ * ends up in the same worker queue, messages from each remote writer are processed
+ * in the order they were received.
+ *
+ * @see RTPSMessageReceiver
+ * @author mcr70
+ */
+class MessageDispatcher implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    // RTPS header: 'RTPS', ProtocolVersion, VendorId, GuidPrefix
+    private static final int GUID_PREFIX_OFFSET = 8;
+    private static final int GUID_PREFIX_LENGTH = 12;
+
+    private final BlockingQueue<ReceiveBuffer> queue;
+    private final List<BlockingQueue<ReceiveBuffer>> workerQueues;
+
+    private volatile boolean running = true;
+
+    MessageDispatcher(BlockingQueue<ReceiveBuffer> queue, List<BlockingQueue<ReceiveBuffer>> workerQueues) {
+        this.queue = queue;
+        this.workerQueues = workerQueues;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                ReceiveBuffer buffer = queue.take();
+                if (running) {
+                    workerQueues.get(partitionOf(buffer)).put(buffer);
+                }
+                else {
+                    buffer.release();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+
+        logger.debug("MessageDispatcher exiting");
+    }
+
+    /**
+     * Gets the index of the worker queue, that handles given message.
+     *
+     * @param buffer RTPS message
+     * @return index of worker queue
+     */
+    int partitionOf(ReceiveBuffer buffer) {
+        byte[] bytes = buffer.array();
+        if (buffer.length() < GUID_PREFIX_OFFSET + GUID_PREFIX_LENGTH) {
+            return 0; // Not a valid message; let the first worker discard it
+        }
+
+        int hash = 1;
+        for (int i = GUID_PREFIX_OFFSET; i < GUID_PREFIX_OFFSET + GUID_PREFIX_LENGTH; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return (hash & 0x7fffffff) % workerQueues.size();
+    }
+
+    void close() {
+        // Wake up dispatcher thread with a dummy buffer, like RTPSMessageReceiver does
+        running = false;
+        queue.offer(ReceiveBuffer.wrap(new byte[0]));
+    }
+}
@@ -1,16 +1,21 @@
 package net.sf.jrtps.rtps;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.jrtps.Configuration;
 import net.sf.jrtps.message.AckNack;
 import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataFrag;
 import net.sf.jrtps.message.Gap;
 import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.HeartbeatFrag;
 import net.sf.jrtps.message.IllegalMessageException;
 import net.sf.jrtps.message.InfoDestination;
 import net.sf.jrtps.message.InfoReply;
@@ -18,10 +23,12 @@ import net.sf.jrtps.message.InfoReplyIp4;
 import net.sf.jrtps.message.InfoSource;
 import net.sf.jrtps.message.InfoTimestamp;
 import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.NackFrag;
 import net.sf.jrtps.message.SecureSubMessage;
 import net.sf.jrtps.message.SubMessage;
 import net.sf.jrtps.message.SubMessage.Kind;
 import net.sf.jrtps.transport.RTPSByteBuffer;
+import net.sf.jrtps.transport.ReceiveBuffer;
 import net.sf.jrtps.types.Guid;
 import net.sf.jrtps.types.GuidPrefix;
 import net.sf.jrtps.types.Locator;
@@ -34,9 +41,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * RTPSMessageReceiver is a consumer to BlockingQueue<byte[]>. A network
- * receiver produces byte arrays into this queue. These byte[] are parsed into
- * RTPS messages by this class.
+ * RTPSMessageReceiver is a consumer to BlockingQueue<ReceiveBuffer>. A network
+ * receiver produces ReceiveBuffers into this queue. These buffers are parsed into
+ * RTPS messages by this class, and released once the message has been handled.
  * <p>
  * 
  * Successfully parsed messages are split into submessages, which are passed to
@@ -47,15 +54,17 @@ import org.slf4j.LoggerFactory;
  */
 class RTPSMessageReceiver implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(RTPSMessageReceiver.class);
+    private static final AtomicInteger messageIdCounter = new AtomicInteger();
 
     private final RTPSParticipant participant;
-    private final BlockingQueue<byte[]> queue;
+    private final BlockingQueue<ReceiveBuffer> queue;
 	private final CryptoPlugin cryptoPlugin;
 
-    private Set<GuidPrefix> ignoredParticipants = new HashSet<>();
-    private boolean running = true;
+    private final Set<GuidPrefix> ignoredParticipants = 
+            Collections.newSetFromMap(new ConcurrentHashMap<GuidPrefix, Boolean>());
+    private volatile boolean running = true;
 
-    RTPSMessageReceiver(CryptoPlugin cryptoPlugin, RTPSParticipant p, BlockingQueue<byte[]> queue, Configuration config) {
+    RTPSMessageReceiver(CryptoPlugin cryptoPlugin, RTPSParticipant p, BlockingQueue<ReceiveBuffer> queue, Configuration config) {
         this.participant = p;
         this.queue = queue;
         this.cryptoPlugin = cryptoPlugin;
@@ -64,15 +73,14 @@ class RTPSMessageReceiver implements Runnable {
     @Override
     public void run() {
         while (running) {
-        	byte[] bytes = null;
+        	ReceiveBuffer buffer = null;
         	try {
-                // NOTE: We can have only one MessageReceiver. pending samples
-                // concept relies on it.
-                // NOTE2: pending samples concept has changed. Check this.
-                bytes = queue.take();
+                // NOTE: There may be several RTPSMessageReceivers running in parallel.
+                // Messages from a given participant are always handled by the same one.
+                buffer = queue.take();
                 if (running) {
                 	long l1 = System.currentTimeMillis();
-                    Message msg = new Message(new RTPSByteBuffer(bytes));
+                    Message msg = new Message(new RTPSByteBuffer(buffer));
                     long l2 = System.currentTimeMillis();
                     logger.debug("Parsed RTPS message {} in {} ms", msg, l2-l1);
 
@@ -87,6 +95,10 @@ class RTPSMessageReceiver implements Runnable {
             	logger.trace("Illegal message", ime);
             } catch(Exception e) {
                 logger.warn("Got unexpected exception during Message handling", e);
+            } finally {
+                if (buffer != null) {
+                    buffer.release();
+                }
             }
         }
 
@@ -100,7 +112,7 @@ class RTPSMessageReceiver implements Runnable {
      * @param msg
      */
     private void handleMessage(Message msg) {
-        int msgId = msg.hashCode();
+        int msgId = messageIdCounter.incrementAndGet(); // Unique among parallel receivers
         Time timestamp = null;
         GuidPrefix destGuidPrefix = participant.getGuid().getPrefix();
         boolean destinationThisParticipant = true;
@@ -160,15 +172,20 @@ class RTPSMessageReceiver implements Runnable {
 
                 try {
                     Data data = (Data) subMsg;
-                    RTPSReader<?> r = participant.getReader(data.getReaderId(), sourceGuidPrefix, data.getWriterId());
+                    List<RTPSReader<?>> readers = 
+                            participant.getReaders(data.getReaderId(), sourceGuidPrefix, data.getWriterId());
 
-                    if (r != null) {
+                    boolean first = true;
+                    for (RTPSReader<?> r : readers) {
                         if (dataReceivers.add(r)) {
                             r.startMessageProcessing(msgId);
                         }
-                        r.onData(msgId, sourceGuidPrefix, data, timestamp);
+                        // Each reader reads the payload with its own copy of Data
+                        r.onData(msgId, sourceGuidPrefix, first ? data : data.duplicate(), timestamp);
+                        first = false;
                     }
-                    else {
+                    
+                    if (readers.isEmpty()) {
                         logger.warn("No reader({}) was matched with {} to handle Data", 
                                 data.getReaderId(), new Guid(sourceGuidPrefix, data.getWriterId()));
                         logger.debug("Known readers: {}", participant.getReaders());
@@ -177,6 +194,31 @@ class RTPSMessageReceiver implements Runnable {
                     logger.warn("Failed to handle data", ioe);
                 }
                 break;
+            case DATAFRAG:
+                if (!destinationThisParticipant) {
+                    continue;
+                }
+
+                if (ignoredParticipants.contains(sourceGuidPrefix)) {
+                    continue;
+                }
+
+                DataFrag dataFrag = (DataFrag) subMsg;
+                List<RTPSReader<?>> fragReaders = participant.getReaders(dataFrag.getReaderId(), sourceGuidPrefix, 
+                        dataFrag.getWriterId());
+
+                for (RTPSReader<?> fragReader : fragReaders) {
+                    if (dataReceivers.add(fragReader)) {
+                        fragReader.startMessageProcessing(msgId);
+                    }
+                    fragReader.onDataFrag(msgId, sourceGuidPrefix, dataFrag, timestamp);
+                }
+                
+                if (fragReaders.isEmpty()) {
+                    logger.warn("No reader({}) was matched with {} to handle DataFrag", 
+                            dataFrag.getReaderId(), new Guid(sourceGuidPrefix, dataFrag.getWriterId()));
+                }
+                break;
             case HEARTBEAT:
                 if (!destinationThisParticipant) {
                     continue;
@@ -186,7 +228,29 @@ class RTPSMessageReceiver implements Runnable {
                     continue;
                 }
 
-                handleHeartbeat(sourceGuidPrefix, (Heartbeat) subMsg);
+                handleHeartbeat(msgId, sourceGuidPrefix, (Heartbeat) subMsg, dataReceivers);
+                break;
+            case HEARTBEATFRAG:
+                if (!destinationThisParticipant) {
+                    continue;
+                }
+
+                if (ignoredParticipants.contains(sourceGuidPrefix)) {
+                    continue;
+                }
+
+                handleHeartbeatFrag(sourceGuidPrefix, (HeartbeatFrag) subMsg);
+                break;
+            case NACKFRAG:
+                if (!destinationThisParticipant) {
+                    continue;
+                }
+
+                if (ignoredParticipants.contains(sourceGuidPrefix)) {
+                    continue;
+                }
+
+                handleNackFrag(sourceGuidPrefix, (NackFrag) subMsg);
                 break;
             case INFODESTINATION:
                 destGuidPrefix = ((InfoDestination) subMsg).getGuidPrefix();
@@ -223,7 +287,7 @@ class RTPSMessageReceiver implements Runnable {
                     continue;
                 }
 
-                handleGap(sourceGuidPrefix, (Gap) subMsg);
+                handleGap(msgId, sourceGuidPrefix, (Gap) subMsg, dataReceivers);
                 break;
 
             default:
@@ -251,25 +315,60 @@ class RTPSMessageReceiver implements Runnable {
         }
     }
 
-    private void handleGap(GuidPrefix sourceGuidPrefix, Gap gap) {
-        RTPSReader<?> reader = participant.getReader(gap.getReaderId(), sourceGuidPrefix, gap.getWriterId());
-        if (reader != null) {
-        	reader.onGap(sourceGuidPrefix, gap);
+    private void handleNackFrag(GuidPrefix sourceGuidPrefix, NackFrag nackFrag) {
+        RTPSWriter<?> writer = participant.getWriter(nackFrag.getWriterId(), sourceGuidPrefix, nackFrag.getReaderId());
+
+        if (writer != null) {
+            writer.onNackFrag(sourceGuidPrefix, nackFrag);
         } else {
+            logger.debug("No Writer({}) to handle NackFrag from {}", nackFrag.getWriterId(), nackFrag.getReaderId());
+        }
+    }
+
+    private void handleGap(int msgId, GuidPrefix sourceGuidPrefix, Gap gap, Set<RTPSReader<?>> dataReceivers) {
+        List<RTPSReader<?>> readers = participant.getReaders(gap.getReaderId(), sourceGuidPrefix, gap.getWriterId());
+        for (RTPSReader<?> reader : readers) {
+            // Gap may release samples held by reader
+            if (dataReceivers.add(reader)) {
+                reader.startMessageProcessing(msgId);
+            }
+        	reader.onGap(msgId, sourceGuidPrefix, gap);
+        }
+        
+        if (readers.isEmpty()) {
             logger.debug("No Reader({}) to handle Gap from {}", gap.getReaderId(), gap.getWriterId());
         }
     }
 
-    private void handleHeartbeat(GuidPrefix sourceGuidPrefix, Heartbeat hb) {
-        RTPSReader<?> reader = participant.getReader(hb.getReaderId(), sourceGuidPrefix, hb.getWriterId());
+    private void handleHeartbeat(int msgId, GuidPrefix sourceGuidPrefix, Heartbeat hb, 
+            Set<RTPSReader<?>> dataReceivers) {
+        List<RTPSReader<?>> readers = participant.getReaders(hb.getReaderId(), sourceGuidPrefix, hb.getWriterId());
 
-        if (reader != null) {
-            reader.onHeartbeat(sourceGuidPrefix, hb);
-        } else {
+        for (RTPSReader<?> reader : readers) {
+            // Heartbeat may release samples held by reader
+            if (dataReceivers.add(reader)) {
+                reader.startMessageProcessing(msgId);
+            }
+            reader.onHeartbeat(msgId, sourceGuidPrefix, hb);
+        }
+        
+        if (readers.isEmpty()) {
             logger.debug("No Reader({}) to handle Heartbeat from {}", hb.getReaderId(), hb.getWriterId());
         }
     }
 
+    private void handleHeartbeatFrag(GuidPrefix sourceGuidPrefix, HeartbeatFrag hbf) {
+        List<RTPSReader<?>> readers = participant.getReaders(hbf.getReaderId(), sourceGuidPrefix, hbf.getWriterId());
+
+        for (RTPSReader<?> reader : readers) {
+            reader.onHeartbeatFrag(sourceGuidPrefix, hbf);
+        }
+        
+        if (readers.isEmpty()) {
+            logger.debug("No Reader({}) to handle HeartbeatFrag from {}", hbf.getReaderId(), hbf.getWriterId());
+        }
+    }
+
 	private SubMessage extractSubMessage(SecureSubMessage subMsg) {
     	logger.warn("Secure subMessage -> SubMessage not handled");
 		return null;
@@ -281,8 +380,8 @@ class RTPSMessageReceiver implements Runnable {
 
     void close() {
         // Trying to close RTPSMessageReceiver gracefully, by setting running flag to false
-        // and putting a dummy byte[] into receiver queue to wake up waiting thread
+        // and putting a dummy buffer into receiver queue to wake up waiting thread
         running = false;
-        queue.offer(new byte[0]); // Put a dummy array
+        queue.offer(ReceiveBuffer.wrap(new byte[0])); // Put a dummy buffer
     }
 }
@@ -2,13 +2,17 @@ package net.sf.jrtps.rtps;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
@@ -19,6 +23,7 @@ import net.sf.jrtps.Configuration;
 import net.sf.jrtps.QualityOfService;
 import net.sf.jrtps.builtin.ParticipantData;
 import net.sf.jrtps.builtin.PublicationData;
+import net.sf.jrtps.transport.ReceiveBuffer;
 import net.sf.jrtps.transport.Receiver;
 import net.sf.jrtps.transport.TransportProvider;
 import net.sf.jrtps.types.EntityId;
@@ -45,6 +50,7 @@ public class RTPSParticipant {
     private final Configuration config;
     private final ScheduledThreadPoolExecutor threadPoolExecutor;
     private final Watchdog watchdog;
+    private final FlowController flowController; // Shared by all the writers, may be null
     
     /**
      * Maps that stores discovered participants. discovered participant is
@@ -56,12 +62,22 @@ public class RTPSParticipant {
     private final List<RTPSReader<?>> readerEndpoints = new CopyOnWriteArrayList<>();
     private final List<RTPSWriter<?>> writerEndpoints = new CopyOnWriteArrayList<>();
 
+    // Indexes used to find endpoints for incoming submessages. Lookups do not lock, 
+    // (un)matching synchronizes on the index it modifies.
+    private final Map<EntityId, RTPSReader<?>> readersById = new ConcurrentHashMap<>();
+    private final Map<EntityId, RTPSWriter<?>> writersById = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Guid, CopyOnWriteArrayList<RTPSReader<?>>> readersByMatchedWriter = 
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Guid, CopyOnWriteArrayList<RTPSWriter<?>>> writersByMatchedReader = 
+            new ConcurrentHashMap<>();
+
     private final LinkedList<Locator> discoveryLocators = new LinkedList<>();
     private final LinkedList<Locator> userdataLocators = new LinkedList<>();
 
 
     private final Guid guid;
-    private RTPSMessageReceiver handler;
+    private final List<RTPSMessageReceiver> handlers = new LinkedList<>();
+    private MessageDispatcher dispatcher;
 
     private int domainId;
     private int participantId;
@@ -93,9 +109,17 @@ public class RTPSParticipant {
         this.participantId = participantId;
         this.threadPoolExecutor = tpe;
 		this.aPlugin = aPlugin;
-        this.watchdog = new Watchdog(threadPoolExecutor);
         this.discoveredParticipants = discoveredParticipants;
         this.config = aPlugin.getConfiguration();
+        this.watchdog = new Watchdog(threadPoolExecutor, config.getWatchdogTickDuration());
+
+        if (config.getParticipantFlowControlRate() > 0) {
+            this.flowController = new TokenBucketFlowController(config.getParticipantFlowControlRate(), 
+                    config.getParticipantFlowControlBurst());
+        }
+        else {
+            this.flowController = null;
+        }
     }
 
 
@@ -103,12 +127,8 @@ public class RTPSParticipant {
      * Starts this Participant. All the configured endpoints are initialized.
      */
     public void start() {
-        BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(config.getMessageQueueSize());
-
-        // NOTE: We can have only one MessageReceiver. pending samples concept
-        // relies on it.
-        handler = new RTPSMessageReceiver(aPlugin.getCryptoPlugin(), this, queue, config);
-        threadPoolExecutor.execute(handler);
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>(config.getMessageQueueSize());
+        startMessageReceivers(queue);
 
         logger.debug("Starting receivers for discovery");
         List<URI> discoveryURIs = config.getDiscoveryListenerURIs();
@@ -137,6 +157,7 @@ public class RTPSParticipant {
         reader.setDiscoveredParticipants(discoveredParticipants);
 		
         readerEndpoints.add(reader);
+        readersById.put(eId, reader);
 
         return reader;
     }
@@ -157,6 +178,7 @@ public class RTPSParticipant {
         writer.setDiscoveredParticipants(discoveredParticipants);
 
         writerEndpoints.add(writer);
+        writersById.put(eId, writer);
 
         return writer;
     }
@@ -167,7 +189,12 @@ public class RTPSParticipant {
      */
     public void close() {
         logger.debug("Closing RTPSParticipant {}", guid);
-        handler.close(); // Close RTPSMessageReceiver loop gracefully
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        for (RTPSMessageReceiver handler : handlers) {
+            handler.close(); // Close RTPSMessageReceiver loop gracefully
+        }
 
         for (RTPSWriter<?> w : writerEndpoints) { // Closes periodical announce thread
             w.close();
@@ -175,6 +202,10 @@ public class RTPSParticipant {
 
         writerEndpoints.clear();
         readerEndpoints.clear();
+        writersById.clear();
+        readersById.clear();
+        readersByMatchedWriter.clear();
+        writersByMatchedReader.clear();
         
         // Let TransportProviders do cleanup
         Collection<TransportProvider> transportProviders = TransportProvider.getTransportProviders();
@@ -213,7 +244,9 @@ public class RTPSParticipant {
      * @param prefix GuidPrefix of the participant to ignore
      */
     public void ignoreParticipant(GuidPrefix prefix) {
-        handler.ignoreParticipant(prefix);
+        for (RTPSMessageReceiver handler : handlers) {
+            handler.ignoreParticipant(prefix);
+        }
     }
 
 
@@ -262,60 +295,62 @@ public class RTPSParticipant {
     }
 
     /**
-     * Gets a Reader with given readerId. If readerId is null or
+     * Gets Readers with given readerId. If readerId is null or
      * EntityId_t.UNKNOWN_ENTITY, a search is made to match with corresponding
      * writerId. I.e. If writer is SEDP_BUILTIN_PUBLICATIONS_WRITER, a search is
-     * made for SEDP_BUILTIN_PUBLICATIONS_READER.
+     * made for SEDP_BUILTIN_PUBLICATIONS_READER. For other writers, every reader
+     * matched with the writer is returned, since a writer may address all of its
+     * readers behind the same locator with a single message.
      * 
      * @param readerId
      * @param sourceGuidPrefix 
      * @param writerId
-     * @return RTPSReader
+     * @return a List of RTPSReaders, never null
      */
-    RTPSReader<?> getReader(EntityId readerId, GuidPrefix sourceGuidPrefix, EntityId writerId) {
-        //logger.warn("getReader({}, {}, {}", readerId, sourceGuidPrefix, writerId);
+    List<RTPSReader<?>> getReaders(EntityId readerId, GuidPrefix sourceGuidPrefix, EntityId writerId) {
+        //logger.warn("getReaders({}, {}, {}", readerId, sourceGuidPrefix, writerId);
         if (readerId != null && !EntityId.UNKNOWN_ENTITY.equals(readerId)) {
-            return getReader(readerId);
+            return asList(getReader(readerId));
         }
 
         if (writerId.equals(EntityId.SEDP_BUILTIN_PUBLICATIONS_WRITER)) {
-            return getReader(EntityId.SEDP_BUILTIN_PUBLICATIONS_READER);
+            return asList(getReader(EntityId.SEDP_BUILTIN_PUBLICATIONS_READER));
         }
 
         if (writerId.equals(EntityId.SEDP_BUILTIN_SUBSCRIPTIONS_WRITER)) {
-            return getReader(EntityId.SEDP_BUILTIN_SUBSCRIPTIONS_READER);
+            return asList(getReader(EntityId.SEDP_BUILTIN_SUBSCRIPTIONS_READER));
         }
 
         if (writerId.equals(EntityId.SEDP_BUILTIN_TOPIC_WRITER)) {
-            return getReader(EntityId.SEDP_BUILTIN_TOPIC_READER);
+            return asList(getReader(EntityId.SEDP_BUILTIN_TOPIC_READER));
         }
 
         if (writerId.equals(EntityId.SPDP_BUILTIN_PARTICIPANT_WRITER)) {
-            return getReader(EntityId.SPDP_BUILTIN_PARTICIPANT_READER);
+            return asList(getReader(EntityId.SPDP_BUILTIN_PARTICIPANT_READER));
         }
 
         if (writerId.equals(EntityId.BUILTIN_PARTICIPANT_MESSAGE_WRITER)) {
-            return getReader(EntityId.BUILTIN_PARTICIPANT_MESSAGE_READER);
+            return asList(getReader(EntityId.BUILTIN_PARTICIPANT_MESSAGE_READER));
         }
 
-        Guid writerGuid = new Guid(sourceGuidPrefix, writerId);
         if (EntityId.UNKNOWN_ENTITY.equals(readerId)) {
-            StringBuffer sb = new StringBuffer();
             logger.debug("writer {} wants to talk to UNKNOWN_ENTITY", writerId);
             
-            for (RTPSReader<?> r : readerEndpoints) {
-                logger.trace("Check if reader {} is matched: {}", r.getEntityId(), r.isMatchedWith(writerGuid));
-                sb.append(r.getEntityId() + " ");
-                if (r.isMatchedWith(writerGuid)) {
-                    logger.debug("Found reader {} that is matched with {}", r.getEntityId(), writerGuid);
-                    return r; // TODO: we should return a List<RTPSReader>
-                }
+            List<RTPSReader<?>> readers = readersByMatchedWriter.get(new Guid(sourceGuidPrefix, writerId));
+            if (readers != null) {
+                return readers;
             }
-
-            logger.trace("Known reader entities: {}", sb);
         }
         
-        return null;
+        return Collections.emptyList();
+    }
+
+    private List<RTPSReader<?>> asList(RTPSReader<?> reader) {
+        if (reader == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.<RTPSReader<?>>singletonList(reader);
     }
 
     
@@ -346,10 +381,9 @@ public class RTPSParticipant {
 
         Guid readerGuid = new Guid(sourceGuidPrefix, readerId);
         if (EntityId.UNKNOWN_ENTITY.equals(writerId)) {
-            for (RTPSWriter<?> writer : writerEndpoints) {
-                if (writer.isMatchedWith(readerGuid)) {
-                    return writer; // TODO: we should return a List<RTPSWriter>
-                }
+            List<RTPSWriter<?>> writers = writersByMatchedReader.get(readerGuid);
+            if (writers != null && !writers.isEmpty()) {
+                return writers.get(0); // TODO: we should return a List<RTPSWriter>
             }
         }
         
@@ -366,7 +400,89 @@ public class RTPSParticipant {
     Watchdog getWatchdog() {
         return watchdog;
     }
+
+    /**
+     * Gets the FlowController, that limits the rate of data sent by all the writers of this participant.
+     * @return FlowController, or null if rate is not limited
+     */
+    FlowController getFlowController() {
+        return flowController;
+    }
     
+    /**
+     * Called by RTPSReader, when a remote writer has been matched with it.
+     * 
+     * @param reader RTPSReader
+     * @param writerGuid Guid of the remote writer
+     */
+    void writerMatched(RTPSReader<?> reader, Guid writerGuid) {
+        synchronized (readersByMatchedWriter) { // Guards against removal of the List by writerUnmatched
+            CopyOnWriteArrayList<RTPSReader<?>> readers = readersByMatchedWriter.get(writerGuid);
+            if (readers == null) {
+                readers = new CopyOnWriteArrayList<>();
+                readersByMatchedWriter.put(writerGuid, readers);
+            }
+
+            readers.addIfAbsent(reader);
+        }
+    }
+
+    /**
+     * Called by RTPSReader, when a remote writer is no longer matched with it.
+     * The writer is removed from the index, once no reader is matched with it.
+     * 
+     * @param reader RTPSReader
+     * @param writerGuid Guid of the remote writer
+     */
+    void writerUnmatched(RTPSReader<?> reader, Guid writerGuid) {
+        synchronized (readersByMatchedWriter) {
+            List<RTPSReader<?>> readers = readersByMatchedWriter.get(writerGuid);
+            if (readers != null) {
+                readers.remove(reader);
+                if (readers.isEmpty()) {
+                    readersByMatchedWriter.remove(writerGuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by RTPSWriter, when a remote reader has been matched with it.
+     * 
+     * @param writer RTPSWriter
+     * @param readerGuid Guid of the remote reader
+     */
+    void readerMatched(RTPSWriter<?> writer, Guid readerGuid) {
+        synchronized (writersByMatchedReader) { // Guards against removal of the List by readerUnmatched
+            CopyOnWriteArrayList<RTPSWriter<?>> writers = writersByMatchedReader.get(readerGuid);
+            if (writers == null) {
+                writers = new CopyOnWriteArrayList<>();
+                writersByMatchedReader.put(readerGuid, writers);
+            }
+
+            writers.addIfAbsent(writer);
+        }
+    }
+
+    /**
+     * Called by RTPSWriter, when a remote reader is no longer matched with it.
+     * The reader is removed from the index, once no writer is matched with it.
+     * 
+     * @param writer RTPSWriter
+     * @param readerGuid Guid of the remote reader
+     */
+    void readerUnmatched(RTPSWriter<?> writer, Guid readerGuid) {
+        synchronized (writersByMatchedReader) {
+            List<RTPSWriter<?>> writers = writersByMatchedReader.get(readerGuid);
+            if (writers != null) {
+                writers.remove(writer);
+                if (writers.isEmpty()) {
+                    writersByMatchedReader.remove(readerGuid);
+                }
+            }
+        }
+    }
+
     /**
      * Finds a Reader with given entity id.
      * 
@@ -374,13 +490,7 @@ public class RTPSParticipant {
      * @return RTPSReader
      */
     private RTPSReader<?> getReader(EntityId readerId) {
-        for (RTPSReader<?> reader : readerEndpoints) {
-            if (reader.getGuid().getEntityId().equals(readerId)) {
-                return reader;
-            }
-        }
-
-        return null;
+        return readersById.get(readerId);
     }
 
     /**
@@ -390,16 +500,45 @@ public class RTPSParticipant {
      * @return RTPSWriter
      */
     private RTPSWriter<?> getWriter(EntityId writerId) {
-        for (RTPSWriter<?> writer : writerEndpoints) {
-            if (writer.getGuid().getEntityId().equals(writerId)) {
-                return writer;
-            }
+        return writersById.get(writerId);
+    }
+
+    /**
+     * Starts RTPSMessageReceivers. If more than one receiver thread is configured,
+     * each RTPSMessageReceiver gets its own queue, and a MessageDispatcher partitions
+     * incoming messages to them by the GuidPrefix of the sending participant.
+     * 
+     * @param queue a queue, that network receivers produce into
+     */
+    private void startMessageReceivers(BlockingQueue<ReceiveBuffer> queue) {
+        int threads = config.getMessageReceiverThreads();
+        if (threads <= 1) {
+            RTPSMessageReceiver handler = new RTPSMessageReceiver(aPlugin.getCryptoPlugin(), this, queue, config);
+            handlers.add(handler);
+            threadPoolExecutor.execute(handler);
+            return;
         }
 
-        return null;
+        // Dispatcher and workers run for the lifetime of this participant. Make room for them,
+        // so that they do not starve scheduled tasks.
+        threadPoolExecutor.setCorePoolSize(threadPoolExecutor.getCorePoolSize() + threads);
+
+        List<BlockingQueue<ReceiveBuffer>> workerQueues = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<ReceiveBuffer> workerQueue = new LinkedBlockingQueue<>(config.getMessageQueueSize());
+            workerQueues.add(workerQueue);
+            RTPSMessageReceiver handler = new RTPSMessageReceiver(aPlugin.getCryptoPlugin(), this, workerQueue, config);
+            handlers.add(handler);
+            threadPoolExecutor.execute(handler);
+        }
+
+        dispatcher = new MessageDispatcher(queue, workerQueues);
+        threadPoolExecutor.execute(dispatcher);
+        
+        logger.debug("Started {} message receivers", threads);
     }
 
-    private int startReceiversForURIs(BlockingQueue<byte[]> queue, List<URI> listenerURIs, 
+    private int startReceiversForURIs(BlockingQueue<ReceiveBuffer> queue, List<URI> listenerURIs, 
             boolean discovery) {
     	int count = 0;
         for (URI uri : listenerURIs) {
@@ -4,9 +4,10 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,14 +18,19 @@ import net.sf.jrtps.builtin.ParticipantData;
 import net.sf.jrtps.builtin.PublicationData;
 import net.sf.jrtps.message.AckNack;
 import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataFrag;
 import net.sf.jrtps.message.Gap;
 import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.HeartbeatFrag;
 import net.sf.jrtps.message.InfoDestination;
 import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.NackFrag;
 import net.sf.jrtps.message.parameter.DirectedWrite;
 import net.sf.jrtps.message.parameter.ParameterId;
 import net.sf.jrtps.message.parameter.QosReliability;
+import net.sf.jrtps.rtps.WriterProxy.ReceivedData;
 import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
 import net.sf.jrtps.types.Guid;
 import net.sf.jrtps.types.GuidPrefix;
 import net.sf.jrtps.types.Locator;
@@ -53,12 +59,13 @@ import net.sf.jrtps.util.Watchdog.Task;
 public class RTPSReader<T> extends Endpoint {
 	private static final Logger logger = LoggerFactory.getLogger(RTPSReader.class);
 
-	private final Map<Guid, WriterProxy> writerProxies = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Guid, WriterProxy> writerProxies = new ConcurrentHashMap<>();
 	private final ReaderCache<T> rCache;
 	private final int heartbeatResponseDelay;
 	private final int heartbeatSuppressionDuration;
 
-	private int ackNackCount = 0;
+	private final AtomicInteger ackNackCount = new AtomicInteger();
+	private final AtomicInteger nackFragCount = new AtomicInteger();
 
 	private List<WriterLivelinessListener> livelinessListeners = new LinkedList<>();
 
@@ -104,6 +111,7 @@ public class RTPSReader<T> extends Endpoint {
 			wp.setLivelinessTask(createLivelinessTask(wp));
 
 			writerProxies.put(writerData.getBuiltinTopicKey(), wp);
+			getParticipant().writerMatched(this, writerData.getBuiltinTopicKey());
 		}
 		else {
 			wp.update(writerData);
@@ -174,6 +182,9 @@ public class RTPSReader<T> extends Endpoint {
 	public WriterProxy removeMatchedWriter(PublicationData writerData) {
 		logger.debug("[{}] Removing matchedWriter {}", getEntityId(), writerData.getBuiltinTopicKey());
 		WriterProxy proxy = writerProxies.remove(writerData.getBuiltinTopicKey());
+		if (proxy != null) {
+			getParticipant().writerUnmatched(this, writerData.getBuiltinTopicKey());
+		}
 
 		return proxy;
 	}
@@ -245,12 +256,15 @@ public class RTPSReader<T> extends Endpoint {
 
 
 	/**
-	 * Handle incoming HeartBeat message.
+	 * Handle incoming HeartBeat message. Samples before the first sequence number 
+	 * of Heartbeat are not waited for anymore, and samples held in reorder window 
+	 * are released.
 	 * 
+	 * @param id Id of the set of changes
 	 * @param senderGuidPrefix
 	 * @param hb
 	 */
-	void onHeartbeat(GuidPrefix senderGuidPrefix, Heartbeat hb) {
+	void onHeartbeat(int id, GuidPrefix senderGuidPrefix, Heartbeat hb) {
 		logger.debug("[{}] Got Heartbeat: #{} {}-{}, F:{}, L:{} from {}", getEntityId(), hb.getCount(),
 				hb.getFirstSequenceNumber(), hb.getLastSequenceNumber(), hb.finalFlag(), hb.livelinessFlag(),
 				senderGuidPrefix);
@@ -264,6 +278,8 @@ public class RTPSReader<T> extends Endpoint {
 					//wp.assertLiveliness(); Not really needed, every HB asserts liveliness??? 
 				}
 
+				addChanges(id, wp, wp.applyHeartbeat(hb));
+
 				if (isReliable()) { // Only reliable readers respond to
 					// heartbeat
 					boolean doSend = false;
@@ -292,12 +308,39 @@ public class RTPSReader<T> extends Endpoint {
 	}
 
 	/**
-	 * Handles Gap submessage by updating WriterProxy.
+	 * Handle incoming HeartbeatFrag message. If some of the announced fragments
+	 * are missing, a NackFrag is sent to writer.
+	 * 
+	 * @param senderGuidPrefix
+	 * @param hbf
+	 */
+	void onHeartbeatFrag(GuidPrefix senderGuidPrefix, HeartbeatFrag hbf) {
+		logger.debug("[{}] Got HeartbeatFrag: #{} {}, last fragment {} from {}", getEntityId(), hbf.getCount(),
+				hbf.getWriterSequenceNumber(), hbf.getLastFragmentNumber(), senderGuidPrefix);
+
+		WriterProxy wp = getWriterProxy(new Guid(senderGuidPrefix, hbf.getWriterId()));
+		if (wp != null) {
+			wp.assertLiveliness();
+
+			if (isReliable() && wp.heartbeatFragReceived(hbf)) {
+				sendNackFrag(wp, hbf.getWriterSequenceNumber().getAsLong(), hbf.getLastFragmentNumber());
+			}
+		} 
+		else {
+			logger.warn("[{}] Discarding HeartbeatFrag from unknown writer {}, {}", getEntityId(), senderGuidPrefix,
+					hbf.getWriterId());
+		}
+	}
+
+	/**
+	 * Handles Gap submessage by updating WriterProxy. Samples waiting
+	 * for the sequence numbers in Gap are released.
 	 * 
+	 * @param id Id of the set of changes
 	 * @param sourceGuidPrefix
 	 * @param gap
 	 */
-	void onGap(GuidPrefix sourcePrefix, Gap gap) {
+	void onGap(int id, GuidPrefix sourcePrefix, Gap gap) {
 		Guid writerGuid = new Guid(sourcePrefix, gap.getWriterId());
 
 		WriterProxy wp = getWriterProxy(writerGuid);
@@ -305,7 +348,7 @@ public class RTPSReader<T> extends Endpoint {
 			wp.assertLiveliness();
 
 			logger.debug("[{}] Applying {}", getEntityId(), gap);
-			wp.applyGap(gap);
+			addChanges(id, wp, wp.applyGap(gap));
 		}
 	}
 
@@ -328,23 +371,73 @@ public class RTPSReader<T> extends Endpoint {
 		WriterProxy wp = getWriterProxy(writerGuid);
 		if (wp != null) {
 			wp.assertLiveliness();
-
-			if (wp.acceptData(data.getWriterSequenceNumber())) {
-				if (checkDirectedWrite(data)) { 
-					// Add Data to cache only if permitted by DirectedWrite, or if DirectedWrite does not exist
-					logger.debug("[{}] Got Data: #{}", getEntityId(), data.getWriterSequenceNumber());
-					rCache.addChange(id, writerGuid, data, timeStamp);
-				}
-			} else {
-				logger.debug("[{}] Data was rejected: Data seq-num={}, proxy seq-num={}", getEntityId(),
-						data.getWriterSequenceNumber(), wp.getGreatestDataSeqNum());
-			}
+			handleData(id, wp, data, timeStamp);
 		} else {
 			logger.warn("[{}] Discarding Data from unknown writer {}, {}", getEntityId(), sourcePrefix,
 					data.getWriterId());
 		}
 	}
 
+	/**
+	 * Handle incoming DataFrag message. Fragments are collected into a reassembly buffer
+	 * of the corresponding WriterProxy. Once all the fragments of a sample have been received,
+	 * sample is handled as if it was received in a single Data submessage.
+	 * 
+	 * @param id Id of the set of changes
+	 * @param sourcePrefix GuidPrefix of the remote participant sending DataFrag message
+	 * @param dataFrag DataFrag SubMessage
+	 * @param timeStamp timestamp of the data
+	 * @see #onData(int, GuidPrefix, Data, Time)
+	 */
+	void onDataFrag(int id, GuidPrefix sourcePrefix, DataFrag dataFrag, Time timeStamp) {
+		Guid writerGuid = new Guid(sourcePrefix, dataFrag.getWriterId());
+
+		WriterProxy wp = getWriterProxy(writerGuid);
+		if (wp != null) {
+			wp.assertLiveliness();
+
+			logger.trace("[{}] Got DataFrag: #{}, fragments {}-{}", getEntityId(), dataFrag.getWriterSequenceNumber(), 
+					dataFrag.getFragmentStartingNumber(), 
+					dataFrag.getFragmentStartingNumber() + dataFrag.getFragmentsInSubmessage() - 1);
+
+			FragmentBuffer fb = wp.addFragments(dataFrag);
+			if (fb != null) {
+				logger.debug("[{}] Reassembled #{} from {} fragments", getEntityId(), fb.getSequenceNumber(), 
+						fb.getFragmentCount());
+				handleData(id, wp, fb.toData(dataFrag.getReaderId(), dataFrag.getWriterId()), timeStamp);
+			}
+		} else {
+			logger.warn("[{}] Discarding DataFrag from unknown writer {}, {}", getEntityId(), sourcePrefix,
+					dataFrag.getWriterId());
+		}
+	}
+
+	private void handleData(int id, WriterProxy wp, Data data, Time timeStamp) {
+		List<ReceivedData> released = wp.addData(data, timeStamp);
+		if (released.isEmpty()) {
+			logger.debug("[{}] Data was not released: Data seq-num={}, proxy seq-num={}", getEntityId(),
+					data.getWriterSequenceNumber(), wp.getGreatestDataSeqNum());
+		}
+
+		addChanges(id, wp, released);
+	}
+
+	/**
+	 * Adds Data released by WriterProxy to ReaderCache.
+	 */
+	private void addChanges(int id, WriterProxy wp, List<ReceivedData> released) {
+		for (ReceivedData rd : released) {
+			Data data = rd.getData();
+			if (checkDirectedWrite(data)) { 
+				// Add Data to cache only if permitted by DirectedWrite, or if DirectedWrite does not exist
+				logger.debug("[{}] Got Data: #{}", getEntityId(), data.getWriterSequenceNumber());
+				rCache.addChange(id, wp.getGuid(), data, rd.getTimestamp());
+			}
+			
+			rd.release(); // ReaderCache has retained what it needs
+		}
+	}
+
 	/**
 	 * This methods is called by RTPSMessageReceiver to signal that a message reception has started.
 	 * This method is called for the first message received for this RTPSReader.
@@ -409,6 +502,15 @@ public class RTPSReader<T> extends Endpoint {
 				//an.finalFlag(true);
 				m.addSubMessage(an);
 
+				// Request missing fragments of the samples being reassembled
+				for (FragmentBuffer fb : wp.getFragmentBuffers()) {
+					FragmentNumberSet missing = fb.getMissingFragments(fb.getFragmentCount());
+					if (missing != null) {
+						m.addSubMessage(new NackFrag(getEntityId(), wp.getEntityId(), fb.getSequenceNumber(), 
+								missing, nackFragCount.incrementAndGet()));
+					}
+				}
+
 				GuidPrefix targetPrefix = wp.getGuid().getPrefix();
 
 				logger.debug("[{}] Sending AckNack: #{} {}, F:{} to {}", getEntityId(), an.getCount(),
@@ -422,6 +524,33 @@ public class RTPSReader<T> extends Endpoint {
 		getParticipant().schedule(r, heartbeatResponseDelay);
 	}
 
+	private void sendNackFrag(final WriterProxy wp, final long seqNum, final int lastFragmentNum) {
+		Runnable r = new Runnable() {
+			public void run() {
+				// Missing fragments are resolved only after response delay, since remaining 
+				// fragments might have been received meanwhile
+				FragmentNumberSet missing = wp.getMissingFragments(seqNum, lastFragmentNum);
+				if (missing == null) {
+					logger.trace("[{}] All the fragments of #{} have been received", getEntityId(), seqNum);
+					return;
+				}
+
+				Message m = new Message(getGuid().getPrefix());
+				m.addSubMessage(new InfoDestination(wp.getGuid().getPrefix()));
+
+				NackFrag nf = new NackFrag(getEntityId(), wp.getEntityId(), seqNum, missing, nackFragCount.incrementAndGet());
+				m.addSubMessage(nf);
+
+				logger.debug("[{}] Sending NackFrag: #{} {}, {} to {}", getEntityId(), nf.getCount(), seqNum, 
+						missing, wp.getGuid().getPrefix());
+
+				sendMessage(m, wp);
+			}
+		};
+
+		getParticipant().schedule(r, heartbeatResponseDelay);
+	}
+
 	private AckNack createAckNack(WriterProxy wp) {
 		// This is a simple AckNack, that can be optimized if store
 		// out-of-order data samples in a separate cache.
@@ -439,7 +568,7 @@ public class RTPSReader<T> extends Endpoint {
 		//        }
 		SequenceNumberSet snSet = wp.getSequenceNumberSet();
 
-		AckNack an = new AckNack(getEntityId(), wp.getEntityId(), snSet, ++ackNackCount);
+		AckNack an = new AckNack(getEntityId(), wp.getEntityId(), snSet, ackNackCount.incrementAndGet());
 
 		return an;
 	}
@@ -457,7 +586,14 @@ public class RTPSReader<T> extends Endpoint {
 
 			//wp.setLivelinessTask(createLivelinessTask(wp)); // No need to set liveliness task, since liveliness is infinite
 
-			writerProxies.put(writerGuid, wp);
+			// Message receivers may run in parallel; the first proxy registered wins
+			WriterProxy existing = writerProxies.putIfAbsent(writerGuid, wp);
+			if (existing != null) {
+				wp = existing;
+			}
+			else {
+				getParticipant().writerMatched(this, writerGuid);
+			}
 		}
 
 		return wp;
@@ -1,14 +1,20 @@
 package net.sf.jrtps.rtps;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.sf.jrtps.Configuration;
 import net.sf.jrtps.QualityOfService;
@@ -16,25 +22,30 @@ import net.sf.jrtps.builtin.SubscriptionData;
 import net.sf.jrtps.message.AckNack;
 import net.sf.jrtps.message.Data;
 import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.DataFrag;
 import net.sf.jrtps.message.Gap;
 import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.HeartbeatFrag;
 import net.sf.jrtps.message.InfoDestination;
 import net.sf.jrtps.message.InfoTimestamp;
 import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.NackFrag;
 import net.sf.jrtps.message.parameter.CoherentSet;
 import net.sf.jrtps.message.parameter.ContentFilterProperty;
 import net.sf.jrtps.message.parameter.DataWriterPolicy;
-import net.sf.jrtps.message.parameter.KeyHash;
 import net.sf.jrtps.message.parameter.Parameter;
 import net.sf.jrtps.message.parameter.ParameterList;
 import net.sf.jrtps.message.parameter.QosDurability;
+import net.sf.jrtps.message.parameter.QosLatencyBudget;
 import net.sf.jrtps.message.parameter.QosPolicy;
 import net.sf.jrtps.message.parameter.QosReliability;
 import net.sf.jrtps.message.parameter.StatusInfo;
 import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
 import net.sf.jrtps.types.Guid;
 import net.sf.jrtps.types.GuidPrefix;
 import net.sf.jrtps.types.Locator;
+import net.sf.jrtps.types.SequenceNumberSet;
 import net.sf.jrtps.udds.ContentFilter;
 
 import org.slf4j.Logger;
@@ -56,6 +67,28 @@ import org.slf4j.LoggerFactory;
  */
 public class RTPSWriter<T> extends Endpoint {
 	private static final Logger logger = LoggerFactory.getLogger(RTPSWriter.class);
+	/**
+	 * Number of bytes reserved for RTPS header and submessages other than
+	 * serialized payload, when deciding if a sample needs to be fragmented.
+	 */
+	private static final int MESSAGE_OVERHEAD = 512;
+	/**
+	 * Estimated number of bytes needed by a Data submessage in addition to serialized payload.
+	 * Data has a header and fixed fields of 24 bytes, and it is preceded by an InfoTimestamp 
+	 * of 12 bytes. Inline QoS of KeyHash, StatusInfo, CoherentSet and sentinel take 44 bytes. 
+	 * The rest is reserved for the inline QoS policies of the writer.
+	 */
+	private static final int DATA_OVERHEAD = 128;
+	/**
+	 * Size of a Gap submessage with an empty gap list. Header 4, reader and writer ids 8, 
+	 * gapStart 8, and gapList with bitmap base and number of bits 12.
+	 */
+	private static final int GAP_SIZE = 32;
+	/**
+	 * Size of a Heartbeat submessage. Header 4, reader and writer ids 8, first and last
+	 * sequence numbers 16, and count 4.
+	 */
+	private static final int HEARTBEAT_SIZE = 32;
 
 	private final Map<Guid, ReaderProxy> readerProxies = new ConcurrentHashMap<>();
 	/**
@@ -67,11 +100,23 @@ public class RTPSWriter<T> extends Endpoint {
 	private final int nackResponseDelay;
 	private final int heartbeatPeriod;
 	private final boolean pushMode;
+	private final int maxPayloadSize;
+	private final int fragmentSize;
+	private final int fragmentsPerMessage;
+	private final long latencyBudget; // milliseconds, 0 if changes are notified immediately
+
+	private final AtomicBoolean budgetNotificationScheduled = new AtomicBoolean();
+	private volatile long notifiedSeqNum; // seqNumMax at the time of last notification
+	private volatile int averageDataSize = DATA_OVERHEAD; // Estimate of the size of a Data submessage
 
 	private int hbCount; // heartbeat counter. incremented each time hb is sent
+	private int hbFragCount; // heartbeatFrag counter. incremented each time hbFrag is sent
 
 	private ScheduledFuture<?> hbAnnounceTask;
 
+	private volatile FlowController flowController;
+	private final Pacer pacer;
+
 
 
 	RTPSWriter(RTPSParticipant participant, EntityId entityId, String topicName, WriterCache<T> wCache,
@@ -82,6 +127,20 @@ public class RTPSWriter<T> extends Endpoint {
 		this.nackResponseDelay = configuration.getNackResponseDelay();
 		this.heartbeatPeriod = configuration.getHeartbeatPeriod();
 		this.pushMode = configuration.getPushMode();
+		this.pacer = new Pacer(configuration.getWriterFlowControlQueueSize());
+
+		// DataFrag has fragmentSize and fragmentsInSubmessage as unsigned shorts
+		this.maxPayloadSize = Math.min(configuration.getBufferSize(), 0xffff) - MESSAGE_OVERHEAD;
+		this.fragmentSize = Math.max(1, Math.min(configuration.getFragmentSize(), maxPayloadSize));
+		this.fragmentsPerMessage = Math.max(1, maxPayloadSize / fragmentSize);
+
+		if (configuration.getWriterFlowControlRate() > 0 && entityId.isUserDefinedEntity()) {
+			this.flowController = new TokenBucketFlowController(configuration.getWriterFlowControlRate(), 
+					configuration.getWriterFlowControlBurst());
+		}
+
+		QosLatencyBudget budget = qos.getLatencyBudget();
+		this.latencyBudget = budget.getDuration().isInfinite() ? 0 : budget.getDuration().asMillis();
 
 		if (isReliable()) {
 			Runnable r = new Runnable() {
@@ -114,9 +173,35 @@ public class RTPSWriter<T> extends Endpoint {
 	 * Notify every matched RTPSReader. For reliable readers, a Heartbeat is
 	 * sent. For best effort readers Data is sent. This provides means to create
 	 * multiple changes, before announcing the state to readers.
+	 * <p>
+	 * If this writer has a LatencyBudget, notification is delayed by at most the budget.
+	 * Changes made in the meantime are sent with the same messages. Readers are notified
+	 * immediately, once the pending changes are estimated to fill a message.
 	 */
 	public void notifyReaders() {
-		notifyReaders(this.pushMode);
+		if (latencyBudget <= 0 || pendingChangesFillMessage()) {
+			notifyReaders(this.pushMode);
+			return;
+		}
+
+		if (budgetNotificationScheduled.compareAndSet(false, true)) {
+			getParticipant().schedule(new Runnable() {
+				@Override
+				public void run() {
+					budgetNotificationScheduled.set(false);
+					try {
+						notifyReaders(pushMode);
+					} catch (Exception e) {
+						logger.error("Got exception while notifying readers after latency budget", e);
+					}
+				}
+			}, latencyBudget);
+		}
+	}
+
+	private boolean pendingChangesFillMessage() {
+		long pendingChanges = writer_cache.getSeqNumMax() - notifiedSeqNum;
+		return pendingChanges * averageDataSize >= maxPayloadSize;
 	}
 
 	/**
@@ -124,13 +209,15 @@ public class RTPSWriter<T> extends Endpoint {
 	 * @param pushMode 
 	 */
 	private void notifyReaders(boolean pushMode) {
+		notifiedSeqNum = writer_cache.getSeqNumMax();
+
 		if (readerProxies.size() > 0) {
 			logger.debug("[{}] Notifying {} matched readers of changes in history cache", getEntityId(),
 					readerProxies.size());
 
-			for (ReaderProxy proxy : readerProxies.values()) {
-				Guid guid = proxy.getSubscriptionData().getBuiltinTopicKey();
-				notifyReader(guid, pushMode);
+			DataCache dataCache = new DataCache(); // Encode each sample once for all the readers
+			for (Destination dest : groupReaders(pushMode)) {
+				notifyDestination(dest, pushMode, dataCache);
 			}
 		}
 	}
@@ -141,14 +228,14 @@ public class RTPSWriter<T> extends Endpoint {
 	 * @param guid Guid of the reader to notify
 	 */
 	public void notifyReader(Guid guid) {
-		notifyReader(guid, this.pushMode);
+		notifyReader(guid, this.pushMode, null);
 	}
 
 	/**
 	 * Notify a reader. Heartbeat announce thread calls this method always with 'false' as pushMode.
 	 * @param pushMode 
 	 */
-	private void notifyReader(Guid guid, boolean pushMode) {
+	private void notifyReader(Guid guid, boolean pushMode, DataCache dataCache) {
 		ReaderProxy proxy = readerProxies.get(guid);
 
 		if (proxy == null) {
@@ -156,19 +243,84 @@ public class RTPSWriter<T> extends Endpoint {
 			return;
 		}
 
+		notifyDestination(new Destination(proxy), pushMode, dataCache);
+	}
+
+	/**
+	 * Notifies readers of a Destination. Heartbeat is sent to reliable readers, unless
+	 * in pushMode. Otherwise, the samples not yet sent are sent.
+	 */
+	private void notifyDestination(Destination dest, boolean pushMode, DataCache dataCache) {
 		// Send HB only if proxy is reliable and we are not configured to be in pushMode
-		if (proxy.isReliable() && !pushMode) {
-			sendHeartbeat(proxy);
+		if (dest.isReliable() && !pushMode) {
+			sendHeartbeat(dest, false);
 		} 
 		else {
-			long readersHighestSeqNum = proxy.getReadersHighestSeqNum();            
-			sendData(proxy, readersHighestSeqNum);
+			long readersHighestSeqNum = dest.getReadersHighestSeqNum();            
+			long lastSeqNum = sendData(dest, readersHighestSeqNum, dataCache);
+
+			if (!dest.isReliable()) {
+				// For best effort readers, update readers highest seqnum. Samples written
+				// while sending are not yet sent, so they are left for the next notification.
+				for (ReaderProxy proxy : dest.proxies) {
+					proxy.setReadersHighestSeqNum(lastSeqNum);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Groups matched readers by the Locator messages are sent to. Readers behind the same
+	 * Locator, with the same reliability and inline QoS expectations, are notified with
+	 * a single message addressed to EntityId.UNKNOWN_ENTITY. Readers with a content filter
+	 * are notified individually, as are all the readers of a secure writer.
+	 * <p>
+	 * If Data is going to be sent, readers are grouped only with the readers having the
+	 * same readersHighestSeqNum. Otherwise, readers ahead of the others in the group 
+	 * would receive the samples they already have.
+	 * 
+	 * @param pushMode whether or not Data is sent to reliable readers
+	 * @return Destinations
+	 */
+	private Collection<Destination> groupReaders(boolean pushMode) {
+		List<Destination> destinations = new LinkedList<>();
+		Map<List<Object>, List<ReaderProxy>> groups = new HashMap<>();
+
+		for (ReaderProxy proxy : readerProxies.values()) {
+			Locator locator = proxy.getGroupLocator();
+			if (isSecure() || locator == null || proxy.getSubscriptionData().getContentFilter() != null) {
+				destinations.add(new Destination(proxy));
+				continue;
+			}
 
-			if (!proxy.isReliable()) {
-				// For best effort readers, update readers highest seqnum
-				proxy.setReadersHighestSeqNum(writer_cache.getSeqNumMax());
+			List<Object> key;
+			if (pushMode || !proxy.isReliable()) {
+				key = Arrays.<Object>asList(locator, proxy.isReliable(), proxy.expectsInlineQoS(), 
+						proxy.getReadersHighestSeqNum());
 			}
+			else { // Only a Heartbeat is sent
+				key = Arrays.<Object>asList(locator, proxy.isReliable(), proxy.expectsInlineQoS());
+			}
+
+			List<ReaderProxy> group = groups.get(key);
+			if (group == null) {
+				group = new LinkedList<>();
+				groups.put(key, group);
+			}
+			group.add(proxy);
 		}
+
+		for (Map.Entry<List<Object>, List<ReaderProxy>> e : groups.entrySet()) {
+			List<ReaderProxy> group = e.getValue();
+			if (group.size() == 1) {
+				destinations.add(new Destination(group.get(0)));
+			}
+			else {
+				destinations.add(new Destination(group, (Locator) e.getKey().get(0)));
+			}
+		}
+
+		return destinations;
 	}
 
 	/**
@@ -189,7 +341,22 @@ public class RTPSWriter<T> extends Endpoint {
 			hbAnnounceTask.cancel(true);
 		}
 
+		for (Guid readerGuid : readerProxies.keySet()) {
+			getParticipant().readerUnmatched(this, readerGuid);
+		}
 		readerProxies.clear();
+		pacer.clear();
+	}
+
+	/**
+	 * Sets the FlowController of this writer. FlowController limits the rate, at which
+	 * samples are sent to readers. In addition, all the writers of a participant are limited
+	 * by the FlowController of the participant, if one is configured.
+	 * 
+	 * @param flowController FlowController, or null if rate is not limited
+	 */
+	public void setFlowController(FlowController flowController) {
+		this.flowController = flowController;
 	}
 
 	/**
@@ -207,6 +374,7 @@ public class RTPSWriter<T> extends Endpoint {
 			proxy.preferMulticast(getConfiguration().preferMulticast());
 
 			readerProxies.put(readerData.getBuiltinTopicKey(), proxy);
+			getParticipant().readerMatched(this, readerData.getBuiltinTopicKey());
 		}
 		else {
 			proxy.update(readerData);
@@ -272,7 +440,9 @@ public class RTPSWriter<T> extends Endpoint {
 	 * @param readerData SubscriptionData of the reader to be removed
 	 */
 	public void removeMatchedReader(SubscriptionData readerData) {
-		readerProxies.remove(readerData.getBuiltinTopicKey());
+		if (readerProxies.remove(readerData.getBuiltinTopicKey()) != null) {
+			getParticipant().readerUnmatched(this, readerData.getBuiltinTopicKey());
+		}
 		logger.debug("[{}] Removed matchedReader {}, {}", getEntityId(), readerData.getBuiltinTopicKey());
 	}
 
@@ -336,10 +506,16 @@ public class RTPSWriter<T> extends Endpoint {
 		final ReaderProxy proxy = readerProxies.get(new Guid(senderPrefix, ackNack.getReaderId()));
 		if (proxy != null) {
 			if (proxy.ackNackReceived(ackNack)) {
+				// Every sample before bitmap base has been received by reader
+				long ackedSeqNum = ackNack.getReaderSNState().getBitmapBase() - 1;
+				if (ackedSeqNum > proxy.getReadersHighestSeqNum()) {
+					proxy.setReadersHighestSeqNum(ackedSeqNum);
+				}
+
 				Runnable r = new Runnable() {
 					@Override
 					public void run() {
-						sendData(proxy, ackNack.getReaderSNState().getBitmapBase() - 1);
+						sendRepairs(proxy, ackNack.getReaderSNState());
 					}
 				};
 				
@@ -352,6 +528,63 @@ public class RTPSWriter<T> extends Endpoint {
 		}
 	}
 
+	/**
+	 * Handle incoming NackFrag message. Only the fragments requested are sent again.
+	 * 
+	 * @param senderPrefix
+	 * @param nackFrag
+	 */
+	void onNackFrag(GuidPrefix senderPrefix, final NackFrag nackFrag) {
+		logger.debug("[{}] Got NackFrag: #{} {}, {} from {}", getEntityId(), nackFrag.getCount(),
+				nackFrag.getWriterSequenceNumber(), nackFrag.getFragmentNumberState(), senderPrefix);
+
+		final ReaderProxy proxy = readerProxies.get(new Guid(senderPrefix, nackFrag.getReaderId()));
+		if (proxy != null) {
+			if (proxy.nackFragReceived(nackFrag)) {
+				Runnable r = new Runnable() {
+					@Override
+					public void run() {
+						resendFragments(proxy, nackFrag.getWriterSequenceNumber().getAsLong(), 
+								nackFrag.getFragmentNumberState());
+					}
+				};
+
+				logger.trace("[{}] Wait for nack response delay: {} ms", getEntityId(), nackResponseDelay);
+				getParticipant().schedule(r, nackResponseDelay);
+			}
+		} 
+		else {
+			logger.warn("[{}] Discarding NackFrag from unknown reader {}", getEntityId(), nackFrag.getReaderId());
+		}
+	}
+
+	/**
+	 * Sends requested fragments of a sample to reader. If the sample is no longer
+	 * available in history cache, a Gap is sent instead.
+	 */
+	private void resendFragments(ReaderProxy proxy, long seqNum, FragmentNumberSet fragments) {
+		Sample<T> sample = writer_cache.getSample(seqNum);
+		if (sample == null) {
+			logger.debug("[{}] Sample #{} is not available anymore, sending Gap", getEntityId(), seqNum);
+
+			Message m = new Message(getGuid().getPrefix());
+			m.addSubMessage(new InfoDestination(proxy.getGuid().getPrefix()));
+			m.addSubMessage(new Gap(proxy.getEntityId(), getEntityId(), seqNum, seqNum));
+			sendMessage(m, proxy);
+
+			return;
+		}
+
+		try {
+			Data data = createData(proxy.getEntityId(), proxy.expectsInlineQoS(), sample);
+			if (data.getDataEncapsulation() != null) {
+				sendDataFrags(new Destination(proxy), data, sample.getTimestamp(), fragments);
+			}
+		} catch (IOException ioe) {
+			logger.warn("[{}] Failed to resend fragments of #{}", getEntityId(), seqNum, ioe);
+		}
+	}
+
 	/**
 	 * Send data to given participant & reader. readersHighestSeqNum specifies
 	 * which is the first data to be sent.
@@ -359,105 +592,341 @@ public class RTPSWriter<T> extends Endpoint {
 	 * @param targetPrefix
 	 * @param readerId
 	 * @param readersHighestSeqNum
+	 * @return the sequence number, up to which the samples were sent
 	 */
-	private void sendData(ReaderProxy proxy, long readersHighestSeqNum) {
-		Message m = new Message(getGuid().getPrefix());
-		LinkedList<Sample<T>> samples = writer_cache.getSamplesSince(readersHighestSeqNum);
+	private long sendData(Destination dest, long readersHighestSeqNum, DataCache dataCache) {
+		long lastSeqNum = writer_cache.getSeqNumMax(); // Samples written after this are sent later
+		Sample<T> aSample = writer_cache.getSampleAfter(readersHighestSeqNum);
 
-		if (samples.size() == 0) {
-			logger.debug("[{}] Remote reader already has all the data", getEntityId(),
-					proxy, readersHighestSeqNum);
+		if (aSample == null || aSample.getSequenceNumber() > lastSeqNum) {
+			logger.debug("[{}] Remote reader {} already has all the data", getEntityId(), dest);
+			return lastSeqNum;
+		}
+
+		logger.debug("[{}] Sending Data: {}-{} to {}", getEntityId(), aSample.getSequenceNumber(), lastSeqNum, dest);
+
+		// Samples are iterated in history cache, they are not copied
+		MessageBuilder mb = new MessageBuilder(dest, dataCache);
+		while (aSample != null && aSample.getSequenceNumber() <= lastSeqNum) {
+			mb.addSample(aSample);
+			aSample = writer_cache.getSampleAfter(aSample.getSequenceNumber());
+		}
+		mb.finish();
+
+		return lastSeqNum;
+	}
+
+	private static boolean isRequested(int[] bitmaps, int bit) {
+		return (bitmaps[bit / 32] & (0x80000000 >>> (bit % 32))) != 0;
+	}
+
+	/**
+	 * Sends the samples requested by reader in AckNack. Only the sequence numbers set in
+	 * given SequenceNumberSet are sent. A Gap is sent for the ones, that are no longer 
+	 * available in history cache.
+	 * 
+	 * @param proxy ReaderProxy
+	 * @param snSet SequenceNumberSet of AckNack
+	 */
+	private void sendRepairs(ReaderProxy proxy, SequenceNumberSet snSet) {
+		// Bitmaps are walked directly, so that no List of requested sequence numbers is created
+		int[] bitmaps = snSet.getBitmaps();
+		int numBits = Math.min(snSet.getNumBits(), bitmaps.length * 32);
+		int requestedCount = 0;
+		for (int i = 0; i < numBits; i++) {
+			if (isRequested(bitmaps, i)) {
+				requestedCount++;
+			}
+		}
+
+		if (requestedCount == 0) {
+			logger.debug("[{}] Nothing was requested by {}", getEntityId(), proxy);
 			return;
 		}
 
-		ContentFilter<T> filter = null;
-		ContentFilterProperty cfp = proxy.getSubscriptionData().getContentFilter();
-		if (cfp != null) {
-			filter = contentFilters.get(cfp.getSignature()); // might return null
+		MessageBuilder mb = new MessageBuilder(new Destination(proxy), null);
+		int sampleCount = 0;
+		long gapStart = 0;
+		long gapEnd = -1;
+
+		for (int i = 0; i < numBits; i++) {
+			if (!isRequested(bitmaps, i)) {
+				continue;
+			}
+
+			long sn = snSet.getBitmapBase() + i;
+			if (pacer.isQueued(proxy, sn)) {
+				continue; // Not sent yet, reader will get it without a repair
+			}
+
+			Sample<T> sample = writer_cache.getSample(sn);
+			if (sample == null) {
+				if (sn != gapEnd + 1) { // Start a new gap
+					if (gapEnd >= gapStart) {
+						mb.addGap(gapStart, gapEnd);
+					}
+					gapStart = sn;
+				}
+				gapEnd = sn;
+				continue;
+			}
+
+			if (gapEnd >= gapStart) { // Gaps and samples are sent in order
+				mb.addGap(gapStart, gapEnd);
+				gapStart = 0;
+				gapEnd = -1;
+			}
+
+			mb.addSample(sample);
+			sampleCount++;
 		}
-		
-		// Add INFO_DESTINATION
-		m.addSubMessage(new InfoDestination(proxy.getGuid().getPrefix()));
 
-		long prevTimeStamp = 0;
-		EntityId proxyEntityId = proxy.getEntityId();
+		if (gapEnd >= gapStart) {
+			mb.addGap(gapStart, gapEnd);
+		}
+
+		if (sampleCount == 0 && !mb.hasContent()) {
+			logger.debug("[{}] Every sample requested by {} is still queued", getEntityId(), proxy);
+			return;
+		}
+
+		logger.debug("[{}] Sending {} of {} requested samples to {}", getEntityId(), sampleCount, 
+				requestedCount, proxy);
+
+		mb.finish();
+	}
+
+	/**
+	 * MessageBuilder packs Gaps and samples sent to a Destination into as few messages
+	 * as possible. Size of each message is kept within maxPayloadSize. Samples that do not 
+	 * fit into a single message are sent as DataFrags. For reliable readers, a Heartbeat is 
+	 * piggybacked on the last message.
+	 */
+	private class MessageBuilder {
+		private final Destination dest;
+		private final DataCache dataCache; // May be null
+		private final ContentFilter<T> filter;
+
+		private Message m;
+		private int messageSize;
+		private long prevTimeStamp;
+		private long firstSeqNum; // Sequence numbers of the Gaps and Data of current message
+		private long lastSeqNum;
+		private boolean overFlowed = false;
+
+		MessageBuilder(Destination dest, DataCache dataCache) {
+			this.dest = dest;
+			this.dataCache = dataCache;
+			this.filter = dest.getContentFilter();
+
+			newMessage();
+		}
+
+		void addGap(long gapStart, long gapEnd) {
+			reserve(GAP_SIZE);
+			m.addSubMessage(new Gap(dest.readerId, getEntityId(), gapStart, gapEnd));
+			messageSize += GAP_SIZE;
+			included(gapStart, gapEnd);
+		}
+
+		void addSample(Sample<T> aSample) {
+			if (filter != null && !filter.acceptSample(aSample)) { // writer side filtering
+				addGap(aSample.getSequenceNumber(), aSample.getSequenceNumber());
+				return;
+			}
 
-		for (Sample<T> aSample : samples) {
 			try {
+				Data data;
+				if (dataCache != null) {
+					data = dataCache.getData(dest, aSample);
+				}
+				else {
+					data = createData(dest.readerId, dest.expectsInlineQoS(), aSample);
+				}
+				DataEncapsulation dEnc = data.getDataEncapsulation();
+				int dataSize = DATA_OVERHEAD + (dEnc != null ? dEnc.getSerializedPayloadLength() : 0);
 				long timeStamp = aSample.getTimestamp();
+				averageDataSize = (averageDataSize * 7 + dataSize) / 8;
+
+				if (dataSize > maxPayloadSize) {
+					flush(); // Send pending submessages first, so that samples are received in order
+					overFlowed |= sendDataFrags(dest, data, timeStamp, null);
+					return;
+				}
+
+				reserve(dataSize);
 				if (timeStamp > prevTimeStamp) {
-					InfoTimestamp infoTS = new InfoTimestamp(timeStamp);
-					m.addSubMessage(infoTS);
+					m.addSubMessage(new InfoTimestamp(timeStamp));
 				}
 				prevTimeStamp = timeStamp;
 
-				if (filter != null && !filter.acceptSample(aSample)) {
-					// writer side filtering
-					long sn = aSample.getSequenceNumber();
-					Gap gap = new Gap(proxyEntityId, getEntityId(), sn, sn);
-					m.addSubMessage(gap);
-				}
-				else {
-					logger.trace("Marshalling {}", aSample.getData());
-					Data data = createData(proxyEntityId, proxy.expectsInlineQoS(), aSample);
-					m.addSubMessage(data);
-				}
+				m.addSubMessage(data);
+				messageSize += dataSize;
+				included(aSample.getSequenceNumber(), aSample.getSequenceNumber());
 			} catch (IOException ioe) {
 				logger.warn("[{}] Failed to add Sample to message", getEntityId(), ioe);
 			}
 		}
 
-		// add HB at the end of data, see 8.4.15.4 Piggybacking HeartBeat submessages
-		if (proxy.isReliable()) {
-			Heartbeat hb = createHeartbeat(proxyEntityId);
-			hb.finalFlag(false); // Reply needed
-			m.addSubMessage(hb);
+		/**
+		 * Sends the last message.
+		 */
+		void finish() {
+			// add HB at the end of data, see 8.4.15.4 Piggybacking HeartBeat submessages.
+			// It is paced with the data, so it may announce every sample.
+			if (dest.isReliable()) {
+				reserve(HEARTBEAT_SIZE);
+				Heartbeat hb = createHeartbeat(dest.readerId);
+				hb.finalFlag(false); // Reply needed
+				m.addSubMessage(hb);
+				messageSize += HEARTBEAT_SIZE;
+			}
+
+			flush();
+			if (overFlowed && dest.isReliable()) {
+				logger.trace("Sending of Data overflowed. Sending HeartBeat to notify reader.");
+				sendHeartbeat(dest, false);
+			}
+		}
+
+		boolean hasContent() {
+			return m.getSubMessages().size() > 1; // More than InfoDestination
+		}
+
+		private void included(long start, long end) {
+			if (firstSeqNum == 0) {
+				firstSeqNum = start;
+			}
+			lastSeqNum = end;
 		}
 
-		long firstSeqNum = samples.getFirst().getSequenceNumber();
-		long lastSeqNum = samples.getLast().getSequenceNumber();
+		/**
+		 * Sends current message, if given number of bytes does not fit into it.
+		 */
+		private void reserve(int size) {
+			if (messageSize + size > maxPayloadSize) {
+				flush();
+			}
+		}
 
-		logger.debug("[{}] Sending Data: {}-{} to {}", getEntityId(), firstSeqNum, lastSeqNum, proxy);
+		private void flush() {
+			if (hasContent()) {
+				overFlowed |= sendPaced(dest, m, messageSize, firstSeqNum, lastSeqNum);
+				newMessage();
+			}
+		}
 
-		boolean overFlowed = sendMessage(m, proxy);
-		if (overFlowed) {
-			logger.trace("Sending of Data overflowed. Sending HeartBeat to notify reader.");
-			sendHeartbeat(proxy);
+		private void newMessage() {
+			m = new Message(getGuid().getPrefix());
+			m.addSubMessage(new InfoDestination(dest.prefix));
+			messageSize = 0;
+			prevTimeStamp = 0; // Each message needs its own InfoTimestamp
+			firstSeqNum = 0;
+			lastSeqNum = 0;
 		}
 	}
 
-	private void sendHeartbeat(ReaderProxy proxy) {
-		sendHeartbeat(proxy, false);
+	/**
+	 * Sends a sample, that does not fit into a single message, as DataFrag submessages.
+	 * Each DataFrag is sent in its own message, carrying as many consecutive fragments as fits in.
+	 * For reliable readers, a HeartbeatFrag is added after the last fragment.
+	 * 
+	 * @param dest Destination
+	 * @param data Data to fragment
+	 * @param timeStamp timestamp of the sample
+	 * @param fragments Fragments to send. If null, all the fragments are sent
+	 * @return true, if sending of some fragments overflowed
+	 */
+	private boolean sendDataFrags(Destination dest, Data data, long timeStamp, FragmentNumberSet fragments) {
+		byte[] payload = data.getDataEncapsulation().getSerializedPayload();
+		int fragmentCount = (payload.length + fragmentSize - 1) / fragmentSize;
+		long seqNum = data.getWriterSequenceNumber();
+
+		BitSet fragmentsToSend = new BitSet(fragmentCount); // bit n represents fragment n+1
+		if (fragments == null) {
+			fragmentsToSend.set(0, fragmentCount);
+		}
+		else {
+			for (int fragmentNum : fragments.getSequenceNumbers()) {
+				if (fragmentNum > 0 && fragmentNum <= fragmentCount) {
+					fragmentsToSend.set(fragmentNum - 1);
+				}
+			}
+		}
+
+		logger.debug("[{}] Sending {} of {} fragments of Data #{} to {}", getEntityId(),
+				fragmentsToSend.cardinality(), fragmentCount, seqNum, dest);
+
+		boolean overFlowed = false;
+		int idx = fragmentsToSend.nextSetBit(0);
+
+		while (idx >= 0) {
+			int count = Math.min(fragmentsPerMessage, fragmentsToSend.nextClearBit(idx) - idx);
+			// Inline QoS is sent only with the first fragment
+			ParameterList inlineQos = idx == 0 ? data.getInlineQos() : null;
+
+			Message m = new Message(getGuid().getPrefix());
+			m.addSubMessage(new InfoDestination(dest.prefix));
+			m.addSubMessage(new InfoTimestamp(timeStamp));
+			m.addSubMessage(new DataFrag(data.getReaderId(), getEntityId(), seqNum,
+					inlineQos, payload, idx + 1, count, fragmentSize));
+
+			idx = fragmentsToSend.nextSetBit(idx + count);
+			if (idx < 0 && dest.isReliable()) {
+				// Let the reader know all the fragments, so that missing ones can be nacked
+				m.addSubMessage(new HeartbeatFrag(data.getReaderId(), getEntityId(), seqNum, fragmentCount, 
+						hbFragCount++));
+			}
+
+			overFlowed |= sendPaced(dest, m, count * fragmentSize + DATA_OVERHEAD, seqNum, seqNum);
+		}
+
+		return overFlowed;
 	}
 
 	private void sendHeartbeat(ReaderProxy proxy, boolean livelinessFlag) {
+		sendHeartbeat(new Destination(proxy), livelinessFlag);
+	}
+
+	private void sendHeartbeat(Destination dest, boolean livelinessFlag) {
 		Message m = new Message(getGuid().getPrefix());
 
 		// Add INFO_DESTINATION
-		m.addSubMessage(new InfoDestination(proxy.getGuid().getPrefix()));        
+		m.addSubMessage(new InfoDestination(dest.prefix));        
 
-		Heartbeat hb = createHeartbeat(proxy.getEntityId());
+		// Heartbeat is not paced. Announce only the samples, that are not queued anymore.
+		Heartbeat hb = createHeartbeat(dest.readerId, pacer.getLowestQueuedSeqNum(dest) - 1);
 		hb.livelinessFlag(livelinessFlag);
 		m.addSubMessage(hb);
 
 		logger.debug("[{}] Sending Heartbeat: #{} {}-{}, F:{}, L:{} to {}", getEntityId(), hb.getCount(),
 				hb.getFirstSequenceNumber(), hb.getLastSequenceNumber(), hb.finalFlag(), hb.livelinessFlag(),
-				proxy.getGuid());
+				dest);
 
-		sendMessage(m, proxy);
+		dest.send(m);
 
 		if (!livelinessFlag) {
-			proxy.heartbeatSent();
+			for (ReaderProxy proxy : dest.proxies) {
+				proxy.heartbeatSent();
+			}
 		}
 	}
 
 	private Heartbeat createHeartbeat(EntityId entityId) {
+		return createHeartbeat(entityId, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a Heartbeat, that announces samples up to given sequence number at most.
+	 */
+	private Heartbeat createHeartbeat(EntityId entityId, long maxSeqNum) {
 		if (entityId == null) {
 			entityId = EntityId.UNKNOWN_ENTITY;
 		}
 
-		Heartbeat hb = new Heartbeat(entityId, getEntityId(), writer_cache.getSeqNumMin(),
-				writer_cache.getSeqNumMax(), hbCount++);
+		long first = writer_cache.getSeqNumMin();
+		long last = Math.max(Math.min(writer_cache.getSeqNumMax(), maxSeqNum), first - 1);
+		Heartbeat hb = new Heartbeat(entityId, getEntityId(), first, last, hbCount++);
 
 		return hb;
 	}
@@ -482,7 +951,7 @@ public class RTPSWriter<T> extends Endpoint {
 		}
 
 		if (sample.hasKey()) { // Add KeyHash if present
-			inlineQos.add(new KeyHash(sample.getKey().getBytes()));
+			inlineQos.add(sample.getKey()); // KeyHash is immutable, it can be shared with Sample
 		}
 
 		if (!ChangeKind.WRITE.equals(sample.getKind()) && sample.getKind() != null) { 
@@ -495,6 +964,329 @@ public class RTPSWriter<T> extends Endpoint {
 		return data;
 	}
 
+	/**
+	 * Sends a message carrying samples. Message is queued, if a FlowController does 
+	 * not allow it to be sent yet.
+	 * 
+	 * @param size estimated size of the message
+	 * @param firstSeqNum smallest sequence number carried by the message
+	 * @param lastSeqNum largest sequence number carried by the message
+	 * @return true, if an overflow occurred, or the queue was full. Queued messages never 
+	 *         report an overflow.
+	 */
+	private boolean sendPaced(Destination dest, Message m, int size, long firstSeqNum, long lastSeqNum) {
+		if (flowController == null && getParticipant().getFlowController() == null) {
+			return dest.send(m);
+		}
+
+		return pacer.send(new PacedMessage(dest, m, size, firstSeqNum, lastSeqNum));
+	}
+
+	/**
+	 * Pacer holds the messages, that FlowControllers did not allow to be sent yet. 
+	 * They are sent in order, from a task scheduled with the participant. Number of
+	 * queued messages is bounded; messages that do not fit are dropped.
+	 */
+	private class Pacer implements Runnable {
+		private final LinkedList<PacedMessage> queue = new LinkedList<>();
+		// Queued messages carrying samples, by reader and the first sequence number of the message
+		private final Map<ReaderProxy, TreeMap<Long, List<PacedMessage>>> queuedSeqNums = new HashMap<>();
+		private final int maxQueued;
+		private boolean scheduled = false; // Whether or not run() is scheduled or running
+
+		Pacer(int maxQueued) {
+			this.maxQueued = Math.max(1, maxQueued);
+		}
+
+		boolean send(PacedMessage pm) {
+			Destination dest = pm.dest;
+			Message m = pm.message;
+			int size = pm.size;
+
+			synchronized (this) {
+				if (scheduled || getDelay(size) > 0) {
+					if (queue.size() >= maxQueued) {
+						logger.debug("[{}] Pacer queue is full, dropping message to {}", getEntityId(), dest);
+						return true; // Reliable readers get a Heartbeat, and request the samples again
+					}
+
+					queue.add(pm);
+					indexQueued(pm);
+					if (!scheduled) {
+						scheduled = true;
+						schedule(getDelay(size));
+					}
+					return false;
+				}
+
+				sent(size);
+			}
+
+			return dest.send(m);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				PacedMessage pm;
+				synchronized (this) {
+					pm = queue.peek();
+					if (pm == null) {
+						scheduled = false;
+						return;
+					}
+
+					long delay = getDelay(pm.size);
+					if (delay > 0) {
+						schedule(delay);
+						return;
+					}
+
+					queue.poll();
+					unindexQueued(pm);
+					sent(pm.size);
+				}
+
+				pm.dest.send(pm.message);
+			}
+		}
+
+		synchronized void clear() {
+			queue.clear();
+			queuedSeqNums.clear();
+		}
+
+		/**
+		 * Checks, if a message carrying given sequence number is queued for given reader.
+		 * Messages are looked up by their first sequence number. If messages with overlapping 
+		 * ranges are queued, only the closest one is checked, and the sample may be sent again.
+		 */
+		synchronized boolean isQueued(ReaderProxy proxy, long seqNum) {
+			TreeMap<Long, List<PacedMessage>> queued = queuedSeqNums.get(proxy);
+			if (queued == null) {
+				return false;
+			}
+
+			Entry<Long, List<PacedMessage>> e = queued.floorEntry(seqNum);
+			if (e != null) {
+				for (PacedMessage pm : e.getValue()) {
+					if (seqNum <= pm.lastSeqNum) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Gets the smallest sequence number queued for any reader of given Destination.
+		 * @return sequence number, or Long.MAX_VALUE if nothing is queued
+		 */
+		synchronized long getLowestQueuedSeqNum(Destination dest) {
+			long lowest = Long.MAX_VALUE;
+			for (ReaderProxy proxy : dest.proxies) {
+				TreeMap<Long, List<PacedMessage>> queued = queuedSeqNums.get(proxy);
+				if (queued != null) {
+					lowest = Math.min(lowest, queued.firstKey());
+				}
+			}
+
+			return lowest;
+		}
+
+		private void indexQueued(PacedMessage pm) {
+			if (pm.firstSeqNum <= 0) {
+				return; // Message does not carry samples
+			}
+
+			for (ReaderProxy proxy : pm.dest.proxies) {
+				TreeMap<Long, List<PacedMessage>> queued = queuedSeqNums.get(proxy);
+				if (queued == null) {
+					queued = new TreeMap<>();
+					queuedSeqNums.put(proxy, queued);
+				}
+
+				List<PacedMessage> messages = queued.get(pm.firstSeqNum);
+				if (messages == null) {
+					messages = new LinkedList<>();
+					queued.put(pm.firstSeqNum, messages);
+				}
+				messages.add(pm);
+			}
+		}
+
+		private void unindexQueued(PacedMessage pm) {
+			if (pm.firstSeqNum <= 0) {
+				return;
+			}
+
+			for (ReaderProxy proxy : pm.dest.proxies) {
+				TreeMap<Long, List<PacedMessage>> queued = queuedSeqNums.get(proxy);
+				List<PacedMessage> messages = queued.get(pm.firstSeqNum);
+				messages.remove(pm);
+				if (messages.isEmpty()) {
+					queued.remove(pm.firstSeqNum);
+					if (queued.isEmpty()) {
+						queuedSeqNums.remove(proxy);
+					}
+				}
+			}
+		}
+
+		private long getDelay(int size) {
+			long delay = 0;
+			FlowController fc = flowController;
+			if (fc != null) {
+				delay = fc.getDelay(size);
+			}
+
+			fc = getParticipant().getFlowController();
+			if (fc != null) {
+				delay = Math.max(delay, fc.getDelay(size));
+			}
+
+			return delay;
+		}
+
+		private void sent(int size) {
+			FlowController fc = flowController;
+			if (fc != null) {
+				fc.sent(size);
+			}
+
+			fc = getParticipant().getFlowController();
+			if (fc != null) {
+				fc.sent(size);
+			}
+		}
+
+		private void schedule(long delayNanos) {
+			getParticipant().schedule(this, Math.max(1, (delayNanos + 999999) / 1000000));
+		}
+	}
+
+	private class PacedMessage {
+		private final Destination dest;
+		private final Message message;
+		private final int size;
+		private final long firstSeqNum;
+		private final long lastSeqNum;
+
+		PacedMessage(Destination dest, Message message, int size, long firstSeqNum, long lastSeqNum) {
+			this.dest = dest;
+			this.message = message;
+			this.size = size;
+			this.firstSeqNum = firstSeqNum;
+			this.lastSeqNum = lastSeqNum;
+		}
+	}
+
+	/**
+	 * DataCache holds Data submessages created while notifying all the matched readers.
+	 * Data created for one reader is reused for the other readers, so that inline QoS
+	 * and KeyHash are created, and Data is encoded, only once per sample. 
+	 */
+	private class DataCache {
+		private final Map<Long, Data> withInlineQos = new HashMap<>();
+		private final Map<Long, Data> withoutInlineQos = new HashMap<>();
+
+		Data getData(Destination dest, Sample<T> sample) throws IOException {
+			Map<Long, Data> cache = dest.expectsInlineQoS() ? withInlineQos : withoutInlineQos;
+			Data template = cache.get(sample.getSequenceNumber());
+			if (template == null) {
+				template = createData(dest.readerId, dest.expectsInlineQoS(), sample);
+				cache.put(sample.getSequenceNumber(), template);
+			}
+
+			// Each reader gets its own copy, sharing the encoded form with the others
+			return template.withReaderId(dest.readerId);
+		}
+	}
+
+	/**
+	 * Destination of messages sent by this writer. Destination is either a single
+	 * ReaderProxy, or a group of ReaderProxies sharing a Locator. A group is addressed
+	 * with EntityId.UNKNOWN_ENTITY, so that every matched reader behind the Locator
+	 * receives the messages. If readers of a group belong to different participants,
+	 * GuidPrefix.GUIDPREFIX_UNKNOWN is used as destination prefix.
+	 */
+	private class Destination {
+		private final List<ReaderProxy> proxies;
+		private final Locator locator; // null, if messages are sent with the locator of the proxy
+		private final GuidPrefix prefix;
+		private final EntityId readerId;
+
+		Destination(ReaderProxy proxy) {
+			this.proxies = Collections.singletonList(proxy);
+			this.locator = null;
+			this.prefix = proxy.getGuid().getPrefix();
+			this.readerId = proxy.getEntityId();
+		}
+
+		Destination(List<ReaderProxy> proxies, Locator locator) {
+			this.proxies = proxies;
+			this.locator = locator;
+			this.readerId = EntityId.UNKNOWN_ENTITY;
+
+			GuidPrefix commonPrefix = proxies.get(0).getGuid().getPrefix();
+			for (ReaderProxy proxy : proxies) {
+				if (!commonPrefix.equals(proxy.getGuid().getPrefix())) {
+					commonPrefix = GuidPrefix.GUIDPREFIX_UNKNOWN;
+					break;
+				}
+			}
+			this.prefix = commonPrefix;
+		}
+
+		// Readers are grouped only if they agree on reliability and inline QoS
+		boolean isReliable() {
+			return proxies.get(0).isReliable();
+		}
+
+		boolean expectsInlineQoS() {
+			return proxies.get(0).expectsInlineQoS();
+		}
+
+		ContentFilter<T> getContentFilter() {
+			ContentFilterProperty cfp = proxies.get(0).getSubscriptionData().getContentFilter();
+			if (locator != null || cfp == null) {
+				return null; // Readers with a content filter are never grouped
+			}
+
+			return contentFilters.get(cfp.getSignature()); // might return null
+		}
+
+		/**
+		 * Gets the smallest sequence number, that every reader of this Destination has.
+		 */
+		long getReadersHighestSeqNum() {
+			long seqNum = Long.MAX_VALUE;
+			for (ReaderProxy proxy : proxies) {
+				seqNum = Math.min(seqNum, proxy.getReadersHighestSeqNum());
+			}
+
+			return seqNum;
+		}
+
+		boolean send(Message m) {
+			if (locator == null) {
+				return sendMessage(m, proxies.get(0));
+			}
+
+			return sendGroupMessage(m, proxies.get(0)); // Every proxy shares the locator
+		}
+
+		@Override
+		public String toString() {
+			if (locator == null) {
+				return proxies.get(0).toString();
+			}
+
+			return proxies.size() + " readers at " + locator;
+		}
+	}
+
 	/**
 	 * Checks, if a given change number has been acknowledged by every known
 	 * matched reader.
@@ -4,6 +4,7 @@ import java.util.List;
 
 import net.sf.jrtps.builtin.SubscriptionData;
 import net.sf.jrtps.message.AckNack;
+import net.sf.jrtps.message.NackFrag;
 import net.sf.jrtps.types.EntityId;
 import net.sf.jrtps.types.Locator;
 
@@ -20,6 +21,7 @@ public class ReaderProxy extends RemoteProxy {
     private final boolean expectsInlineQoS;
 
     private AckNack latestAckNack;
+    private int latestNackFragCount = -1;
     private long readersHighestSeqNum = 0;
     private boolean active = true;
     private long heartbeatSentTime = 0; // set to 0 after acknack
@@ -122,4 +124,23 @@ public class ReaderProxy extends RemoteProxy {
         
         return false;
     }
+
+    /**
+     * Updates count of latest NackFrag. NackFrag gets accepted only if its
+     * count is greater than previously received NackFrag.
+     * 
+     * @param nackFrag NackFrag
+     * @return true, if NackFrag was accepted
+     */
+    boolean nackFragReceived(NackFrag nackFrag) {
+        if (nackFrag.getCount() > latestNackFragCount) {
+            latestNackFragCount = nackFrag.getCount();
+            return true;
+        }
+
+        log.debug("[{}] NackFrag was not accepted; count {} <= proxys count {}", entityId, 
+                nackFrag.getCount(), latestNackFragCount);
+
+        return false;
+    }
 }
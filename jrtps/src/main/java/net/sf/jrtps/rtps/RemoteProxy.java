@@ -1,10 +1,12 @@
 package net.sf.jrtps.rtps;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.sf.jrtps.builtin.DiscoveredData;
 import net.sf.jrtps.message.parameter.QosReliability;
+import net.sf.jrtps.transport.Transmitter;
 import net.sf.jrtps.transport.TransportProvider;
 import net.sf.jrtps.types.EntityId;
 import net.sf.jrtps.types.Guid;
@@ -23,7 +25,11 @@ public class RemoteProxy {
     
     private DiscoveredData discoveredData;
     private final List<Locator> locators = new LinkedList<>();
-    private boolean preferMulticast = false; // TODO: not used at the moment
+    private boolean preferMulticast = false; // Used when grouping readers by locator
+
+    // Transmitters are cached, so that sending does not need to look them up from TransportProviders
+    private volatile Transmitter transmitter;
+    private volatile Transmitter groupTransmitter;
 
     /**
      * Constructor for RemoteProxy.
@@ -37,7 +43,7 @@ public class RemoteProxy {
         // Add only locators we can handle
         for (Locator locator : locators) {
             TransportProvider provider = TransportProvider.getProviderForKind(locator.getKind());
-            if (provider != null) {
+            if (provider != null && provider.isReachable(locator)) {
                 // TODO: Convert generic locator to UDPLocator, MemLocator etc.
                 //       and remove all the unnecessary stuff Like InetAddress from
                 //       Locator
@@ -71,6 +77,66 @@ public class RemoteProxy {
         return null;
     }
 
+    /**
+     * Gets the Locator used, when messages to this RemoteProxy are shared with other
+     * RemoteProxies. If multicast is preferred and a multicast locator is available,
+     * it is returned. Otherwise, this method returns the same Locator as getLocator().
+     * 
+     * @return Locator
+     */
+    Locator getGroupLocator() {
+        if (preferMulticast) {
+            for (Locator locator : locators) {
+                if (locator.isMulticastLocator()) {
+                    return locator;
+                }
+            }
+        }
+
+        return getLocator();
+    }
+
+    /**
+     * Gets the Transmitter used to send messages to the Locator returned by getLocator().
+     * 
+     * @return Transmitter, or null if there is no suitable Locator
+     * @throws IOException on IOException
+     */
+    Transmitter getTransmitter() throws IOException {
+        Transmitter tr = transmitter;
+        if (tr == null) {
+            tr = createTransmitter(getLocator());
+            transmitter = tr;
+        }
+
+        return tr;
+    }
+
+    /**
+     * Gets the Transmitter used to send messages to the Locator returned by getGroupLocator().
+     * 
+     * @return Transmitter, or null if there is no suitable Locator
+     * @throws IOException on IOException
+     */
+    Transmitter getGroupTransmitter() throws IOException {
+        Transmitter tr = groupTransmitter;
+        if (tr == null) {
+            tr = createTransmitter(getGroupLocator());
+            groupTransmitter = tr;
+        }
+
+        return tr;
+    }
+
+    private Transmitter createTransmitter(Locator locator) throws IOException {
+        if (locator == null) {
+            return null;
+        }
+
+        // Provider exists, since only locators with a provider are added to this proxy
+        return TransportProvider.getProviderForKind(locator.getKind()).getTransmitter(locator);
+    }
+
     /**
      * Gets all the locators for this RemoteProxy
      * @return All the locators that can be handled by TransportProviders
@@ -130,6 +196,7 @@ public class RemoteProxy {
     	// BUG: this concept can be removed. Writer can determine if reader
     	// can receive multicast or not
         this.preferMulticast = preferMulticast;
+        this.groupTransmitter = null;
     }
 
     @Override
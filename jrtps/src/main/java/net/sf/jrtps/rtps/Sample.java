@@ -2,6 +2,7 @@ package net.sf.jrtps.rtps;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
 import net.sf.jrtps.Marshaller;
 import net.sf.jrtps.message.Data;
@@ -18,6 +19,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Represents a sample of type T.
+ * <p>
+ * Header of the Sample is kept in primitive fields, and it is separate from the payload, 
+ * which is held as T, Data or DataEncapsulation. ChangeKind is held as status flags, and 
+ * properties are allocated only when one is set.
  * 
  * @author mcr70
  * 
@@ -26,13 +31,17 @@ import org.slf4j.LoggerFactory;
 public class Sample<T> implements Cloneable {
     private static final Logger log = LoggerFactory.getLogger(Sample.class);
 
-    private HashMap<String, Object> properties = new HashMap<>();
+    private static final byte NO_STATUS = -1;  // Sample does not represent a change
+    private static final byte DISPOSED = 0x1;     // Same as disposeFlag of StatusInfo
+    private static final byte UNREGISTERED = 0x2; // Same as unregisterFlag of StatusInfo
+
+    private Map<String, Object> properties; // Created lazily
     private final Guid writerGuid;
     private final Marshaller<T> marshaller;
     private final long seqNum;
     private final long timestamp;
     private final long sourceTimeStamp;
-    private final StatusInfo sInfo;
+    private final byte status;
 
     private T obj;      // Sample contains either T or Data, lazily convert to other when needed.
     private Data data;
@@ -42,13 +51,13 @@ public class Sample<T> implements Cloneable {
     private CoherentSet coherentSet;
 
     private Sample(Guid writerGuid, Marshaller<T> marshaller, long seqNum, 
-            long timestamp, long sourceTimeStamp, StatusInfo sInfo) {
+            long timestamp, long sourceTimeStamp, byte status) {
         this.writerGuid = writerGuid;
         this.marshaller = marshaller;
         this.seqNum = seqNum;
         this.timestamp = timestamp;        
         this.sourceTimeStamp = sourceTimeStamp;
-        this.sInfo = sInfo;
+        this.status = status;
     }
 
     /**
@@ -57,7 +66,7 @@ public class Sample<T> implements Cloneable {
      * @param seqNum Sequence number
      */
     public Sample(long seqNum) {
-        this(null, null, seqNum, System.currentTimeMillis(), System.currentTimeMillis(), (StatusInfo)null);
+        this(null, null, seqNum, System.currentTimeMillis(), System.currentTimeMillis(), NO_STATUS);
     }
 
     /**
@@ -70,7 +79,7 @@ public class Sample<T> implements Cloneable {
      * @param obj Object of type T
      */
     public Sample(Guid writerGuid, Marshaller<T> m, long seqNum, long timestamp, ChangeKind kind, T obj) {
-        this(writerGuid, m, seqNum, System.currentTimeMillis(), timestamp, new StatusInfo(kind));        
+        this(writerGuid, m, seqNum, System.currentTimeMillis(), timestamp, toStatus(kind));        
         this.obj = obj;
     }
 
@@ -85,24 +94,45 @@ public class Sample<T> implements Cloneable {
      */
     public Sample(Guid writerGuid, Marshaller<T> m, long seqNum, 
             long timestamp, long sourceTimestamp, Data data) {
-        this(writerGuid, m, seqNum, timestamp, sourceTimestamp, data.getStatusInfo());
+        this(writerGuid, m, seqNum, timestamp, sourceTimestamp, toStatus(data));
         this.data = data;
+        data.retain(); // Payload is read from receive buffer, until it is unmarshalled or detached
         
         if (data.inlineQosFlag()) {
             ParameterList inlineQos = data.getInlineQos();
             if (inlineQos != null) {
                 coherentSet = (CoherentSet) inlineQos.getParameter(ParameterId.PID_COHERENT_SET);
+                key = (KeyHash) inlineQos.getParameter(ParameterId.PID_KEY_HASH); // No need to unmarshall for key
             }
         }
     }
 
 
+    /**
+     * This constructor is used to create a Sample from an already marshalled payload,
+     * when writer history is recovered. Payload is unmarshalled only if the data is needed.
+     * @param writerGuid Guid of the writer
+     * @param m Marshaller used
+     * @param seqNum Sequence number
+     * @param timestamp Timestamp of sample
+     * @param sourceTimestamp source timestamp of sample
+     * @param kind ChangeKind
+     * @param key Key of the sample, or null if it does not have a key
+     * @param marshalledData marshalled payload
+     */
+    public Sample(Guid writerGuid, Marshaller<T> m, long seqNum, long timestamp, long sourceTimestamp, 
+            ChangeKind kind, KeyHash key, DataEncapsulation marshalledData) {
+        this(writerGuid, m, seqNum, timestamp, sourceTimestamp, toStatus(kind));
+        this.key = key;
+        this.marshalledData = marshalledData;
+    }
+
     /**
      * Gets the data associated with this Sample.
      * 
      * @return data
      */
-    public T getData() {
+    public synchronized T getData() {
         if (obj != null) {
             return obj;
         }
@@ -114,13 +144,39 @@ public class Sample<T> implements Cloneable {
                 log.warn("Failed to convert Data submessage to java object", e);
             }
             finally {
+                data.release();
                 data = null; // Try to convert only once
             }
         }
+        else if (marshalledData != null && marshaller != null) {
+            try {
+                obj = marshaller.unmarshall(DataEncapsulation.createInstance(marshalledData.getSerializedPayload()));
+            } catch (IOException e) {
+                log.warn("Failed to convert marshalled data to java object", e);
+            }
+        }
 
         return obj;
     }
 
+    /**
+     * Detaches this Sample from the receive buffer it was read from. Payload, that is not yet
+     * unmarshalled, is copied and the receive buffer is released, so that a Sample kept in
+     * history does not hold a pooled buffer.
+     */
+    public synchronized void detach() {
+        if (data == null) {
+            return;
+        }
+
+        byte[] payload = data.copyReceivedPayload();
+        if (payload != null) {
+            marshalledData = DataEncapsulation.wrap(payload);
+            data.release();
+            data = null;
+        }
+    }
+
     /**
      * Gets the timestamp associated with this Sample.
      * Time stamp can be either local timestamp, or remote writers timestamp,
@@ -151,7 +207,7 @@ public class Sample<T> implements Cloneable {
      * @return true, if disposeFlag is set
      */
     public boolean isDisposed() {
-        return sInfo.isDisposed();
+        return status != NO_STATUS && (status & DISPOSED) == DISPOSED;
     }
 
     /**
@@ -162,7 +218,7 @@ public class Sample<T> implements Cloneable {
      * @return true, if unregisterFlag is set
      */
     public boolean isUnregistered() {
-        return sInfo.isUnregistered();
+        return status != NO_STATUS && (status & UNREGISTERED) == UNREGISTERED;
     }
 
     /**
@@ -190,34 +246,54 @@ public class Sample<T> implements Cloneable {
      * 
      * @return Key, or null if this Sample does not have a key.
      */
-    public KeyHash getKey() {
+    public synchronized KeyHash getKey() {
         if (key == null && marshaller != null && marshaller.hasKey()) {
             T aData = getData();
-            key = new KeyHash(marshaller.extractKey(aData));
+            key = new KeyHash(marshaller.extractKey(aData)); // Computed only once
         }
 
         return key;
     }
 
+    /**
+     * Replaces the key of this Sample with an equal KeyHash. This allows Samples of
+     * the same instance to share a single KeyHash, instead of each Sample holding its own.
+     * Key is not replaced, if given KeyHash is not equal to the key of this Sample.
+     * 
+     * @param canonicalKey KeyHash to share
+     */
+    public synchronized void internKey(KeyHash canonicalKey) {
+        if (canonicalKey != null && canonicalKey.equals(key)) {
+            key = canonicalKey;
+        }
+    }
+
     /**
      * Get the ChangeKind of this Sample.
      * @return ChangeKind May be null, if this Sample does not represent a change to an instance.
      */
     public ChangeKind getKind() {
-        if (sInfo != null) {
-            return sInfo.getKind();
+        if (status == NO_STATUS) {
+            return null;
+        }
+        else if (isDisposed()) {
+            return ChangeKind.DISPOSE;
+        }
+        else if (isUnregistered()) {
+            return ChangeKind.UNREGISTER;
         }
         
-        return null;
+        return ChangeKind.WRITE;
     }
 
 
     /**
-     * Gets the DataEncapsulation.
+     * Gets the DataEncapsulation. Data is marshalled only once, and the same 
+     * DataEncapsulation is returned on subsequent calls.
      * @return DataEncapsulation
-     * @throws IOException
+     * @throws IOException if marshalling fails
      */
-    DataEncapsulation getDataEncapsulation() throws IOException {
+    public DataEncapsulation getDataEncapsulation() throws IOException {
         if (marshalledData == null && marshaller != null) {
             marshalledData = marshaller.marshall(getData());
         }
@@ -254,21 +330,61 @@ public class Sample<T> implements Cloneable {
     }
     
     public String toString() {
-        return "Sample[" + seqNum + "]:" + sInfo;
+        return "Sample[" + seqNum + "]:" + getKind();
     }
 
-    public Object getProperty(String key) {
+    public synchronized Object getProperty(String key) {
+        if (properties == null) {
+            return null;
+        }
+
         return properties.get(key);
     }
-    public void setProperty(String key, Object value) {
+    public synchronized void setProperty(String key, Object value) {
+        if (properties == null) {
+            properties = new HashMap<>(4);
+        }
+
         properties.put(key, value);
     }
 
     @Override
     public Object clone() throws CloneNotSupportedException {
         Sample<?> s = (Sample<?>) super.clone();
-        s.properties = new HashMap<>(this.properties);
+        synchronized (this) {
+            if (properties != null) {
+                s.properties = new HashMap<>(this.properties);
+            }
+        }
         
         return s;
     }
+
+    private static byte toStatus(ChangeKind kind) {
+        if (kind == null) {
+            return NO_STATUS;
+        }
+
+        switch (kind) {
+        case DISPOSE:
+            return DISPOSED;
+        case UNREGISTER:
+            return UNREGISTERED;
+        default:
+            return 0;
+        }
+    }
+
+    private static byte toStatus(Data data) {
+        StatusInfo sInfo = null;
+        if (data.inlineQosFlag() && data.getInlineQos() != null) {
+            sInfo = (StatusInfo) data.getInlineQos().getParameter(ParameterId.PID_STATUS_INFO);
+        }
+
+        if (sInfo == null) {
+            return 0; // WRITE
+        }
+
+        return (byte) ((sInfo.isDisposed() ? DISPOSED : 0) | (sInfo.isUnregistered() ? UNREGISTERED : 0));
+    }
 }
@@ -0,0 +1,61 @@
+package net.sf.jrtps.rtps;
+
+/**
+ * A FlowController, that allows sending at a given rate of bytes per second. Unused
+ * rate is accumulated up to a burst size, which may be sent at once.
+ *
+ * @author mcr70
+ */
+public class TokenBucketFlowController implements FlowController {
+    private final long rate;
+    private final long burst;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a TokenBucketFlowController.
+     *
+     * @param rate bytes per second
+     * @param burst maximum number of bytes sent at once
+     */
+    public TokenBucketFlowController(long rate, long burst) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    @Override
+    public synchronized long getDelay(int bytes) {
+        refill();
+
+        // A message larger than burst is sent, once the bucket is full
+        double needed = Math.min(bytes, burst);
+        if (tokens >= needed) {
+            return 0;
+        }
+
+        return Math.max(1, (long) ((needed - tokens) * 1000000000L / rate));
+    }
+
+    @Override
+    public synchronized void sent(int bytes) {
+        refill();
+        tokens -= bytes; // May go negative, if shared with other writers
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / 1000000000L);
+        lastRefill = now;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + rate + " B/s, burst " + burst + ")";
+    }
+}
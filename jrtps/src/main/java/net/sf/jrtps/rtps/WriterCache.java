@@ -34,4 +34,21 @@ public interface WriterCache<T> {
      * @return changes since given seqNum. Returned List is newly allocated.
      */
     public LinkedList<Sample<T>> getSamplesSince(long seqNum);
+
+    /**
+     * Gets the Sample with the smallest sequence number greater than given sequence number.
+     * This allows iterating over history cache in sequence number order, without copying it.
+     * 
+     * @param seqNum sequence number to compare
+     * @return Sample, or null if there is no Sample after given sequence number
+     */
+    public Sample<T> getSampleAfter(long seqNum);
+
+    /**
+     * Gets a Sample with given sequence number.
+     * 
+     * @param seqNum sequence number of the Sample
+     * @return Sample, or null if there is no such Sample in history cache
+     */
+    public Sample<T> getSample(long seqNum);
 }
@@ -1,17 +1,29 @@
 package net.sf.jrtps.rtps;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.sf.jrtps.builtin.PublicationData;
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataFrag;
 import net.sf.jrtps.message.Gap;
 import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.HeartbeatFrag;
 import net.sf.jrtps.message.parameter.QosReliability;
 import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
 import net.sf.jrtps.types.Locator;
 import net.sf.jrtps.types.SequenceNumberSet;
+import net.sf.jrtps.types.Time;
 import net.sf.jrtps.util.Watchdog.Task;
 
 /**
@@ -22,14 +34,20 @@ import net.sf.jrtps.util.Watchdog.Task;
  */
 public class WriterProxy extends RemoteProxy {
     private static final Logger log = LoggerFactory.getLogger(WriterProxy.class);
+    // Marks a sequence number in reorder window, that writer has declared irrelevant with a Gap
+    private static final ReceivedData IRRELEVANT = new ReceivedData(null, null);
 
     private final RTPSReader<?> reader;
     private final int hbSuppressionDuration;
     private final EntityId entityId;
     private final boolean isReliable;
+    private final int reorderWindowSize;
+    private final int maxFragmentedSampleSize;
+    private final int maxFragmentBuffers;
     
     private Heartbeat latestHeartbeat;
     private long latestHBReceiveTime;
+    private int latestHBFragCount = -1;
 
     private volatile long seqNumMax = 0;
     private Task livelinessTask;
@@ -38,6 +56,10 @@ public class WriterProxy extends RemoteProxy {
 
     private int strength;
 
+    // Samples being reassembled from DataFrag submessages, keyed by sequence number
+    private final ConcurrentNavigableMap<Long, FragmentBuffer> fragmentBuffers = new ConcurrentSkipListMap<>();
+    // Samples received out of order, waiting for the missing samples. Keyed by sequence number
+    private final ConcurrentNavigableMap<Long, ReceivedData> reorderWindow = new ConcurrentSkipListMap<>();
 
     WriterProxy(RTPSReader<?> reader, PublicationData wd, List<Locator> locators, int heartbeatSuppressionDuration) {
         super(wd, locators);
@@ -47,6 +69,9 @@ public class WriterProxy extends RemoteProxy {
         this.hbSuppressionDuration = heartbeatSuppressionDuration;
         
         this.isReliable = reader.getQualityOfService().getReliability().getKind().equals(QosReliability.Kind.RELIABLE);
+        this.reorderWindowSize = reader.getConfiguration().getReorderWindowSize();
+        this.maxFragmentedSampleSize = reader.getConfiguration().getMaxFragmentedSampleSize();
+        this.maxFragmentBuffers = reader.getConfiguration().getMaxFragmentBuffers();
     }
 
     
@@ -85,28 +110,103 @@ public class WriterProxy extends RemoteProxy {
     }
 
     /**
-     * Determines if incoming Data should be accepted or not.
+     * Adds a Data received from remote writer. For best effort readers, Data is accepted
+     * if it is newer than any Data received so far. For reliable readers, Data is released
+     * only in order. Data received out of order is held in a reorder window, until
+     * the missing samples have been received, or writer has declared them irrelevant.
      * 
-     * @param sequenceNumber
-     * @return true, if data was added to cache
-     */
-    boolean acceptData(long sequenceNumber) {
-        // TODO:
-        // Data for reliable readers must come in order. If not, drop it. 
-        // Manage out-of-order data with HeartBeat & AckNack & Gap messages
-
-        if (sequenceNumber > seqNumMax) {
-            if (isReliable && sequenceNumber > seqNumMax + 1 && seqNumMax != 0) {
-                log.warn("[{}] Accepting data even though some data has been missed: offered seq-num {}, my received seq-num {}",
-                        entityId, sequenceNumber, seqNumMax);
+     * @param data Data
+     * @param timestamp timestamp of the Data
+     * @return Data that can be passed to ReaderCache, in order. If nothing can be passed, 
+     *         an empty List is returned
+     */
+    synchronized List<ReceivedData> addData(Data data, Time timestamp) {
+        long sn = data.getWriterSequenceNumber();
+        if (sn <= seqNumMax) {
+            return Collections.emptyList(); // Duplicate
+        }
+
+        // First sample from a writer is accepted as is, if writer has not told us its first sequence number
+        if (!isReliable || sn == seqNumMax + 1 || (seqNumMax == 0 && latestHeartbeat == null)) {
+            seqNumMax = sn;
+            removeFragmentBuffers(sn);
+
+            ReceivedData rd = new ReceivedData(data, timestamp);
+            if (reorderWindow.isEmpty()) {
+                return Collections.singletonList(rd);
             }
 
-            seqNumMax = sequenceNumber;
+            List<ReceivedData> released = new LinkedList<>();
+            released.add(rd);
+            releaseInOrder(released);
 
-            return true;
+            return released;
         }
 
-        return false;
+        if (sn > seqNumMax + reorderWindowSize) {
+            log.debug("[{}] Dropping Data #{}, it is beyond reorder window; my received seq-num {}", entityId, 
+                    sn, seqNumMax);
+            return Collections.emptyList();
+        }
+
+        log.trace("[{}] Holding Data #{} until missing samples are received; my received seq-num {}", entityId, 
+                sn, seqNumMax);
+        ReceivedData rd = new ReceivedData(data, timestamp);
+        if (reorderWindow.putIfAbsent(sn, rd) == null) {
+            rd.hold(); // Data outlives the message it was received in
+        }
+        fragmentBuffers.remove(sn);
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Moves seqNumMax forward over all the consecutive sequence numbers found
+     * at the beginning of reorder window.
+     * 
+     * @param released a List, where the Data released is added
+     */
+    private void releaseInOrder(List<ReceivedData> released) {
+        Map.Entry<Long, ReceivedData> e;
+        while ((e = reorderWindow.firstEntry()) != null && e.getKey() <= seqNumMax + 1) {
+            reorderWindow.remove(e.getKey());
+
+            if (e.getKey() == seqNumMax + 1) {
+                seqNumMax = e.getKey();
+                if (e.getValue() != IRRELEVANT) {
+                    released.add(e.getValue());
+                }
+            }
+            else {
+                e.getValue().release(); // Stale entry
+            }
+        }
+
+        removeFragmentBuffers(seqNumMax);
+    }
+
+    /**
+     * Marks every sequence number up to and including given sequence number being
+     * either received or lost. Data held in reorder window is released.
+     * 
+     * @param seqNum sequence number
+     * @param released a List, where the Data released is added
+     */
+    private void skipTo(long seqNum, List<ReceivedData> released) {
+        if (seqNum <= seqNumMax) {
+            return;
+        }
+
+        Map<Long, ReceivedData> head = reorderWindow.headMap(seqNum, true);
+        for (ReceivedData rd : head.values()) {
+            if (rd != IRRELEVANT) {
+                released.add(rd);
+            }
+        }
+        head.clear();
+
+        seqNumMax = seqNum;
+        releaseInOrder(released);
     }
 
 
@@ -134,7 +234,7 @@ public class WriterProxy extends RemoteProxy {
      * @param hb
      * @return true, if Heartbeat was accepted
      */
-    boolean heartbeatReceived(Heartbeat hb) {
+    synchronized boolean heartbeatReceived(Heartbeat hb) {
         long hbReceiveTime = System.currentTimeMillis();
         
         // First HB is always accepted
@@ -159,36 +259,200 @@ public class WriterProxy extends RemoteProxy {
         return false;
     }
 
-    void applyGap(Gap gap) {
+    /**
+     * Updates count of latest HeartbeatFrag. HeartbeatFrag gets accepted only
+     * if its count is greater than previously received HeartbeatFrag.
+     * 
+     * @param hbf HeartbeatFrag
+     * @return true, if HeartbeatFrag was accepted
+     */
+    boolean heartbeatFragReceived(HeartbeatFrag hbf) {
+        if (hbf.getCount() > latestHBFragCount) {
+            latestHBFragCount = hbf.getCount();
+            return true;
+        }
+
+        log.debug("[{}] HeartbeatFrag was not accepted; count {} <= proxys count {}", entityId, 
+                hbf.getCount(), latestHBFragCount);
+
+        return false;
+    }
+
+    /**
+     * Adds fragments of a DataFrag to reassembly buffer of its sequence number.
+     * DataFrags with invalid sizes, and DataFrags of new samples when the maximum number
+     * of concurrent reassemblies has been reached, are dropped.
+     * 
+     * @param df DataFrag
+     * @return FragmentBuffer, that was completed by the given DataFrag, or null if
+     *         there are still fragments missing, or DataFrag was not accepted
+     */
+    synchronized FragmentBuffer addFragments(DataFrag df) {
+        long sn = df.getWriterSequenceNumber().getAsLong();
+        if (sn <= seqNumMax || reorderWindow.containsKey(sn)) {
+            return null;
+        }
+
+        FragmentBuffer fb = fragmentBuffers.get(sn);
+        if (fb == null) {
+            if (df.getFragmentSize() <= 0 || df.getSampleSize() <= 0 || 
+                    df.getSampleSize() > maxFragmentedSampleSize) {
+                log.warn("[{}] Dropping DataFrag #{} with fragment size {} and sample size {}, max sample size is {}", 
+                        entityId, sn, df.getFragmentSize(), df.getSampleSize(), maxFragmentedSampleSize);
+                return null;
+            }
+
+            if (fragmentBuffers.size() >= maxFragmentBuffers) {
+                log.debug("[{}] Dropping DataFrag #{}, {} samples are already being reassembled", 
+                        entityId, sn, fragmentBuffers.size());
+                return null;
+            }
+
+            fb = new FragmentBuffer(df);
+            fragmentBuffers.put(sn, fb);
+        }
+
+        if (fb.addFragments(df)) {
+            fragmentBuffers.remove(sn);
+            return fb;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the fragments missing for given sequence number. If no fragments have
+     * been received for given sequence number, all the fragments up to lastFragmentNum
+     * are considered missing.
+     * 
+     * @param seqNum sequence number
+     * @param lastFragmentNum highest fragment number, that writer has announced
+     * @return FragmentNumberSet of missing fragments, or null if nothing is missing
+     */
+    FragmentNumberSet getMissingFragments(long seqNum, int lastFragmentNum) {
+        if (seqNum <= seqNumMax || reorderWindow.containsKey(seqNum)) {
+            return null; // Already received, or writer has sent a Gap
+        }
+
+        FragmentBuffer fb = fragmentBuffers.get(seqNum);
+        if (fb != null) {
+            return fb.getMissingFragments(lastFragmentNum);
+        }
+
+        int numBits = Math.min(lastFragmentNum, 256);
+        if (numBits <= 0) {
+            return null;
+        }
+
+        int[] bitmaps = new int[(numBits + 31) / 32];
+        Arrays.fill(bitmaps, -1);
+
+        return new FragmentNumberSet(1, numBits, bitmaps);
+    }
+
+    /**
+     * Gets the samples that are being reassembled from fragments.
+     * @return a Collection of FragmentBuffers
+     */
+    Collection<FragmentBuffer> getFragmentBuffers() {
+        return fragmentBuffers.values();
+    }
+
+    /**
+     * Removes reassembly buffers of all the sequence numbers up to and including given
+     * sequence number. 
+     * @param seqNum sequence number
+     */
+    private void removeFragmentBuffers(long seqNum) {
+        if (!fragmentBuffers.isEmpty()) {
+            fragmentBuffers.headMap(seqNum, true).clear();
+        }
+    }
+
+    /**
+     * Applies a Gap. Sequence numbers in Gap are marked irrelevant, and Data
+     * waiting for them in reorder window is released.
+     * 
+     * @param gap Gap
+     * @return Data that can be passed to ReaderCache, in order. 
+     */
+    synchronized List<ReceivedData> applyGap(Gap gap) {
+    	List<ReceivedData> released = new LinkedList<>();
+    	long gapStart = gap.getGapStart();
+    	long gapEnd = gap.getGapEnd();
+
     	// If the gap start is smaller than or equal to current seqNum + 1 (I.e. next seqNum)...
-    	if (gap.getGapStart() <= seqNumMax + 1) {
-    		long gapEnd = gap.getGapEnd();
-    		// ...and gap end is greater than current seqNum...
-    		if (gapEnd > seqNumMax) {
-    			seqNumMax = gapEnd; // ...then mark current seqNum to be gap end.
+    	if (gapStart <= seqNumMax + 1) {
+    		skipTo(gapEnd, released); // ...then mark current seqNum to be gap end.
+    	}
+    	else {
+    		markIrrelevant(gapStart, gapEnd);
+    	}
+
+    	// Sequence numbers in gapList, that are not contiguous with gapEnd
+    	for (long sn : gap.getGapList().getSequenceNumbers()) {
+    		if (sn > gapEnd) {
+    			markIrrelevant(sn, sn);
     		}
     	}
+    	releaseInOrder(released);
+
+    	return released;
+    }
+
+    private void markIrrelevant(long first, long last) {
+    	long windowEnd = Math.min(last, seqNumMax + reorderWindowSize);
+    	for (long sn = Math.max(first, seqNumMax + 1); sn <= windowEnd; sn++) {
+    		reorderWindow.putIfAbsent(sn, IRRELEVANT);
+    	}
+    }
+
+    /**
+     * Applies the first sequence number of a Heartbeat. Samples before it are
+     * not available from writer anymore, so they are not waited for.
+     * 
+     * @param hb Heartbeat
+     * @return Data that can be passed to ReaderCache, in order. 
+     */
+    synchronized List<ReceivedData> applyHeartbeat(Heartbeat hb) {
+    	if (!isReliable || hb.getFirstSequenceNumber() - 1 <= seqNumMax) {
+    		return Collections.emptyList();
+    	}
+
+    	List<ReceivedData> released = new LinkedList<>();
+    	skipTo(hb.getFirstSequenceNumber() - 1, released);
+
+    	return released;
     }
 
+    /**
+     * Gets a SequenceNumberSet representing the state of this WriterProxy. Every
+     * sequence number before bitmap base has been received. Bits set in bitmap
+     * represent missing samples. Samples held in reorder window, and samples being
+     * reassembled from fragments are not nacked.
+     * 
+     * @return SequenceNumberSet
+     */
     SequenceNumberSet getSequenceNumberSet() {
     	long base = getGreatestDataSeqNum() + 1;
     	long firstSN = latestHeartbeat.getFirstSequenceNumber();
     	long lastSN = latestHeartbeat.getLastSequenceNumber();
-    	int numBits; 
     	
     	if (base < firstSN) {
     		base = firstSN;
-    		numBits = (int) (lastSN - firstSN + 1);
-    	}
-    	else {
-    		numBits = (int) (lastSN - base + 1);
     	}
-    	
-    	if (numBits > 256) {
-    		numBits = 256;
+
+    	int numBits = (int) Math.max(0, Math.min(lastSN - base + 1, 256));
+    	int[] bitmaps = new int[(numBits + 31) / 32];
+
+    	for (int i = 0; i < numBits; i++) {
+    		long sn = base + i;
+    		if (!reorderWindow.containsKey(sn) && !fragmentBuffers.containsKey(sn)) {
+    			bitmaps[i / 32] |= 0x80000000 >>> (i % 32);
+    		}
     	}
     	
-    	return new SequenceNumberSet(base, numBits);
+    	return new SequenceNumberSet(base, numBits, bitmaps);
     }
     
     
@@ -211,4 +475,44 @@ public class WriterProxy extends RemoteProxy {
     public String toString() {
         return getGuid().toString();
     }
+
+    /**
+     * Data received from remote writer, together with its timestamp.
+     */
+    static class ReceivedData {
+        private final Data data;
+        private final Time timestamp;
+        private boolean held;
+
+        ReceivedData(Data data, Time timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Retains the payload of Data, while it is held in reorder window.
+         */
+        void hold() {
+            held = true;
+            data.retain();
+        }
+
+        /**
+         * Releases the payload of Data, if it was held.
+         */
+        void release() {
+            if (held) {
+                held = false;
+                data.release();
+            }
+        }
+
+        Data getData() {
+            return data;
+        }
+
+        Time getTimestamp() {
+            return timestamp;
+        }
+    }
 }
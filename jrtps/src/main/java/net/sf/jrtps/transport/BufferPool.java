@@ -0,0 +1,66 @@
+package net.sf.jrtps.transport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool recycles ReceiveBuffers, so that receiving a message does not allocate
+ * a new byte array each time. If the pool is empty, a new ReceiveBuffer is allocated.
+ * At most maxPooled released buffers are kept in the pool; the rest are left for
+ * garbage collector.
+ *
+ * @see ReceiveBuffer
+ * @author mcr70
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<ReceiveBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * Creates a new BufferPool.
+     *
+     * @param bufferSize size of each buffer
+     * @param maxPooled maximum number of free buffers kept in pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Gets a ReceiveBuffer from this pool. Returned buffer has a reference count of one.
+     * @return ReceiveBuffer
+     */
+    public ReceiveBuffer acquire() {
+        ReceiveBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new ReceiveBuffer(this, new byte[bufferSize]);
+        }
+        else {
+            pooled.decrementAndGet();
+        }
+
+        buffer.acquired();
+
+        return buffer;
+    }
+
+    void recycle(ReceiveBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            freeBuffers.offer(buffer);
+        }
+        else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of free buffers in this pool.
+     * @return number of free buffers
+     */
+    int size() {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,126 @@
+package net.sf.jrtps.transport;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+
+/**
+ * MappedMemory provides volatile and ordered accesses to the memory of a direct buffer,
+ * such as a MappedByteBuffer. Java does not provide these for buffers, so sun.misc.Unsafe
+ * is used. Unsafe is looked up reflectively, and called through MethodHandles, so that
+ * this class does not depend on an internal API at compile time.
+ *
+ * @author mcr70
+ */
+class MappedMemory {
+    private static final Field ADDRESS;
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_INT_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_INT;
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_LONG;
+    static {
+        Field address = null;
+        MethodHandle getIntVolatile = null;
+        MethodHandle putIntVolatile = null;
+        MethodHandle putOrderedInt = null;
+        MethodHandle getLongVolatile = null;
+        MethodHandle putOrderedLong = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getIntVolatile = lookup.findVirtual(unsafeClass, "getIntVolatile",
+                    MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            putIntVolatile = lookup.findVirtual(unsafeClass, "putIntVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            putOrderedInt = lookup.findVirtual(unsafeClass, "putOrderedInt",
+                    MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            putOrderedLong = lookup.findVirtual(unsafeClass, "putOrderedLong",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+
+            address = Buffer.class.getDeclaredField("address");
+            address.setAccessible(true);
+        } catch (Exception e) {
+            address = null; // Checked by isAvailable()
+        }
+
+        ADDRESS = address;
+        GET_INT_VOLATILE = getIntVolatile;
+        PUT_INT_VOLATILE = putIntVolatile;
+        PUT_ORDERED_INT = putOrderedInt;
+        GET_LONG_VOLATILE = getLongVolatile;
+        PUT_ORDERED_LONG = putOrderedLong;
+    }
+
+    private final long address;
+
+    /**
+     * Creates a MappedMemory, that accesses the memory of given direct buffer.
+     * Buffer must be kept reachable as long as this MappedMemory is used.
+     *
+     * @param buffer a direct buffer
+     */
+    MappedMemory(Buffer buffer) {
+        try {
+            this.address = ADDRESS.getLong(buffer);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks, if volatile and ordered accesses are available on this platform.
+     * @return true, if available
+     */
+    static boolean isAvailable() {
+        return ADDRESS != null;
+    }
+
+    int getIntVolatile(int offset) {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address + offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    void putIntVolatile(int offset, int value) {
+        try {
+            PUT_INT_VOLATILE.invokeExact((Object) null, address + offset, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    void putOrderedInt(int offset, int value) {
+        try {
+            PUT_ORDERED_INT.invokeExact((Object) null, address + offset, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    long getLongVolatile(int offset) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address + offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    void putOrderedLong(int offset, long value) {
+        try {
+            PUT_ORDERED_LONG.invokeExact((Object) null, address + offset, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -29,7 +29,7 @@ public class MemProvider extends TransportProvider {
 	}
 
 	@Override
-	public Receiver getReceiver(Locator locator, BlockingQueue<byte[]> queue) throws IOException {        
+	public Receiver getReceiver(Locator locator, BlockingQueue<ReceiveBuffer> queue) throws IOException {        
 		BlockingQueue<byte[]> inQueue = getQueue(new MemLocator(locator));
 
 		return new MemReceiver(new MemLocator(locator), inQueue, queue);
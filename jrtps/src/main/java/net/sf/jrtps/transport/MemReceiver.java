@@ -17,12 +17,12 @@ public class MemReceiver implements Receiver {
     
     private final Locator locator;
     private final BlockingQueue<byte[]> inQueue;
-    private final BlockingQueue<byte[]> outQueue;
+    private final BlockingQueue<ReceiveBuffer> outQueue;
     
     private boolean running = true;
     
     
-    public MemReceiver(Locator locator, BlockingQueue<byte[]> inQueue, BlockingQueue<byte[]> outQueue) {
+    public MemReceiver(Locator locator, BlockingQueue<byte[]> inQueue, BlockingQueue<ReceiveBuffer> outQueue) {
         this.locator = locator;
         this.inQueue = inQueue;
         this.outQueue = outQueue;
@@ -33,7 +33,7 @@ public class MemReceiver implements Receiver {
         while(running) {
             try {
                 byte[] bytes = inQueue.take();
-                outQueue.put(bytes);
+                outQueue.put(ReceiveBuffer.wrap(bytes));
             } 
             catch (InterruptedException e) {
                 logger.debug("Got interrupted, exiting");
@@ -17,6 +17,7 @@ import java.nio.ByteOrder;
  */
 public class RTPSByteBuffer {
     private ByteBuffer buffer;
+    private ReceiveBuffer receiveBuffer; // Set, if bytes are read from a ReceiveBuffer
 
     /**
      * Constructs RTPSByteBuffer.
@@ -37,6 +38,16 @@ public class RTPSByteBuffer {
         this.buffer = buffer;
     }
 
+    /**
+     * Constructs RTPSByteBuffer, that reads the bytes of given ReceiveBuffer.
+     * 
+     * @param receiveBuffer ReceiveBuffer
+     */
+    public RTPSByteBuffer(ReceiveBuffer receiveBuffer) {
+        this.buffer = receiveBuffer.getByteBuffer();
+        this.receiveBuffer = receiveBuffer;
+    }
+
     /**
      * Constructs RTPSByteBuffer.
      * 
@@ -411,6 +422,45 @@ public class RTPSByteBuffer {
     }
     
     
+    /**
+     * Skips given number of bytes.
+     * 
+     * @param count number of bytes to skip
+     */
+    public void skip(int count) {
+        buffer.position(buffer.position() + count);
+    }
+
+    /**
+     * Creates a read-only RTPSByteBuffer, that shares next length bytes of this
+     * RTPSByteBuffer. Position of the slice is 0, so alignment of reads from it is
+     * relative to its start. Position of this RTPSByteBuffer is advanced over the slice.
+     * 
+     * @param length length of the slice
+     * @return a new RTPSByteBuffer
+     * @see #getReceiveBuffer()
+     */
+    public RTPSByteBuffer slice(int length) {
+        ByteBuffer bb = buffer.asReadOnlyBuffer();
+        bb.limit(bb.position() + length);
+        
+        RTPSByteBuffer slice = new RTPSByteBuffer(bb.slice());
+        slice.receiveBuffer = receiveBuffer;
+        buffer.position(buffer.position() + length);
+
+        return slice;
+    }
+
+    /**
+     * Gets the ReceiveBuffer, whose bytes this RTPSByteBuffer reads. Bytes of the
+     * ReceiveBuffer are valid only while ReceiveBuffer is retained.
+     * 
+     * @return ReceiveBuffer, or null if this RTPSByteBuffer does not read from a ReceiveBuffer
+     */
+    public ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
     /**
      * Aligns this buffer to given byteBoundary.
      * 
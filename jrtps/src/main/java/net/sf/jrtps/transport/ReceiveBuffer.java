@@ -0,0 +1,103 @@
+package net.sf.jrtps.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReceiveBuffer holds the bytes of a single received RTPS message. ReceiveBuffers
+ * are reference counted. A Receiver gets a ReceiveBuffer from a BufferPool with
+ * a reference count of one, and hands it over to the message queue. Anyone, that
+ * needs to access the bytes after the message has been handled, must call retain().
+ * Each reference is given up with release(). Once all the references are released,
+ * ReceiveBuffer is returned to its pool.
+ *
+ * @see BufferPool
+ * @author mcr70
+ */
+public class ReceiveBuffer {
+    private final BufferPool pool;
+    private final byte[] array;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private int length;
+
+    ReceiveBuffer(BufferPool pool, byte[] array) {
+        this.pool = pool;
+        this.array = array;
+        this.length = array.length;
+    }
+
+    /**
+     * Wraps given bytes into a ReceiveBuffer, that does not belong to any pool.
+     *
+     * @param bytes bytes of a message
+     * @return ReceiveBuffer
+     */
+    public static ReceiveBuffer wrap(byte[] bytes) {
+        ReceiveBuffer buffer = new ReceiveBuffer(null, bytes);
+        buffer.refCount.set(1);
+
+        return buffer;
+    }
+
+    /**
+     * Gets the backing array of this ReceiveBuffer. Only the first
+     * length() bytes of the array are valid.
+     *
+     * @return backing array
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * Gets the number of valid bytes in this ReceiveBuffer.
+     * @return length
+     */
+    public int length() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Gets a ByteBuffer, that covers the valid bytes of this ReceiveBuffer.
+     * @return ByteBuffer
+     */
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(array, 0, length);
+    }
+
+    /**
+     * Adds a reference to this ReceiveBuffer.
+     * @return this ReceiveBuffer
+     */
+    public ReceiveBuffer retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Releases a reference to this ReceiveBuffer. When the last reference
+     * is released, this ReceiveBuffer is returned to its pool.
+     */
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Gets the current reference count.
+     * @return reference count
+     */
+    int refCount() {
+        return refCount.get();
+    }
+
+    void acquired() {
+        length = array.length;
+        refCount.set(1);
+    }
+}
@@ -3,17 +3,18 @@ package net.sf.jrtps.transport;
 import java.net.DatagramSocket;
 
 /**
- * Package access. This class represents a struct, that holds UDP DatagramSocket created, 
- * along with participantId which may have been generated during creation. 
+ * Package access. This class represents a struct, that holds UDP DatagramSockets created, 
+ * along with participantId which may have been generated during creation. There is more than
+ * one socket, if they share the port with SO_REUSEPORT.
  * 
  * @author mcr70
  */
 class ReceiverConfig {
-    final DatagramSocket ds;
+    final DatagramSocket[] sockets;
     //final int participantId;
 
-    public ReceiverConfig(int participantId, DatagramSocket ds) {
+    public ReceiverConfig(int participantId, DatagramSocket ... sockets) {
         //this.participantId = participantId;
-        this.ds = ds;
+        this.sockets = sockets;
     }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package net.sf.jrtps.transport;
+
+import java.nio.ByteBuffer;
+
+import net.sf.jrtps.types.Locator;
+
+/**
+ * Locator for shared memory transport. First 8 bytes of the address identify the host,
+ * that the receiver runs on. Port identifies the receiver on that host.
+ *
+ * @author mcr70
+ */
+class ShmLocator extends Locator {
+    ShmLocator(long hostId, int port) {
+        super(ShmProvider.LOCATOR_KIND_SHM, port, ByteBuffer.wrap(new byte[16]).putLong(hostId).array());
+    }
+
+    ShmLocator(Locator loc) {
+        super(ShmProvider.LOCATOR_KIND_SHM, loc.getPort(), loc.getAddress());
+    }
+
+    /**
+     * Gets the identifier of the host, that the receiver of this Locator runs on.
+     * @return host id
+     */
+    long getHostId() {
+        return ByteBuffer.wrap(getAddress()).getLong();
+    }
+}
@@ -0,0 +1,182 @@
+package net.sf.jrtps.transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.types.Locator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This Provider creates receivers and transmitters for shared memory transport.
+ * Shared memory transport can be used between participants running on the same host,
+ * in the same or in different processes. Messages are passed through memory mapped files,
+ * without going through the network stack.
+ * <p>
+ * Each receiver has a directory of its own, named after its port, under the directory configured
+ * with <i>jrtps.shm.directory</i>. Every transmitter sending to a receiver creates a ring buffer
+ * file in that directory.
+ * <p>
+ * Shared memory locators are unicast locators. They carry an identifier of the host the
+ * receiver runs on, so that remote participants on other hosts do not try to use them.
+ * Discovery should be done using UDP, for example with following configuration:
+ * <pre>
+ * jrtps.listener-uris = shm://localhost,udp://239.255.0.1,udp://localhost
+ * </pre>
+ * 
+ * @author mcr70
+ * @see ShmRing
+ */
+public class ShmProvider extends TransportProvider {
+    private static final Logger logger = LoggerFactory.getLogger(ShmProvider.class);
+
+    /**
+     * Provider scheme, that is used in configuring shared memory TranportProvider URIs.
+     */
+    public static final String PROVIDER_SCHEME = "shm";
+    /**
+     * Locator kind of shared memory locators.
+     */
+    public static final int LOCATOR_KIND_SHM = 0x8002;
+
+    private static final String HOST_ID_FILE = "jrtps.host-id";
+
+    private final HashMap<Locator, ShmTransmitter> transmitters = new HashMap<>();
+    private final HashMap<Locator, ShmReceiver> receivers = new HashMap<>();
+
+    private final File directory;
+    private final long hostId;
+    private final BufferPool bufferPool;
+
+    public ShmProvider(Configuration config) {
+        super(config);
+
+        File dir = new File(config.getShmDirectory());
+        if (!dir.isDirectory()) {
+            dir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        
+        this.directory = dir;
+        this.hostId = readHostId(dir);
+        this.bufferPool = new BufferPool(config.getBufferSize(), config.getReceiveBufferPoolSize());
+        
+        logger.debug("Created ShmProvider, directory {}, host id {}", directory, Long.toHexString(hostId));
+    }
+
+    @Override
+    public synchronized Receiver getReceiver(Locator locator, BlockingQueue<ReceiveBuffer> queue) throws IOException {
+        ShmReceiver r = receivers.get(locator);
+        if (r == null) {
+            ShmLocator loc = new ShmLocator(locator);
+            r = new ShmReceiver(loc, getDirectory(loc), queue, bufferPool);
+            receivers.put(locator, r);
+        }
+
+        return r;
+    }
+
+    @Override
+    public synchronized Transmitter getTransmitter(Locator locator) throws IOException {
+        ShmTransmitter tr = transmitters.get(locator);
+        if (tr == null) {
+            ShmLocator loc = new ShmLocator(locator);
+            if (loc.getHostId() != hostId) {
+                throw new IOException(locator + " is not on this host");
+            }
+
+            tr = new ShmTransmitter(loc, getDirectory(loc), getConfiguration().getShmRingSize(), 
+                    getConfiguration().getBufferSize());
+            transmitters.put(locator, tr);
+        }
+
+        return tr;
+    }
+
+    @Override
+    public Locator createLocator(URI uri, int domainId, int participantId, boolean isDiscovery) {
+        int port = uri.getPort();
+
+        if (port == -1) { // Port number is determined with PortNumberParameters
+            PortNumberParameters pnp = getConfiguration().getPortNumberParameters();
+            if (isDiscovery) {
+                port = pnp.getDiscoveryUnicastPort(domainId, participantId);
+            }
+            else {
+                port = pnp.getUserdataUnicastPort(domainId, participantId);
+            }
+        }
+
+        return new ShmLocator(hostId, port);
+    }
+
+    /**
+     * Shared memory locators are reachable only from the host they were created on.
+     */
+    @Override
+    public boolean isReachable(Locator locator) {
+        return new ShmLocator(locator).getHostId() == hostId;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ShmReceiver r : receivers.values()) {
+            r.close();
+        }
+
+        for (ShmTransmitter tr : transmitters.values()) {
+            tr.close();
+        }
+    }
+
+    private File getDirectory(ShmLocator locator) {
+        return new File(directory, "jrtps-" + locator.getPort());
+    }
+
+    /**
+     * Reads the identifier of this host from a file in shared directory. If the file
+     * does not exist, a random identifier is written to it. 
+     */
+    private static long readHostId(File dir) {
+        File file = new File(dir, HOST_ID_FILE);
+        for (int i = 0; i < 2; i++) {
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+                return dis.readLong();
+            } catch (IOException e) {
+                // Host id has not been created yet
+            }
+
+            try {
+                File tmpFile = File.createTempFile(HOST_ID_FILE, null, dir);
+                try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile))) {
+                    dos.writeLong(new SecureRandom().nextLong());
+                }
+
+                try {
+                    // Linking fails, if another process created the file first. Its host id is read then
+                    Files.createLink(file.toPath(), tmpFile.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    // Read host id of the other process
+                } finally {
+                    tmpFile.delete();
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Failed to create host id in {}", dir, e);
+                break;
+            }
+        }
+
+        return new SecureRandom().nextLong(); // Other processes will not be able to use our locators
+    }
+}
@@ -0,0 +1,162 @@
+package net.sf.jrtps.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ShmReceiver reads messages from the ShmRings of all the ShmTransmitters sending to it.
+ * Rings are files in a directory of this receiver. New rings are looked for periodically.
+ * <p>
+ * Transmitters cannot wake up a receiver in another process. When there is nothing to read,
+ * receiver first spins, then yields, and then parks for gradually longer periods,
+ * up to a maximum of one millisecond.
+ * 
+ * @author mcr70
+ */
+public class ShmReceiver implements Receiver {
+    private static final Logger logger = LoggerFactory.getLogger(ShmReceiver.class);
+
+    private static final int SPINS = 1000;
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long SCAN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_BATCH = 64; // Max messages read from a ring, before moving to next one
+
+    private final ShmLocator locator;
+    private final File directory;
+    private final BlockingQueue<ReceiveBuffer> queue;
+    private final BufferPool bufferPool;
+    private final Map<String, ShmRing> rings = new HashMap<>(); // Accessed only by receiver thread
+
+    private volatile boolean running = true;
+
+    ShmReceiver(ShmLocator locator, File directory, BlockingQueue<ReceiveBuffer> queue, BufferPool bufferPool) 
+            throws IOException {
+        this.locator = locator;
+        this.directory = directory;
+        this.queue = queue;
+        this.bufferPool = bufferPool;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Listening on {}, directory {}", locator, directory);
+
+        long nextScan = System.nanoTime();
+        int idleCount = 0;
+
+        try {
+            while (running) {
+                if (System.nanoTime() - nextScan >= 0) {
+                    scanRings();
+                    nextScan = System.nanoTime() + SCAN_INTERVAL;
+                }
+
+                if (readRings()) {
+                    idleCount = 0;
+                }
+                else {
+                    idle(idleCount++);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeRings();
+    }
+
+    private boolean readRings() throws InterruptedException {
+        boolean received = false;
+        for (ShmRing ring : rings.values()) {
+            ReceiveBuffer buffer;
+            int count = 0;
+            while (count++ < MAX_BATCH && (buffer = ring.read(bufferPool)) != null) {
+                queue.put(buffer); // Ownership is passed to consumer of the queue
+                received = true;
+            }
+        }
+
+        return received;
+    }
+
+    private void idle(int idleCount) {
+        if (idleCount < SPINS) {
+            return;
+        }
+
+        if (idleCount < SPINS + YIELDS) {
+            Thread.yield();
+        }
+        else {
+            int shift = Math.min(idleCount - SPINS - YIELDS, 20);
+            LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << shift));
+        }
+    }
+
+    /**
+     * Opens rings of new transmitters, and forgets rings removed by their transmitters.
+     * Rings are stamped, so that transmitters know this receiver is alive.
+     */
+    private void scanRings() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ShmRing.FILE_SUFFIX) && !rings.containsKey(name)) {
+                try {
+                    ShmRing ring = ShmRing.open(file);
+                    if (ring != null) { // null, if transmitter is still initializing the ring
+                        logger.debug("Opened ring {}", file);
+                        rings.put(name, ring);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Failed to open ring {}", file, e);
+                }
+            }
+        }
+
+        Iterator<ShmRing> iter = rings.values().iterator();
+        while (iter.hasNext()) {
+            ShmRing ring = iter.next();
+            if (!ring.getFile().exists()) {
+                logger.debug("Ring {} was removed", ring.getFile());
+                iter.remove();
+            }
+            else {
+                ring.touch();
+            }
+        }
+    }
+
+    private void closeRings() {
+        scanRings();
+        for (ShmRing ring : rings.values()) {
+            ring.markClosed(); // Transmitters will create new rings, if this locator is used again
+            ring.getFile().delete();
+        }
+        rings.clear();
+
+        directory.delete(); // Fails, if a transmitter just created a ring; that is fine
+    }
+
+    void close() {
+        running = false;
+    }
+}
@@ -0,0 +1,268 @@
+package net.sf.jrtps.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import net.sf.jrtps.message.Message;
+
+/**
+ * ShmRing is a single producer, single consumer ring buffer of RTPS messages in a memory
+ * mapped file. Producer and consumer may live in different processes. Neither of them
+ * takes locks: producer only advances tail, and consumer only advances head.
+ * <p>
+ * Layout of the file is:
+ * <pre>
+ *   0: magic, capacity, closed flag, opened flag
+ *  64: head, written by consumer
+ * 128: tail, written by producer
+ * 192: liveness stamp, written periodically by consumer
+ * 256: records; int length followed by message bytes, aligned to 8 bytes
+ * </pre>
+ * A record, that would not fit at the end of the ring, is preceded by a padding
+ * marker, and written to the start of the ring.
+ * <p>
+ * Head and tail are written with ordered stores, and read with volatile loads, directly
+ * at the mapped address. Records are thus published with the tail, and freed with the head,
+ * also between processes. Java does not provide such accesses for MappedByteBuffer, so
+ * they are made through MappedMemory. Shared memory transport is not available without it.
+ *
+ * @see MappedMemory
+ *
+ * @author mcr70
+ */
+class ShmRing {
+    static final String FILE_SUFFIX = ".ring";
+
+    private static final int MAGIC = 0x52545053; // 'RTPS'
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLOSED_OFFSET = 8;
+    private static final int OPENED_OFFSET = 12;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int LIVENESS_OFFSET = 192;
+    private static final int DATA_OFFSET = 256;
+
+    private static final int PADDING = -1;
+    private static final int RECORD_HEADER_LENGTH = 4;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final MappedMemory memory;
+    private final int capacity;
+    private final int mask;
+
+    private ShmRing(File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.memory = new MappedMemory(buffer);
+        this.capacity = buffer.getInt(CAPACITY_OFFSET);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Creates a new ShmRing. Capacity is rounded up to a power of two.
+     *
+     * @param file File to create
+     * @param capacity capacity of the ring in bytes
+     * @return ShmRing
+     * @throws IOException on IOException
+     */
+    static ShmRing create(File file, int capacity) throws IOException {
+        checkMemoryAccess();
+        int cap = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(DATA_OFFSET + cap);
+            MappedByteBuffer mbb = raf.getChannel().map(MapMode.READ_WRITE, 0, DATA_OFFSET + cap);
+            mbb.order(ByteOrder.nativeOrder());
+
+            mbb.putInt(CAPACITY_OFFSET, cap);
+            mbb.putLong(HEAD_OFFSET, 0);
+            mbb.putLong(TAIL_OFFSET, 0);
+            mbb.putInt(CLOSED_OFFSET, 0);
+            mbb.putInt(OPENED_OFFSET, 0);
+            mbb.putLong(LIVENESS_OFFSET, System.currentTimeMillis()); // Consumer has time to find the ring
+
+            ShmRing ring = new ShmRing(file, mbb);
+            ring.memory.putOrderedInt(MAGIC_OFFSET, MAGIC); // Consumer opens the ring only after magic
+
+            return ring;
+        }
+    }
+
+    /**
+     * Opens an existing ShmRing.
+     *
+     * @param file File to open
+     * @return ShmRing, or null if producer has not yet initialized the file
+     * @throws IOException on IOException
+     */
+    static ShmRing open(File file) throws IOException {
+        checkMemoryAccess();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < DATA_OFFSET) {
+                return null;
+            }
+
+            MappedByteBuffer mbb = channel.map(MapMode.READ_WRITE, 0, channel.size());
+            mbb.order(ByteOrder.nativeOrder());
+            if (new MappedMemory(mbb).getIntVolatile(MAGIC_OFFSET) != MAGIC || 
+                    channel.size() != DATA_OFFSET + mbb.getInt(CAPACITY_OFFSET)) {
+                return null;
+            }
+
+            ShmRing ring = new ShmRing(file, mbb);
+            ring.touch();
+            ring.memory.putIntVolatile(OPENED_OFFSET, 1);
+
+            return ring;
+        }
+    }
+
+    /**
+     * Writes a Message into this ring. Message is serialized directly into the
+     * mapped memory.
+     *
+     * @param msg Message to write
+     * @param maxLength maximum length of the serialized Message
+     * @return -1 if there was not enough space in the ring, 1 if Message overflowed maxLength
+     *         and was written partially, 0 otherwise
+     */
+    int write(Message msg, int maxLength) {
+        long tail = buffer.getLong(TAIL_OFFSET); // Written only by this producer
+        long head = memory.getLongVolatile(HEAD_OFFSET); // Before overwriting the records it frees
+
+        int needed = align(RECORD_HEADER_LENGTH + maxLength);
+        int index = (int) (tail & mask);
+        int contiguous = capacity - index;
+        int padding = contiguous < needed ? contiguous : 0;
+
+        if (capacity - (tail - head) < needed + padding) {
+            return -1;
+        }
+
+        if (padding > 0) {
+            buffer.putInt(DATA_OFFSET + index, PADDING);
+            tail += padding;
+            index = 0;
+        }
+
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(DATA_OFFSET + index + RECORD_HEADER_LENGTH);
+        bb.limit(DATA_OFFSET + index + RECORD_HEADER_LENGTH + maxLength);
+
+        RTPSByteBuffer rbb = new RTPSByteBuffer(bb.slice());
+        rbb.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        boolean overFlowed = msg.writeTo(rbb);
+
+        int length = rbb.position();
+        buffer.putInt(DATA_OFFSET + index, length);
+
+        // Publish the record with tail
+        memory.putOrderedLong(TAIL_OFFSET, tail + align(RECORD_HEADER_LENGTH + length));
+
+        return overFlowed ? 1 : 0;
+    }
+
+    /**
+     * Reads next record from this ring into a ReceiveBuffer.
+     *
+     * @param pool BufferPool to get ReceiveBuffer from
+     * @return ReceiveBuffer, or null if there are no records available
+     */
+    ReceiveBuffer read(BufferPool pool) {
+        while (true) {
+            long head = buffer.getLong(HEAD_OFFSET); // Written only by this consumer
+            long tail = memory.getLongVolatile(TAIL_OFFSET); // Before the records it publishes
+
+            if (head == tail) {
+                return null;
+            }
+
+            int index = (int) (head & mask);
+            int length = buffer.getInt(DATA_OFFSET + index);
+            if (length == PADDING) {
+                head += capacity - index;
+                index = 0;
+                length = buffer.getInt(DATA_OFFSET);
+            }
+
+            ReceiveBuffer rb = pool.acquire();
+            boolean fits = length <= rb.array().length;
+            if (fits) {
+                ByteBuffer bb = buffer.duplicate();
+                bb.position(DATA_OFFSET + index + RECORD_HEADER_LENGTH);
+                bb.get(rb.array(), 0, length);
+                rb.setLength(length);
+            }
+
+            // Free the record, once it has been read
+            memory.putOrderedLong(HEAD_OFFSET, head + align(RECORD_HEADER_LENGTH + length));
+
+            if (fits) {
+                return rb;
+            }
+
+            rb.release(); // Written with a larger buffer-size than ours; skip it
+        }
+    }
+
+    /**
+     * Marks this ring closed by the consumer. Producer will create a new ring, once it notices this.
+     */
+    void markClosed() {
+        memory.putIntVolatile(CLOSED_OFFSET, 1);
+    }
+
+    boolean isClosed() {
+        return memory.getIntVolatile(CLOSED_OFFSET) != 0;
+    }
+
+    /**
+     * Checks, if a consumer has opened this ring.
+     * @return true, if ring has been opened
+     */
+    boolean isOpened() {
+        return memory.getIntVolatile(OPENED_OFFSET) != 0;
+    }
+
+    /**
+     * Stamps this ring with current time, to tell producer that consumer is alive.
+     * Consumer calls this periodically.
+     */
+    void touch() {
+        memory.putOrderedLong(LIVENESS_OFFSET, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks, if consumer has not stamped this ring within given timeout. Consumer is stale,
+     * if it has died without closing the ring, or if it has not found a new ring.
+     * @param timeout timeout in milliseconds
+     * @return true, if consumer is stale
+     */
+    boolean isConsumerStale(long timeout) {
+        return System.currentTimeMillis() - memory.getLongVolatile(LIVENESS_OFFSET) > timeout;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private static void checkMemoryAccess() throws IOException {
+        if (!MappedMemory.isAvailable()) {
+            throw new IOException("Shared memory transport needs sun.misc.Unsafe, which is not available");
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
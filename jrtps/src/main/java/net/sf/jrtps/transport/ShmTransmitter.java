@@ -0,0 +1,122 @@
+package net.sf.jrtps.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.jrtps.message.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ShmTransmitter writes Messages into a ShmRing, that is read by a ShmReceiver on the same host.
+ * Each ShmTransmitter has a ring of its own, so the ring has a single producer. Threads of
+ * this process sending through the same ShmTransmitter are serialized with a monitor.
+ * 
+ * @author mcr70
+ */
+public class ShmTransmitter implements Transmitter {
+    private static final Logger logger = LoggerFactory.getLogger(ShmTransmitter.class);
+
+    // How long to wait for the receiver to make room, before dropping a Message
+    private static final long MAX_FULL_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+    // How long to wait for the receiver to open a new ring. Receiver looks for new rings periodically.
+    private static final long MAX_OPEN_WAIT = 2 * ShmReceiver.SCAN_INTERVAL;
+    // Receiver stamps its rings on every scan. If it has not done so for this long (ms), it is stale.
+    static final long CONSUMER_TIMEOUT = TimeUnit.NANOSECONDS.toMillis(10 * ShmReceiver.SCAN_INTERVAL);
+
+    private final ShmLocator locator;
+    private final File directory;
+    private final int ringSize;
+    private final int bufferSize;
+    private final String producerId = UUID.randomUUID().toString();
+
+    private ShmRing ring;
+
+    ShmTransmitter(ShmLocator locator, File directory, int ringSize, int bufferSize) {
+        this.locator = locator;
+        this.directory = directory;
+        this.ringSize = Math.max(ringSize, 4 * bufferSize);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sends a Message to a ShmReceiver. If the ring of this transmitter stays full,
+     * Message is dropped, like a datagram would be. Until the receiver has opened a new ring,
+     * messages are dropped only after the receiver has had time to find the ring.
+     * If the receiver is stale, messages are dropped without waiting.
+     * 
+     * @param m Message to send
+     * @return true, if Message did not fully fit into buffer-size
+     */
+    @Override
+    public synchronized boolean sendMessage(Message m) {
+        if (ring == null || ring.isClosed()) { // Receiver was closed, and possibly restarted
+            try {
+                ring = createRing();
+            } catch (IOException e) {
+                logger.debug("Failed to send message to {}: {}", locator, e.getMessage());
+                ring = null;
+                return false;
+            }
+        }
+
+        long waitStart = System.nanoTime();
+        boolean opened = ring.isOpened();
+        int result;
+        while ((result = ring.write(m, bufferSize)) < 0) {
+            if (ring.isConsumerStale(CONSUMER_TIMEOUT)) { // Receiver died, or never found the ring
+                logger.debug("Receiver at {} is not reading its ring, dropping message", locator);
+                if (!ring.getFile().exists()) {
+                    ring = null;
+                }
+                return false;
+            }
+
+            if (!opened && ring.isOpened()) { // Receiver just found the ring, give it time to drain it
+                opened = true;
+                waitStart = System.nanoTime();
+            }
+
+            if (System.nanoTime() - waitStart > (opened ? MAX_FULL_WAIT : MAX_OPEN_WAIT)) {
+                logger.debug("Ring to {} is full, dropping message", locator);
+                if (!ring.getFile().exists()) { // Receiver died without closing the ring
+                    ring = null;
+                }
+                return false;
+            }
+            
+            LockSupport.parkNanos(10000);
+        }
+
+        return result > 0;
+    }
+
+    private ShmRing createRing() throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("No receiver at " + directory);
+        }
+
+        if (ring != null) {
+            ring.getFile().delete();
+        }
+
+        File file = new File(directory, producerId + ShmRing.FILE_SUFFIX);
+        logger.debug("Creating ring {} for {}", file, locator);
+
+        return ShmRing.create(file, ringSize);
+    }
+
+    /**
+     * Close this ShmTransmitter. Ring of this transmitter is removed.
+     */
+    synchronized void close() {
+        if (ring != null) {
+            ring.getFile().delete();
+            ring = null;
+        }
+    }
+}
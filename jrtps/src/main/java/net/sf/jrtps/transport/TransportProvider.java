@@ -3,8 +3,8 @@ package net.sf.jrtps.transport;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.jrtps.Configuration;
 import net.sf.jrtps.types.Locator;
@@ -20,8 +20,8 @@ import org.slf4j.LoggerFactory;
 public abstract class TransportProvider {
     private static final Logger logger = LoggerFactory.getLogger(TransportProvider.class);
 
-    private static HashMap<String, TransportProvider> providersForScheme = new HashMap<>();
-    private static HashMap<Integer, TransportProvider> providersForKind = new HashMap<>();
+    private static ConcurrentHashMap<String, TransportProvider> providersForScheme = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<Integer, TransportProvider> providersForKind = new ConcurrentHashMap<>();
     
     private Configuration config;
 
@@ -106,11 +106,12 @@ public abstract class TransportProvider {
      * according to specification.
      * 
      * @param locator Locator of the receiver to create.
-     * @param queue a BlockingQueue, that should be populated with byte[] received by the Receiver.
+     * @param queue a BlockingQueue, that should be populated with ReceiveBuffers received by the Receiver.
+     *        Consumer of the queue releases each ReceiveBuffer once it has been handled.
      * @return Receiver, or null if Receiver could not be created
      * @throws IOException on IOException
      */
-    public abstract Receiver getReceiver(Locator locator, BlockingQueue<byte[]> queue) throws IOException;
+    public abstract Receiver getReceiver(Locator locator, BlockingQueue<ReceiveBuffer> queue) throws IOException;
 
     /**
      * Gets a Transmitter. Remote entities advertise how they can be reached by the means of Locator.
@@ -137,6 +138,17 @@ public abstract class TransportProvider {
      */
     public abstract Locator createLocator(URI uri, int domainId, int participantId, boolean isDiscovery);
 
+    /**
+     * Checks, whether or not a Locator advertised by a remote entity can be reached with
+     * this TransportProvider. Default implementation returns true. 
+     * 
+     * @param locator Locator of the kind handled by this TransportProvider
+     * @return true, if locator can be reached
+     */
+    public boolean isReachable(Locator locator) {
+        return true;
+    }
+
     /**
      * Closes TransportProvider. This method is called when participant is closed.
      * TransportProvider implementation might do some cleanup of resources by overriding 
@@ -2,13 +2,25 @@ package net.sf.jrtps.transport;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,8 +38,10 @@ import net.sf.jrtps.types.Locator;
 public class UDPProvider extends TransportProvider {
    private static final Logger logger = LoggerFactory.getLogger(UDPProvider.class);   
 
-   private HashMap<Locator, UDPTransmitter> transmitters = new HashMap<>();
-   private HashMap<Locator, UDPReceiver> receivers = new HashMap<>();
+   // Lookups do not lock. Creation is synchronized on the map, so that only one
+   // DatagramChannel or DatagramSocket is opened for each Locator.
+   private final ConcurrentHashMap<Locator, UDPTransmitter> transmitters = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Locator, UDPReceiver> receivers = new ConcurrentHashMap<>();
 
    /**
     * Provider scheme, that is used in configuring UDP TranportProvider URIs.
@@ -35,21 +49,55 @@ public class UDPProvider extends TransportProvider {
    public static final String PROVIDER_SCHEME = "udp";
 
    private final int participantId;
+   private final BufferPool bufferPool;
+   private final ScheduledExecutorService flusher;
+   private final UDPSelector selector;
 
    public UDPProvider(Configuration config, int participantId) {
       super(config);
       this.participantId = participantId; 
+      this.bufferPool = new BufferPool(config.getBufferSize(), config.getReceiveBufferPoolSize());
+
+      if (config.getUDPFlushWindow() > 0) {
+         this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "jrtps-udp-flusher");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      else {
+         this.flusher = null;
+      }
+
+      UDPSelector sel = null;
+      if (config.getUDPSelectorThreads() > 0) {
+         try {
+            sel = UDPSelector.getInstance(config.getUDPSelectorThreads());
+         } catch (IOException e) {
+            logger.warn("Failed to create UDPSelector, using a thread for each receiver", e);
+         }
+      }
+      this.selector = sel;
+
       logger.debug("Created UDPProvider, participantId {}", participantId);
    }
 
    @Override
-   public Receiver getReceiver(Locator locator, BlockingQueue<byte[]> queue) throws IOException {
+   public Receiver getReceiver(Locator locator, BlockingQueue<ReceiveBuffer> queue) throws IOException {
       UDPReceiver r = receivers.get(locator);
       if (r == null) {
-         UDPLocator loc = (UDPLocator) locator; 
-         ReceiverConfig rConfig = getDatagramSocket(loc);
-         r = new UDPReceiver(loc, rConfig, queue, getConfiguration().getBufferSize());
-         receivers.put(locator, r);
+         synchronized (receivers) {
+            r = receivers.get(locator);
+            if (r == null) {
+               UDPLocator loc = (UDPLocator) locator; 
+               ReceiverConfig rConfig = getDatagramSocket(loc);
+               r = new UDPReceiver(loc, rConfig, queue, bufferPool, selector);
+               receivers.put(locator, r);
+            }
+         }
       }
 
       return r;
@@ -59,8 +107,15 @@ public class UDPProvider extends TransportProvider {
    public Transmitter getTransmitter(Locator locator) throws IOException {
       UDPTransmitter tr = transmitters.get(locator);
       if (tr == null) {
-         tr = new UDPTransmitter(new UDPLocator(locator), getConfiguration().getBufferSize());
-         transmitters.put(locator, tr);
+         synchronized (transmitters) {
+            tr = transmitters.get(locator);
+            if (tr == null) {
+               Configuration cfg = getConfiguration();
+               tr = new UDPTransmitter(new UDPLocator(locator), cfg.getBufferSize(), 
+                     new UDPSocketOptions(cfg, null), flusher, cfg.getUDPFlushWindow(), cfg.getUDPBatchSize());
+               transmitters.put(locator, tr);
+            }
+         }
       }
       return tr;
    }
@@ -115,8 +170,22 @@ public class UDPProvider extends TransportProvider {
       return null;
    }
 
+   /**
+    * Sends the Messages, that transmitters of this UDPProvider have combined so far.
+    * Does nothing, if flush window is not configured.
+    */
+   public void flush() {
+      for (UDPTransmitter tr : transmitters.values()) {
+         tr.flush();
+      }
+   }
+
    @Override
    public void close() {
+      if (flusher != null) {
+         flusher.shutdownNow(); // Transmitters flush on close
+      }
+
       for (UDPReceiver r : receivers.values()) {
          r.close();
       }
@@ -130,15 +199,27 @@ public class UDPProvider extends TransportProvider {
    private ReceiverConfig getDatagramSocket(UDPLocator locator) throws IOException {
       logger.trace("Creating DatagramSocket for URI {}", locator.getUri());
 
+      UDPSocketOptions options = new UDPSocketOptions(getConfiguration(), locator.getUri());
       InetAddress ia = InetAddress.getByName(locator.getUri().getHost());
       DatagramSocket ds = null;
+      DatagramSocket[] sockets = null;
       int port = locator.getPort();
 
       boolean participantIdFixed = participantId != -1;
 
-      if (ia.isMulticastAddress()) {	
-         ds = new MulticastSocket(port);
-         ((MulticastSocket) ds).joinGroup(ia);
+      if (ia.isMulticastAddress() && selector != null) {
+         ds = openMulticastChannel(ia, port, options);
+      }
+      else if (ia.isMulticastAddress()) {	
+         MulticastSocket ms = new MulticastSocket(port);
+         NetworkInterface ni = options.getMulticastInterface();
+         if (ni != null) {
+            ms.joinGroup(new InetSocketAddress(ia, port), ni);
+         }
+         else {
+            ms.joinGroup(ia);
+         }
+         ds = ms;
       }
       else {
          int pId = participantIdFixed ? participantId : 0;
@@ -148,12 +229,16 @@ public class UDPProvider extends TransportProvider {
             logger.debug("Trying port {}", port);
 
             try {
-               ds = new DatagramSocket(port);
+               ds = selector != null ? openChannel(port) : new DatagramSocket(port);
+               if (options.getReceivers() > 1) {
+                  sockets = openReusePortSockets(ds, options.getReceivers());
+               }
                logger.debug("Port set to {}", port);
                //participantId = pId;
             }
-            catch(SocketException se) {
+            catch(SocketException se) { // Also, if port was taken before SO_REUSEPORT sockets were bound
                logger.debug("port {} was already used ({})", port, se.getMessage());
+               ds = null;
                pId++;
                port++;
             }
@@ -166,6 +251,123 @@ public class UDPProvider extends TransportProvider {
                ", participantId " + participantId);
       }
 
-      return new ReceiverConfig(participantId, ds);
+      if (sockets == null) {
+         sockets = new DatagramSocket[] { ds };
+      }
+
+      for (DatagramSocket socket : sockets) {
+         options.configureReceiver(socket);
+      }
+
+      return new ReceiverConfig(participantId, sockets);
+   }
+
+   /**
+    * Opens a DatagramChannel bound to given port. Its socket adaptor is returned, 
+    * so that channels are handled like the sockets of blocking receivers.
+    */
+   private DatagramSocket openChannel(int port) throws IOException {
+      DatagramChannel channel = DatagramChannel.open();
+      try {
+         channel.bind(new InetSocketAddress(port));
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      return channel.socket();
+   }
+
+   private DatagramSocket openMulticastChannel(InetAddress group, int port, UDPSocketOptions options) throws IOException {
+      NetworkInterface ni = options.getMulticastInterface();
+      if (ni == null) {
+         ni = getDefaultMulticastInterface(group); // Unlike MulticastSocket, channel needs an interface to join
+      }
+
+      ProtocolFamily family = group instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+      DatagramChannel channel = DatagramChannel.open(family);
+      try {
+         channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+         channel.bind(new InetSocketAddress(port));
+         channel.join(group, ni);
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      return channel.socket();
+   }
+
+   /**
+    * Gets the first multicast capable interface, that has an address of the same family as
+    * the group. Loopback interface is used, if there is no other interface.
+    */
+   private NetworkInterface getDefaultMulticastInterface(InetAddress group) throws IOException {
+      NetworkInterface loopback = null;
+      for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+         if (!ni.isUp()) {
+            continue;
+         }
+
+         if (ni.isLoopback()) {
+            loopback = ni;
+         }
+         else if (ni.supportsMulticast()) {
+            for (InetAddress addr : Collections.list(ni.getInetAddresses())) {
+               if ((addr instanceof Inet4Address) == (group instanceof Inet4Address)) {
+                  return ni;
+               }
+            }
+         }
+      }
+
+      if (loopback == null) {
+         throw new IOException("Could not find a network interface for multicast group " + group);
+      }
+
+      return loopback;
+   }
+
+   /**
+    * Replaces given socket with a number of sockets sharing its port with SO_REUSEPORT.
+    * Kernel spreads the datagrams among them. Given socket is used to probe, that no other
+    * participant of this host uses the port. It is closed before the sockets are bound, so another
+    * participant may take the port in between. Then a BindException is thrown, and caller
+    * probes the next port.
+    */
+   private DatagramSocket[] openReusePortSockets(DatagramSocket ds, int count) throws IOException {
+      SocketOption<Boolean> reusePort = UDPSocketOptions.reusePort();
+      if (reusePort == null) {
+         logger.warn("SO_REUSEPORT is not supported by this JVM, using a single receiver for port {}", 
+               ds.getLocalPort());
+         return new DatagramSocket[] { ds };
+      }
+
+      int port = ds.getLocalPort();
+      ds.close();
+
+      DatagramSocket[] sockets = new DatagramSocket[count];
+      try {
+         for (int i = 0; i < count; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            sockets[i] = channel.socket();
+            channel.setOption(reusePort, true);
+            channel.bind(new InetSocketAddress(port));
+         }
+      }
+      catch (IOException e) {
+         for (DatagramSocket socket : sockets) {
+            if (socket != null) {
+               socket.close();
+            }
+         }
+         throw e;
+      }
+
+      logger.debug("Opened {} sockets for port {} with SO_REUSEPORT", count, port);
+
+      return sockets;
    }
 }
@@ -11,58 +11,102 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class receives UDP packets from the network. 
+ * This class receives UDP packets from the network. If there are more than one
+ * socket sharing the port, each of them is served by a thread of its own. 
+ * If a UDPSelector is given, sockets are channels, which are handed over to it, 
+ * and run() returns immediately.
  * 
  * @author mcr70
  */
 public class UDPReceiver implements Receiver {
     private static final Logger log = LoggerFactory.getLogger(UDPReceiver.class);
 
-    private final BlockingQueue<byte[]> queue;
-    private final DatagramSocket socket;
-    private final int bufferSize;
+    private final BlockingQueue<ReceiveBuffer> queue;
+    private final DatagramSocket[] sockets;
+    private final BufferPool bufferPool;
     private final UDPLocator locator;
+    private final UDPSelector selector;
 
-    private boolean running = true;
+    private volatile boolean running = true;
     
-    UDPReceiver(UDPLocator locator, ReceiverConfig rConfig, BlockingQueue<byte[]> queue, int bufferSize) throws UnknownHostException {        
+    UDPReceiver(UDPLocator locator, ReceiverConfig rConfig, BlockingQueue<ReceiveBuffer> queue, BufferPool bufferPool, 
+            UDPSelector selector) throws UnknownHostException {        
         this.locator = locator;
-		this.socket = rConfig.ds;
+        this.selector = selector;
+		this.sockets = rConfig.sockets;
         this.queue = queue;
-        this.bufferSize = bufferSize;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public void run() {
+        if (selector != null) { // Sockets are channels read by I/O threads of UDPSelector
+            for (DatagramSocket socket : sockets) {
+                try {
+                    selector.register(socket.getChannel(), queue, bufferPool);
+                    log.debug("Listening on {}:{} with UDPSelector", locator.getUri(), socket.getLocalPort());
+                } catch (IOException e) {
+                    log.warn("Failed to register {} with UDPSelector", locator.getUri(), e);
+                }
+            }
+            return;
+        }
+
+        // The first socket is served by the thread given to this Receiver
+        for (int i = 1; i < sockets.length; i++) {
+            final DatagramSocket socket = sockets[i];
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive(socket);
+                }
+            }, "jrtps-udp-receiver-" + socket.getLocalPort() + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        receive(sockets[0]);
+    }
+
+    private void receive(DatagramSocket socket) {
         log.debug("Listening on {}:{}", locator.getUri(), socket.getLocalPort());
         
-        byte[] buf = new byte[bufferSize];
+        DatagramPacket p = new DatagramPacket(new byte[0], 0);
+        ReceiveBuffer buffer = null;
 
         while (running) {
-            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            if (buffer == null) {
+                buffer = bufferPool.acquire();
+            }
+            
             try {
+                p.setData(buffer.array(), 0, buffer.array().length);
                 socket.receive(p);
 
-                byte[] bytes = new byte[p.getLength()];
-                System.arraycopy(p.getData(), 0, bytes, 0, bytes.length);
-                log.debug("Received {} bytes from port {}", bytes.length, socket.getLocalPort());
+                buffer.setLength(p.getLength());
+                log.debug("Received {} bytes from port {}", p.getLength(), socket.getLocalPort());
 
-                queue.put(bytes);
+                queue.put(buffer);
+                buffer = null; // Ownership was passed to consumer of the queue
             } catch (IOException se) {
-                // Ignore. If we are still running, try to receive again
+                // Ignore. If we are still running, try to receive again with the same buffer
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
                 running = false;
             }
         } // while(...)
+
+        if (buffer != null) {
+            buffer.release();
+        }
     }
     
     void close() {        
-        if (socket != null) {
+        running = false;
+        for (DatagramSocket socket : sockets) {
             log.debug("Closing {}", socket.getLocalPort());
             socket.close();
         }
-        running = false;
     }
 
     @SuppressWarnings("unused")
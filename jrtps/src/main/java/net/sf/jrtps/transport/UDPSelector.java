@@ -0,0 +1,168 @@
+package net.sf.jrtps.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UDPSelector receives datagrams from non-blocking DatagramChannels with a fixed number
+ * of I/O threads. There is a single UDPSelector in a JVM, shared by all the UDPProviders,
+ * so the number of threads does not grow with the number of locators or participants.
+ * Channels are assigned to I/O threads in round robin fashion.
+ * <p>
+ * An I/O thread never blocks on a full message queue, since that would stall every other
+ * channel of the thread. A datagram, that does not fit into the queue, is dropped, just as
+ * the kernel would drop it from a full socket receive buffer.
+ *
+ * @author mcr70
+ */
+class UDPSelector {
+    private static final Logger logger = LoggerFactory.getLogger(UDPSelector.class);
+
+    private static final int MAX_READS_PER_KEY = 64; // Keep a busy channel from starving others
+    private static UDPSelector instance;
+
+    private final IOThread[] ioThreads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private UDPSelector(int threads) throws IOException {
+        ioThreads = new IOThread[threads];
+        for (int i = 0; i < threads; i++) {
+            ioThreads[i] = new IOThread(Selector.open());
+
+            Thread t = new Thread(ioThreads[i], "jrtps-udp-selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        logger.debug("Started {} UDP I/O threads", threads);
+    }
+
+    /**
+     * Gets the UDPSelector of this JVM. The number of threads is determined by the first call.
+     *
+     * @param threads number of I/O threads
+     * @return UDPSelector
+     * @throws IOException if Selector could not be opened
+     */
+    static synchronized UDPSelector getInstance(int threads) throws IOException {
+        if (instance == null) {
+            instance = new UDPSelector(Math.max(1, threads));
+        }
+
+        return instance;
+    }
+
+    /**
+     * Registers a DatagramChannel. Channel is deregistered, when it is closed.
+     *
+     * @param channel DatagramChannel to read from
+     * @param queue a BlockingQueue, that received datagrams are put into
+     * @param bufferPool BufferPool to get ReceiveBuffers from
+     * @throws IOException if channel could not be made non-blocking
+     */
+    void register(DatagramChannel channel, BlockingQueue<ReceiveBuffer> queue, BufferPool bufferPool) throws IOException {
+        channel.configureBlocking(false);
+
+        IOThread ioThread = ioThreads[(next.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+        ioThread.pending.add(new Registration(channel, queue, bufferPool));
+        ioThread.selector.wakeup();
+    }
+
+    private static class IOThread implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+        IOThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.warn("Select failed", e);
+                    continue;
+                }
+
+                Registration r;
+                while ((r = pending.poll()) != null) {
+                    try {
+                        r.channel.register(selector, SelectionKey.OP_READ, r);
+                    } catch (ClosedChannelException cce) {
+                        // Receiver was closed before it got registered
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid()) {
+                        ((Registration) key.attachment()).read();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Registration {
+        private final DatagramChannel channel;
+        private final BlockingQueue<ReceiveBuffer> queue;
+        private final BufferPool bufferPool;
+        Registration(DatagramChannel channel, BlockingQueue<ReceiveBuffer> queue, BufferPool bufferPool) {
+            this.channel = channel;
+            this.queue = queue;
+            this.bufferPool = bufferPool;
+        }
+
+        /**
+         * Reads datagrams from the channel. A buffer is held only while reading, so that
+         * nothing is left to release, when the channel is closed.
+         */
+        void read() {
+            ReceiveBuffer buffer = null;
+            try {
+                for (int i = 0; i < MAX_READS_PER_KEY; i++) {
+                    if (buffer == null) {
+                        buffer = bufferPool.acquire();
+                    }
+
+                    ByteBuffer bb = ByteBuffer.wrap(buffer.array());
+                    if (channel.receive(bb) == null) {
+                        return; // Nothing more to read
+                    }
+
+                    buffer.setLength(bb.position());
+                    if (queue.offer(buffer)) {
+                        buffer = null; // Ownership was passed to consumer of the queue
+                    }
+                    else {
+                        logger.debug("Message queue is full, dropping {} bytes", bb.position());
+                    }
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    logger.debug("Failed to receive from {}", channel, e);
+                }
+            } finally {
+                if (buffer != null) {
+                    buffer.release();
+                }
+            }
+        }
+    }
+}
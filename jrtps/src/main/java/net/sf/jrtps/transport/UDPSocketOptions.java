@@ -0,0 +1,189 @@
+package net.sf.jrtps.transport;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.jrtps.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket options of UDP transport. An option is read from the query of a listener URI,
+ * and if it is not given there, from configuration property jrtps.udp.&lt;option&gt;.
+ * For example:
+ * <pre>
+ *   udp://localhost?receive-buffer-size=4194304&amp;receivers=4
+ * </pre>
+ * Options, that are not set, are left to OS defaults. Transmitters are created for
+ * remote locators, so they use only the options from configuration.
+ *
+ * @author mcr70
+ */
+class UDPSocketOptions {
+    private static final Logger logger = LoggerFactory.getLogger(UDPSocketOptions.class);
+
+    static final String RECEIVE_BUFFER_SIZE = "receive-buffer-size";
+    static final String SEND_BUFFER_SIZE = "send-buffer-size";
+    static final String TRAFFIC_CLASS = "traffic-class";
+    static final String MULTICAST_TTL = "multicast-ttl";
+    static final String MULTICAST_LOOPBACK = "multicast-loopback";
+    static final String MULTICAST_INTERFACE = "multicast-interface";
+    static final String RECEIVERS = "receivers";
+
+    // StandardSocketOptions.SO_REUSEPORT is available since Java 9
+    private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+
+    private final Configuration config;
+    private final Map<String, String> uriOptions = new HashMap<>();
+
+    /**
+     * Constructor for UDPSocketOptions.
+     * @param config Configuration
+     * @param uri URI, whose query may override options of configuration. May be null.
+     */
+    UDPSocketOptions(Configuration config, URI uri) {
+        this.config = config;
+
+        if (uri != null && uri.getQuery() != null) {
+            for (String option : uri.getQuery().split("&")) {
+                int idx = option.indexOf('=');
+                if (idx > 0) {
+                    uriOptions.put(option.substring(0, idx), option.substring(idx + 1));
+                }
+                else {
+                    logger.warn("Option '{}' of {} is not in format <option>=<value>, ignoring it", option, uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of sockets and receiver threads to open for a unicast locator.
+     * @return number of receivers, default 1
+     */
+    int getReceivers() {
+        return Math.max(1, getInt(RECEIVERS, 1));
+    }
+
+    /**
+     * Gets the SO_REUSEPORT socket option.
+     * @return SO_REUSEPORT, or null if it is not supported by the JVM
+     */
+    static SocketOption<Boolean> reusePort() {
+        return SO_REUSEPORT;
+    }
+
+    /**
+     * Gets the network interface used for multicast.
+     * @return NetworkInterface, or null if not configured
+     * @throws IOException if the configured address could not be resolved
+     */
+    NetworkInterface getMulticastInterface() throws IOException {
+        String value = get(MULTICAST_INTERFACE);
+        if (value == null) {
+            return null;
+        }
+
+        NetworkInterface ni = NetworkInterface.getByName(value);
+        if (ni == null) {
+            ni = NetworkInterface.getByInetAddress(InetAddress.getByName(value));
+        }
+
+        if (ni == null) {
+            logger.warn("Could not find network interface for {} '{}'", MULTICAST_INTERFACE, value);
+        }
+
+        return ni;
+    }
+
+    /**
+     * Applies options to a receiving socket.
+     * @param socket DatagramSocket
+     * @throws SocketException on SocketException
+     */
+    void configureReceiver(DatagramSocket socket) throws SocketException {
+        int size = getInt(RECEIVE_BUFFER_SIZE, 0);
+        if (size > 0) {
+            socket.setReceiveBufferSize(size);
+            if (socket.getReceiveBufferSize() < size) { // On Linux, limited by net.core.rmem_max
+                logger.warn("{} {} was limited to {} by OS", RECEIVE_BUFFER_SIZE, size, socket.getReceiveBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Applies options to a sending channel.
+     * @param channel DatagramChannel
+     * @param multicast whether or not channel sends to a multicast group
+     * @throws IOException on IOException
+     */
+    void configureTransmitter(DatagramChannel channel, boolean multicast) throws IOException {
+        int size = getInt(SEND_BUFFER_SIZE, 0);
+        if (size > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+
+        int trafficClass = getInt(TRAFFIC_CLASS, -1);
+        if (trafficClass >= 0) {
+            channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+        }
+
+        if (multicast) {
+            int ttl = getInt(MULTICAST_TTL, -1);
+            if (ttl >= 0) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            }
+
+            String loopback = get(MULTICAST_LOOPBACK);
+            if (loopback != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, Boolean.parseBoolean(loopback));
+            }
+
+            NetworkInterface ni = getMulticastInterface();
+            if (ni != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            }
+        }
+    }
+
+    private String get(String option) {
+        String value = uriOptions.get(option);
+        if (value == null) {
+            value = config.getProperty("jrtps.udp." + option);
+        }
+
+        return value;
+    }
+
+    private int getInt(String option, int defltValue) {
+        String value = get(option);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                logger.warn("Failed to convert value of {}: {} to integer", option, value);
+            }
+        }
+
+        return defltValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -7,29 +7,65 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import net.sf.jrtps.message.InfoDestination;
+import net.sf.jrtps.message.InfoReply;
+import net.sf.jrtps.message.InfoReplyIp4;
+import net.sf.jrtps.message.InfoSource;
+import net.sf.jrtps.message.InfoTimestamp;
 import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.SubMessage;
+import net.sf.jrtps.types.GuidPrefix;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * UDPTransmitter send Messages to remote entities using UDP protocol.
+ * <p>
+ * If a flush window is given, UDPTransmitter combines Messages into datagrams of
+ * at most batch size bytes. Messages are kept in buffers of their own, and a datagram
+ * is sent with a single gathering write once the flush window has elapsed since
+ * the first Message of the datagram, or the datagram is full. Submessages of a combined
+ * Message are preceded by InfoDestination and InfoTimestamp, that reset the receiver
+ * state to the one at the start of a Message.
  * 
  * @author mcr70
  */
 public class UDPTransmitter implements Transmitter {
 	private static final Logger log = LoggerFactory.getLogger(UDPTransmitter.class);
 
-	// This queue is shared among all the UDPTransmitters. Expected size is 1.
-	// This is used to minimize ByteBuffer allocations
-	private static ConcurrentLinkedQueue<RTPSByteBuffer> bufferQueue = new ConcurrentLinkedQueue<>();
+	// Each sending thread has a direct buffer of its own, shared among all the UDPTransmitters.
+	// Message is written straight into it, and NIO does not need to copy it into a temporary
+	// direct buffer before sending.
+	private static final ThreadLocal<RTPSByteBuffer> sendBuffer = new ThreadLocal<>();
+
+	private static final int HEADER_LENGTH = 20;
+	// InfoDestination(UNKNOWN) and InfoTimestamp(invalidate), written before each combined Message
+	private static final ByteBuffer RESET_SUBMESSAGES = createResetSubMessages();
 
 	private final UDPLocator locator;
     private final DatagramChannel channel;
     private final int bufferSize;
 
+    private final ScheduledExecutorService flusher;
+    private final long flushWindow;
+    private final int batchSize;
+
+    // Messages of the datagram being combined. Guarded by this
+    private final List<RTPSByteBuffer> pending = new ArrayList<>();
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final ArrayDeque<RTPSByteBuffer> freeBuffers = new ArrayDeque<>();
+    private GuidPrefix pendingPrefix;
+    private int pendingLength;
+    private long generation; // Incremented on each flush
+
     /**
      * Constructor for UDPWriter.
      * @param locator Locator where the messages will be sent.
@@ -37,14 +73,39 @@ public class UDPTransmitter implements Transmitter {
      * @throws IOException
      */
     UDPTransmitter(UDPLocator locator, int bufferSize) throws IOException {
+        this(locator, bufferSize, null, null, 0, bufferSize);
+    }
+
+    /**
+     * Constructor for UDPTransmitter. Messages are combined into datagrams, if flusher
+     * is given and flushWindow is positive.
+     * @param locator Locator where the messages will be sent.
+     * @param bufferSize Size of the buffer that will be used to write messages.
+     * @param options UDPSocketOptions to apply to the channel. May be null.
+     * @param flusher ScheduledExecutorService used to send datagrams after flush window
+     * @param flushWindow Time in microseconds a Message may wait for others. 0 disables combining.
+     * @param batchSize Maximum size of a combined datagram
+     * @throws IOException
+     */
+    UDPTransmitter(UDPLocator locator, int bufferSize, UDPSocketOptions options, 
+            ScheduledExecutorService flusher, long flushWindow, int batchSize) throws IOException {
         this.locator = locator;
         this.bufferSize = bufferSize;
+        this.flusher = flusher;
+        this.flushWindow = flusher != null ? flushWindow : 0;
+        this.batchSize = batchSize;
         channel = DatagramChannel.open();
-        channel.connect(locator.getSocketAddress());
+        try {
+            if (options != null) {
+                options.configureTransmitter(channel, locator.isMulticastLocator());
+            }
+            channel.connect(locator.getSocketAddress());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
-   
-    
     /**
      * Sends a Message to a Locator of this UDPWriter.
      * If an overflow occurs during writing of Message, only submessages that
@@ -55,22 +116,33 @@ public class UDPTransmitter implements Transmitter {
      */
     @Override
     public boolean sendMessage(Message m) {
-    	// Try to use cached buffer, primary reason is for avoiding buffer allocation
-    	RTPSByteBuffer buffer = bufferQueue.poll(); 
-    	if (buffer == null) {
-    		buffer = new RTPSByteBuffer(ByteBuffer.allocate(bufferSize));
-            buffer.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        if (flushWindow > 0 && isCombinable(m)) {
+            return combine(m);
+        }
+
+        if (flushWindow > 0) {
+            flush(); // Keep the order of Messages
+        }
+
+        return send(m);
+    }
+
+    private boolean send(Message m) {
+    	RTPSByteBuffer buffer = sendBuffer.get();
+    	if (buffer == null || buffer.getBuffer().capacity() < bufferSize) {
+    		buffer = allocateBuffer(bufferSize);
+    		sendBuffer.set(buffer);
     	}
-    	
+
+    	ByteBuffer bb = buffer.getBuffer();
+    	bb.clear();
+    	bb.limit(bufferSize); // Buffer may have been allocated by a transmitter with larger buffer-size
+
         boolean overFlowed = m.writeTo(buffer);
-        buffer.getBuffer().flip();
+        bb.flip();
 
         try {
-            channel.write(buffer.getBuffer());
-            if (bufferQueue.size() == 0) { // Add buffer to cache to be re-used
-            	buffer.getBuffer().clear();
-            	bufferQueue.add(buffer);
-            }
+            channel.write(bb);
         } catch (ClosedByInterruptException cbie) {
             log.debug("Message sending was interrupted");
         } catch (IOException e) {
@@ -80,6 +152,128 @@ public class UDPTransmitter implements Transmitter {
         return overFlowed;
     }
 
+    private synchronized boolean combine(Message m) {
+        RTPSByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = allocateBuffer(bufferSize);
+        }
+
+        // Actual length of the last submessage is needed, as other submessages may follow it
+        boolean overFlowed = m.writeTo(buffer, false);
+        ByteBuffer bb = buffer.getBuffer();
+        while ((bb.position() & 3) != 0 && bb.hasRemaining()) {
+            bb.put((byte) 0); // Next submessage is aligned to 4
+        }
+        bb.flip();
+
+        GuidPrefix prefix = m.getHeader().getGuidPrefix();
+        int length = bb.remaining() - HEADER_LENGTH + RESET_SUBMESSAGES.capacity();
+        if (!pending.isEmpty() && (pendingLength + length > batchSize || !prefix.equals(pendingPrefix))) {
+            flush();
+        }
+
+        if (pending.isEmpty()) {
+            segments.add(bb);
+            pendingPrefix = prefix;
+            pendingLength = bb.remaining();
+            scheduleFlush();
+        }
+        else {
+            bb.position(HEADER_LENGTH);
+            segments.add(RESET_SUBMESSAGES.duplicate());
+            segments.add(bb);
+            pendingLength += length;
+        }
+        pending.add(buffer);
+
+        if (pendingLength >= batchSize) {
+            flush();
+        }
+
+        return overFlowed;
+    }
+
+    private void scheduleFlush() {
+        final long gen = generation;
+        try {
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (UDPTransmitter.this) {
+                        if (generation == gen) { // Not flushed yet
+                            flush();
+                        }
+                    }
+                }
+            }, flushWindow, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Provider is closing; pending Messages are flushed on close
+        }
+    }
+
+    /**
+     * Sends the Messages combined so far. Does nothing, if Messages are not combined.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            channel.write(segments.toArray(new ByteBuffer[segments.size()]));
+        } catch (ClosedByInterruptException cbie) {
+            log.debug("Message sending was interrupted");
+        } catch (IOException e) {
+            log.error("Failed to send message to " + locator, e);
+        }
+
+        for (RTPSByteBuffer buffer : pending) {
+            buffer.getBuffer().clear();
+            freeBuffers.add(buffer);
+        }
+
+        pending.clear();
+        segments.clear();
+        pendingLength = 0;
+        generation++;
+    }
+
+    /**
+     * Messages, that change source or reply locators of the receiver, cannot be 
+     * combined with others, since the change cannot be reset.
+     */
+    private boolean isCombinable(Message m) {
+        for (SubMessage sm : m.getSubMessages()) {
+            if (sm instanceof InfoSource || sm instanceof InfoReply || sm instanceof InfoReplyIp4) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static ByteBuffer createResetSubMessages() {
+        Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+        m.addSubMessage(new InfoDestination(GuidPrefix.GUIDPREFIX_UNKNOWN));
+        m.addSubMessage(new InfoTimestamp());
+
+        RTPSByteBuffer buffer = allocateBuffer(64);
+        m.writeTo(buffer, false);
+
+        ByteBuffer bb = buffer.getBuffer();
+        bb.flip();
+        bb.position(HEADER_LENGTH);
+
+        return bb.slice().asReadOnlyBuffer();
+    }
+
+    private static RTPSByteBuffer allocateBuffer(int size) {
+        RTPSByteBuffer buffer = new RTPSByteBuffer(ByteBuffer.allocateDirect(size));
+        buffer.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+        return buffer;
+    }
+
     @SuppressWarnings("unused")
     private void writeToFile(Buffer buffer, String fileName) {
         try {
@@ -95,6 +289,7 @@ public class UDPTransmitter implements Transmitter {
      * Close this UDPTransmitter.
      */
     void close() {
+        flush();
     	try {
 			channel.close();
 		} 
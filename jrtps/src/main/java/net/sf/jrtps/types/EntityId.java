@@ -1,7 +1,5 @@
 package net.sf.jrtps.types;
 
-import java.util.Arrays;
-
 import net.sf.jrtps.builtin.ParticipantData;
 import net.sf.jrtps.builtin.ParticipantMessage;
 import net.sf.jrtps.message.parameter.BuiltinEndpointSet;
@@ -119,8 +117,20 @@ public abstract class EntityId {
                 && entityKey[2] == other.entityKey[2] && entityKind == other.entityKind;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof EntityId) {
+            return equals((EntityId) other);
+        }
+        
+        return false;
+    }
+
+    @Override
     public int hashCode() {
-        return Arrays.hashCode(getBytes());
+        // EntityIds are used as keys of endpoint lookups; avoid allocating in here
+        return ((entityKey[0] & 0xff) << 24) | ((entityKey[1] & 0xff) << 16) | 
+                ((entityKey[2] & 0xff) << 8) | (entityKind & 0xff);
     }
 
     /**
@@ -23,6 +23,19 @@ public class FragmentNumberSet {
         this.numBits = bitmaps.length * 32;
     }
 
+    /**
+     * Constructor for FragmentNumberSet. 
+     * 
+     * @param base base of the FragmentNumberSet
+     * @param numBits Number of bits in bitmaps
+     * @param bitmaps Bitmap of the contained fragment numbers in set
+     */
+    public FragmentNumberSet(int base, int numBits, int[] bitmaps) {
+        this.bitmapBase = new FragmentNumber(base);
+        this.bitmaps = bitmaps;
+        this.numBits = numBits;
+    }
+
     public FragmentNumberSet(RTPSByteBuffer bb) {
         bitmapBase = new FragmentNumber(bb);
 
@@ -76,7 +89,7 @@ public class FragmentNumberSet {
             int bitmap = bitmaps[i];
 
             for (int j = 0; j < 32 && bitCount < numBits; j++) {
-                if ((bitmap & 0x8000000) == 0x8000000) { // id the MSB matches, add a new seqnum
+                if ((bitmap & 0x80000000) == 0x80000000) { // id the MSB matches, add a new seqnum
                     seqNums.add(seqNum);
                 }
 
@@ -96,17 +109,18 @@ public class FragmentNumberSet {
         List<Integer> seqNums = new LinkedList<Integer>();
 
         int seqNum = bitmapBase.getValue();
+        int bitCount = 0;
 
         for (int i = 0; i < bitmaps.length; i++) {
             int bitmap = bitmaps[i];
 
-            for (int j = 0; j < 32; j++) {
-                if ((bitmap & 0x8000000) == 0x0) { // id the MSB does not
-                                                   // matches, add a new seqnum
+            for (int j = 0; j < 32 && bitCount < numBits; j++) {
+                if ((bitmap & 0x80000000) == 0x0) { // id the MSB does not
+                                                    // matches, add a new seqnum
                     seqNums.add(seqNum);
                 }
 
-                seqNum++;
+                seqNum++; bitCount++;
                 bitmap = bitmap << 1;
             }
         }
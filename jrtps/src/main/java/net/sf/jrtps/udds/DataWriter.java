@@ -6,6 +6,7 @@ import java.util.Set;
 import net.sf.jrtps.builtin.PublicationData;
 import net.sf.jrtps.builtin.SubscriptionData;
 import net.sf.jrtps.message.parameter.QosLiveliness;
+import net.sf.jrtps.rtps.FlowController;
 import net.sf.jrtps.rtps.RTPSWriter;
 
 /**
@@ -187,6 +188,15 @@ public class DataWriter<T> extends Entity<T, SubscriptionData> {
         rtps_writer.notifyReaders();
     }
 
+    /**
+     * Sets the FlowController, that limits the rate this DataWriter sends samples at.
+     * @param fc FlowController, or null if rate is not limited
+     * @see net.sf.jrtps.rtps.TokenBucketFlowController
+     */
+    public void setFlowController(FlowController fc) {
+        rtps_writer.setFlowController(fc);
+    }
+
     /**
      * Registers a ContentFilter
      * @param cf ContentFilter to register
@@ -0,0 +1,847 @@
+package net.sf.jrtps.udds;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.jrtps.Marshaller;
+import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.parameter.KeyHash;
+import net.sf.jrtps.message.parameter.QosDurabilityService;
+import net.sf.jrtps.message.parameter.QosHistory;
+import net.sf.jrtps.rtps.ChangeKind;
+import net.sf.jrtps.rtps.Sample;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DurabilityJournal keeps the history of a TRANSIENT or PERSISTENT DataWriter. Written samples
+ * are appended, in their marshalled form, to memory mapped segment files in a directory of
+ * the topic. When a segment is full, a new one is started. Late joining readers are served
+ * from the journal, and history of a writer is recovered from it without marshalling the samples
+ * again.
+ * <p>
+ * Journal retains samples according to QosDurabilityService: history depth and
+ * max_samples_per_instance per instance, max_instances and max_samples in total.
+ * When an instance is disposed or unregistered, only the dispose or unregister record
+ * of the instance is retained. A segment is deleted, once none of its records is retained.
+ * <p>
+ * Segments, that still have some retained records, are compacted in the background.
+ * Retained records of consecutive segments are copied into a snapshot segment, which replaces
+ * them. Records are copied without holding the lock of the journal, so appends are not blocked.
+ * Dispose and unregister records are dropped, when compacting the oldest segments, since
+ * there are no older records left for them to hide. So the size of the journal is proportional
+ * to the number of retained samples, rather than to the number of samples written.
+ * <p>
+ * Layout of a segment file is:
+ * <pre>
+ *  0: magic, version
+ *  8: last sequence number covered by a snapshot, 0 if segment is not a snapshot
+ * 16: records, each aligned to 8 bytes
+ *     0: length of the record, 0 marks the end of records
+ *     4: sequence number
+ *    12: timestamp
+ *    20: source timestamp
+ *    28: ChangeKind, key flag
+ *    32: key hash
+ *    48: serialized payload
+ * </pre>
+ * Length of a record is written last, so a record that was only partially written before
+ * a crash is ignored when the journal is opened. A snapshot is renamed over the first segment
+ * it replaces. Segments covered by a snapshot, that were left behind by a crash, are deleted
+ * when the journal is opened.
+ *
+ * @author mcr70
+ */
+class DurabilityJournal {
+    private static final Logger logger = LoggerFactory.getLogger(DurabilityJournal.class);
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String LOCK_FILE = "journal.lock";
+
+    private static final int MAGIC = 0x4a524e4c; // 'JRNL'
+    private static final int VERSION = 1;
+    private static final int COVERED_OFFSET = 8;
+    private static final int SEGMENT_HEADER_LENGTH = 16;
+
+    private static final int SEQNUM_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 12;
+    private static final int SOURCE_TIMESTAMP_OFFSET = 20;
+    private static final int KIND_OFFSET = 28;
+    private static final int KEY_FLAG_OFFSET = 29;
+    private static final int KEY_OFFSET = 32;
+    private static final int PAYLOAD_OFFSET = 48;
+
+    private static final KeyHash NO_KEY = new KeyHash(new byte[0]); // Instance of keyless topics
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final FileLock lock;
+    private final Executor compactor;
+
+    private final int maxSamplesPerInstance;
+    private final int maxInstances;
+    private final int maxSamples;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    private final Map<KeyHash, ArrayDeque<Entry>> instances = new HashMap<>();
+    private int tombstones = 0; // Retained dispose and unregister records
+
+    private Segment active;
+    private long seqNumMax = 0;
+    private boolean acquired = false;
+    private boolean closed = false;
+    private boolean compactionScheduled = false;
+    private boolean compacting = false;
+
+    private DurabilityJournal(File directory, QosDurabilityService ds, int segmentSize, boolean sync,
+            FileLock lock, Executor compactor) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.lock = lock;
+        this.compactor = compactor;
+
+        int perInstance = limit(ds.getMaxSamplesPerInstance());
+        if (ds.getHistoryKind() == QosHistory.Kind.KEEP_LAST) {
+            perInstance = Math.min(perInstance, limit(ds.getHistoryDepth()));
+        }
+        this.maxSamplesPerInstance = perInstance;
+        this.maxInstances = limit(ds.getMaxInstances());
+        this.maxSamples = limit(ds.getMaxSamples());
+    }
+
+    /**
+     * Opens a journal in given directory. Segments found in the directory are read,
+     * unless the journal is cleared.
+     *
+     * @param directory directory of the journal
+     * @param ds QosDurabilityService, that determines which samples are retained
+     * @param segmentSize size of segment files
+     * @param sync whether or not to force written samples to storage
+     * @param clear if true, existing segments are deleted
+     * @param compactor Executor that runs compaction, or null if journal is not compacted in the background
+     * @return DurabilityJournal
+     * @throws IOException if journal could not be opened, or if it is used by another process
+     */
+    static DurabilityJournal open(File directory, QosDurabilityService ds, int segmentSize, boolean sync,
+            boolean clear, Executor compactor) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+
+        @SuppressWarnings("resource") // Closed with the lock
+        FileChannel lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // Locked by another participant in this JVM
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal " + directory + " is in use");
+        }
+
+        DurabilityJournal journal = new DurabilityJournal(directory, ds, segmentSize, sync, lock, compactor);
+        try {
+            if (clear) {
+                journal.deleteFiles();
+            }
+            else {
+                journal.recover();
+            }
+        }
+        catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+
+        return journal;
+    }
+
+    private synchronized void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(SEGMENT_SUFFIX) || f.getName().endsWith(COMPACT_SUFFIX);
+            }
+        });
+        Arrays.sort(files); // Names are zero padded first sequence numbers
+
+        long covered = 0;
+        for (File f : files) {
+            Segment segment = null;
+            if (f.getName().endsWith(SEGMENT_SUFFIX)) {
+                segment = Segment.open(f);
+                if (segment == null) {
+                    logger.warn("Ignoring {}, it is not a journal segment", f);
+                    continue;
+                }
+            }
+
+            if (segment == null || segment.firstSeqNum <= covered) { // Left behind by compaction
+                logger.debug("Deleting {}", f);
+                if (!f.delete()) {
+                    logger.warn("Failed to delete {}", f);
+                }
+                continue;
+            }
+
+            activate(segment);
+            seqNumMax = Math.max(seqNumMax, segment.firstSeqNum - 1);
+
+            int offset = SEGMENT_HEADER_LENGTH;
+            MappedByteBuffer buffer = segment.buffer;
+            while (offset + PAYLOAD_OFFSET <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                long sn = buffer.getLong(offset + SEQNUM_OFFSET);
+                int kind = buffer.get(offset + KIND_OFFSET);
+                if (length < PAYLOAD_OFFSET || offset + length > buffer.capacity() || sn <= seqNumMax
+                        || kind < 0 || kind >= ChangeKind.values().length) {
+                    break; // End of records, or a partially written record
+                }
+
+                seqNumMax = sn;
+                index(new Entry(segment, offset, align(length), sn, readKey(buffer, offset),
+                        ChangeKind.values()[kind]));
+
+                offset += align(length);
+            }
+            segment.position = offset;
+
+            covered = Math.max(covered, segment.covered);
+            seqNumMax = Math.max(seqNumMax, segment.covered);
+        }
+
+        logger.debug("Recovered {} samples from {}, last sequence number {}", entries.size(), directory, seqNumMax);
+        scheduleCompaction();
+    }
+
+    /**
+     * Marks this journal to be used by a DataWriter.
+     * @return false, if journal was already used by another DataWriter
+     */
+    synchronized boolean acquire() {
+        if (acquired) {
+            return false;
+        }
+
+        acquired = true;
+        return true;
+    }
+
+    /**
+     * Releases this journal from a DataWriter. Journal is kept open.
+     */
+    synchronized void release() {
+        acquired = false;
+    }
+
+    /**
+     * Appends a Sample to this journal. Sample is marshalled, if it has not been already.
+     *
+     * @param sample Sample to append
+     * @throws IOException if Sample could not be marshalled, or a new segment could not be created
+     */
+    synchronized void append(Sample<?> sample) throws IOException {
+        long sn = sample.getSequenceNumber();
+        if (sn <= seqNumMax) {
+            logger.warn("Sequence number {} of sample is not greater than last sequence number {} of journal {}",
+                    sn, seqNumMax, directory);
+            return;
+        }
+
+        DataEncapsulation dEnc = sample.getDataEncapsulation();
+        byte[] payload = dEnc != null ? dEnc.getSerializedPayload() : new byte[0];
+        int length = PAYLOAD_OFFSET + payload.length;
+
+        // Room for the record, and for the end marker after it
+        if (active == null || active.position + align(length) + 4 > active.buffer.capacity()) {
+            activate(Segment.create(new File(directory, String.format("%020d%s", sn, SEGMENT_SUFFIX)), sn,
+                    Math.max(segmentSize, SEGMENT_HEADER_LENGTH + align(length) + 4), 0));
+            scheduleCompaction();
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.position;
+        KeyHash key = sample.getKey();
+
+        int next = offset + align(length);
+        if (next + 4 <= buffer.capacity()) {
+            buffer.putInt(next, 0); // Clear whatever a partially written record left there
+        }
+
+        buffer.putLong(offset + SEQNUM_OFFSET, sn);
+        buffer.putLong(offset + TIMESTAMP_OFFSET, sample.getTimestamp());
+        buffer.putLong(offset + SOURCE_TIMESTAMP_OFFSET, sample.getSourceTimeStamp());
+        buffer.put(offset + KIND_OFFSET, (byte) sample.getKind().ordinal());
+        buffer.put(offset + KEY_FLAG_OFFSET, (byte) (key != null ? 1 : 0));
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(offset + KEY_OFFSET);
+        bb.put(key != null ? key.getKeyHash() : new byte[16]);
+        bb.put(payload);
+        buffer.putInt(offset, length); // Commits the record
+
+        if (sync) {
+            buffer.force();
+        }
+
+        active.position = next;
+        seqNumMax = sn;
+
+        index(new Entry(active, offset, align(length), sn, key, sample.getKind()));
+    }
+
+    /**
+     * Gets the samples retained by this journal, whose sequence number is greater than
+     * sequenceNumber, and less than before.
+     *
+     * @param sequenceNumber sequence number to compare to
+     * @param before upper limit of sequence numbers, exclusive
+     * @param m Marshaller used to unmarshall the samples
+     * @return samples in sequence number order
+     */
+    synchronized <T> LinkedList<Sample<T>> getSamplesSince(long sequenceNumber, long before, Marshaller<T> m) {
+        LinkedList<Sample<T>> samples = new LinkedList<>();
+        if (sequenceNumber + 1 < before) {
+            for (Entry e : entries.subMap(sequenceNumber + 1, before).values()) {
+                samples.add(e.toSample(m));
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * Gets the sample retained by this journal, whose sequence number is the smallest one
+     * greater than sequenceNumber, and less than before.
+     *
+     * @param sequenceNumber sequence number to compare to
+     * @param before upper limit of sequence numbers, exclusive
+     * @param m Marshaller used to unmarshall the sample
+     * @return Sample, or null if there is no such sample
+     */
+    synchronized <T> Sample<T> getSampleAfter(long sequenceNumber, long before, Marshaller<T> m) {
+        Map.Entry<Long, Entry> e = entries.higherEntry(sequenceNumber);
+        if (e != null && e.getKey() < before) {
+            return e.getValue().toSample(m);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets a Sample retained by this journal.
+     *
+     * @param sequenceNumber sequence number of the Sample
+     * @param m Marshaller used to unmarshall the sample
+     * @return Sample, or null if it is not retained
+     */
+    synchronized <T> Sample<T> getSample(long sequenceNumber, Marshaller<T> m) {
+        Entry e = entries.get(sequenceNumber);
+        if (e != null) {
+            return e.toSample(m);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the smallest sequence number retained.
+     * @return smallest sequence number, or 0 if journal is empty
+     */
+    synchronized long getSeqNumMin() {
+        return entries.isEmpty() ? 0 : entries.firstKey();
+    }
+
+    /**
+     * Gets the greatest sequence number ever written to this journal.
+     * @return greatest sequence number
+     */
+    synchronized long getSeqNumMax() {
+        return seqNumMax;
+    }
+
+    /**
+     * Gets the number of records retained.
+     * @return number of records
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of segment files of this journal.
+     * @return number of segments
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Closes this journal. Segment files are kept.
+     */
+    synchronized void close() {
+        clear();
+
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            logger.debug("Failed to release lock of journal {}", directory, e);
+        }
+    }
+
+    /**
+     * Deletes all the segments of this journal. Journal cannot be used after it is deleted.
+     */
+    synchronized void delete() {
+        clear();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if ((name.endsWith(SEGMENT_SUFFIX) || name.endsWith(COMPACT_SUFFIX)) && !f.delete()) {
+                    logger.warn("Failed to delete {}", f);
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        closed = true;
+        segments.clear();
+        entries.clear();
+        instances.clear();
+        tombstones = 0;
+        active = null;
+    }
+
+    /**
+     * Compacts segments of this journal, until there is nothing to compact.
+     */
+    void compact() {
+        try {
+            while (compactOnce()) {
+                // Keep on compacting
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to compact journal {}", directory, e);
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactor == null || compactionScheduled) {
+            return;
+        }
+
+        compactionScheduled = true;
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DurabilityJournal.this) {
+                        compactionScheduled = false;
+                    }
+                    compact();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            compactionScheduled = false; // Participant is being closed
+        }
+    }
+
+    private boolean compactOnce() throws IOException {
+        List<Segment> run;
+        List<Entry> retained = new ArrayList<>();
+        List<Entry> dropped = new ArrayList<>();
+        long covered;
+
+        synchronized (this) {
+            if (closed || compacting || (run = selectRun()) == null) {
+                return false;
+            }
+
+            boolean oldest = segments.get(0) == run.get(0);
+            covered = segments.get(segments.indexOf(run.get(run.size() - 1)) + 1).firstSeqNum - 1;
+            for (Entry e : entries.subMap(run.get(0).firstSeqNum, true, covered, true).values()) {
+                if (oldest && e.isTombstone()) {
+                    dropped.add(e); // Nothing older is left for it to hide
+                }
+                else {
+                    retained.add(e);
+                }
+            }
+
+            compacting = true;
+            for (Segment s : run) {
+                s.compacting = true;
+            }
+        }
+
+        Segment first = run.get(0);
+        File tmp = new File(directory, first.file.getName() + COMPACT_SUFFIX);
+        try {
+            // Segments of the run are no longer written to, so they can be read without locking
+            int size = SEGMENT_HEADER_LENGTH + 4;
+            for (Entry e : retained) {
+                size += e.length;
+            }
+
+            Segment snapshot = Segment.create(tmp, first.firstSeqNum, size, covered);
+            ByteBuffer out = snapshot.buffer.duplicate();
+            out.position(SEGMENT_HEADER_LENGTH);
+            int[] offsets = new int[retained.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                Entry e = retained.get(i);
+                ByteBuffer in = e.segment.buffer.duplicate();
+                in.limit(e.offset + e.length);
+                in.position(e.offset);
+
+                offsets[i] = out.position();
+                out.put(in);
+            }
+            snapshot.position = out.position();
+            snapshot.buffer.force();
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+
+                Files.move(tmp.toPath(), first.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                snapshot.file = first.file;
+
+                int idx = segments.indexOf(first);
+                segments.removeAll(run);
+                segments.add(idx, snapshot);
+                for (Segment s : run) {
+                    if (s != first && !s.file.delete()) {
+                        logger.warn("Failed to delete {}", s.file);
+                    }
+                }
+
+                for (int i = 0; i < offsets.length; i++) {
+                    Entry e = retained.get(i);
+                    if (entries.get(e.seqNum) == e) { // Still retained
+                        e.segment = snapshot;
+                        e.offset = offsets[i];
+                        snapshot.add(e);
+                    }
+                }
+
+                for (Entry e : dropped) {
+                    if (entries.get(e.seqNum) == e) {
+                        instances.remove(keyOf(e)); // Tombstone is the only record of its instance
+                        entries.remove(e.seqNum);
+                        tombstones--;
+                    }
+                }
+
+                logger.debug("Compacted {} segments of {} into {} records", run.size(), directory, snapshot.live);
+                if (snapshot.live == 0) {
+                    deleteSegment(snapshot);
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                compacting = false;
+                for (Segment s : run) {
+                    s.compacting = false;
+                }
+            }
+
+            if (tmp.exists() && !tmp.delete()) {
+                logger.warn("Failed to delete {}", tmp);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Selects consecutive segments, whose retained records fit into a segment. A single segment
+     * is selected, if less than half of it is retained, or if dispose and unregister records
+     * can be dropped from it.
+     *
+     * @return segments to compact, or null if there is nothing to compact
+     */
+    private List<Segment> selectRun() {
+        for (int i = 0; i < segments.size(); i++) {
+            List<Segment> run = new ArrayList<>();
+            long liveBytes = 0;
+
+            for (int j = i; j < segments.size() && segments.get(j) != active; j++) {
+                Segment s = segments.get(j);
+                if (!run.isEmpty() && liveBytes + s.liveBytes > segmentSize) {
+                    break;
+                }
+
+                run.add(s);
+                liveBytes += s.liveBytes;
+            }
+
+            if (run.size() > 1) {
+                return run;
+            }
+
+            if (run.size() == 1) {
+                Segment s = run.get(0);
+                if (s.liveBytes * 2 < s.position - SEGMENT_HEADER_LENGTH || (i == 0 && s.tombstones > 0)) {
+                    return run;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private void index(Entry e) {
+        KeyHash key = keyOf(e);
+
+        ArrayDeque<Entry> history = instances.get(key);
+        if (history == null) {
+            if (e.isTombstone()) {
+                return; // Nothing to hide
+            }
+
+            if (instances.size() - tombstones >= maxInstances) {
+                logger.debug("max_instances {} of journal {} reached, not retaining sample {}",
+                        maxInstances, directory, e.seqNum);
+                return;
+            }
+
+            history = new ArrayDeque<>();
+            instances.put(key, history);
+        }
+        else if (history.peekLast().isTombstone()) {
+            unindex(history.pollLast()); // Instance was written, or disposed, again
+        }
+
+        if (e.isTombstone()) {
+            while (!history.isEmpty()) {
+                unindex(history.pollFirst()); // Tombstone hides older records of the instance
+            }
+        }
+
+        history.addLast(e);
+        entries.put(e.seqNum, e);
+        e.segment.add(e);
+        if (e.isTombstone()) {
+            tombstones++;
+        }
+
+        if (history.size() > maxSamplesPerInstance) {
+            unindex(history.pollFirst());
+        }
+
+        if (entries.size() - tombstones > maxSamples) {
+            for (Entry oldest : entries.values()) {
+                if (!oldest.isTombstone()) {
+                    KeyHash oldestKey = keyOf(oldest);
+                    ArrayDeque<Entry> oldestHistory = instances.get(oldestKey);
+                    oldestHistory.pollFirst(); // Oldest sample is the oldest of its instance
+                    if (oldestHistory.isEmpty()) {
+                        instances.remove(oldestKey);
+                    }
+                    unindex(oldest);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void unindex(Entry e) {
+        entries.remove(e.seqNum);
+        if (e.isTombstone()) {
+            tombstones--;
+        }
+
+        Segment segment = e.segment;
+        segment.remove(e);
+        if (segment.live == 0 && segment != active && !segment.compacting) {
+            deleteSegment(segment);
+        }
+    }
+
+    private void activate(Segment segment) {
+        Segment previous = active;
+        segments.add(segment);
+        active = segment;
+
+        if (previous != null && previous.live == 0) {
+            deleteSegment(previous);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment);
+        if (!segment.file.delete()) {
+            logger.warn("Failed to delete {}", segment.file);
+        }
+        else {
+            logger.trace("Deleted {}", segment.file);
+        }
+    }
+
+    private static KeyHash keyOf(Entry e) {
+        return e.key != null ? e.key : NO_KEY;
+    }
+
+    private static KeyHash readKey(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset + KEY_FLAG_OFFSET) == 0) {
+            return null;
+        }
+
+        byte[] key = new byte[16];
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(offset + KEY_OFFSET);
+        bb.get(key);
+
+        return new KeyHash(key);
+    }
+
+    private static int limit(int value) {
+        return value <= 0 ? Integer.MAX_VALUE : value; // LENGTH_UNLIMITED is -1
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static class Segment {
+        private File file;
+        private final long firstSeqNum;
+        private final long covered;
+        private final MappedByteBuffer buffer;
+        private int position = SEGMENT_HEADER_LENGTH; // Where next record is written
+        private int live = 0;       // Number of records retained
+        private long liveBytes = 0; // Bytes of records retained
+        private int tombstones = 0; // Dispose and unregister records retained
+        private boolean compacting = false;
+
+        private Segment(File file, long firstSeqNum, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstSeqNum = firstSeqNum;
+            this.buffer = buffer;
+            this.covered = buffer.getLong(COVERED_OFFSET);
+        }
+
+        static Segment create(File file, long firstSeqNum, int size, long covered) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                MappedByteBuffer mbb = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+                mbb.putInt(4, VERSION);
+                mbb.putLong(COVERED_OFFSET, covered);
+                mbb.putInt(0, MAGIC);
+
+                return new Segment(file, firstSeqNum, mbb);
+            }
+        }
+
+        static Segment open(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() < SEGMENT_HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                    return null;
+                }
+
+                MappedByteBuffer mbb = channel.map(MapMode.READ_WRITE, 0, channel.size());
+                if (mbb.getInt(0) != MAGIC || mbb.getInt(4) != VERSION) {
+                    return null;
+                }
+
+                String name = file.getName();
+                return new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), mbb);
+            }
+            catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+
+        void add(Entry e) {
+            live++;
+            liveBytes += e.length;
+            if (e.isTombstone()) {
+                tombstones++;
+            }
+        }
+
+        void remove(Entry e) {
+            live--;
+            liveBytes -= e.length;
+            if (e.isTombstone()) {
+                tombstones--;
+            }
+        }
+    }
+
+    /**
+     * Location of a retained record.
+     */
+    private static class Entry {
+        private Segment segment;
+        private int offset;
+        private final int length; // Aligned length of the record
+        private final long seqNum;
+        private final KeyHash key;
+        private final ChangeKind kind;
+
+        Entry(Segment segment, int offset, int length, long seqNum, KeyHash key, ChangeKind kind) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.seqNum = seqNum;
+            this.key = key;
+            this.kind = kind;
+        }
+
+        boolean isTombstone() {
+            return kind != ChangeKind.WRITE;
+        }
+
+        <T> Sample<T> toSample(Marshaller<T> m) {
+            MappedByteBuffer buffer = segment.buffer;
+            byte[] payload = new byte[buffer.getInt(offset) - PAYLOAD_OFFSET];
+            ByteBuffer bb = buffer.duplicate();
+            bb.position(offset + PAYLOAD_OFFSET);
+            bb.get(payload);
+
+            return new Sample<T>(null, m, seqNum, buffer.getLong(offset + TIMESTAMP_OFFSET),
+                    buffer.getLong(offset + SOURCE_TIMESTAMP_OFFSET), kind, key, DataEncapsulation.wrap(payload));
+        }
+    }
+}
@@ -1,17 +1,16 @@
 package net.sf.jrtps.udds;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import net.sf.jrtps.OutOfResources;
 import net.sf.jrtps.QualityOfService;
-import net.sf.jrtps.QualityOfService.PolicyListener;
 import net.sf.jrtps.builtin.DiscoveredData;
 import net.sf.jrtps.message.parameter.KeyHash;
 import net.sf.jrtps.message.parameter.QosHistory;
 import net.sf.jrtps.message.parameter.QosHistory.Kind;
-import net.sf.jrtps.message.parameter.QosPolicy;
-import net.sf.jrtps.message.parameter.QosTimeBasedFilter;
 import net.sf.jrtps.rtps.Sample;
 import net.sf.jrtps.rtps.WriterProxy;
 import net.sf.jrtps.util.Watchdog;
@@ -25,6 +24,10 @@ import org.slf4j.LoggerFactory;
  * Instance represents Samples with same distinct ID. Instance has a history, which can be obtained 
  * from this class. The size of the history is configurable. Default size is 1, which means that only 
  * a latest Sample is preserved in history. 
+ * <p>
+ * History is kept in a ring of Samples, with timestamps in a parallel array. With KEEP_LAST, 
+ * the ring has a fixed capacity of history depth, and a new Sample overwrites the oldest one. 
+ * With KEEP_ALL, the ring grows up to max_samples_per_instance.
  * 
  * @author mcr70
  * @param <T> Type of Instance
@@ -32,8 +35,13 @@ import org.slf4j.LoggerFactory;
 public class Instance <T> {
     private static final Logger logger = LoggerFactory.getLogger(Instance.class);
     
+    private static final int INITIAL_KEEP_ALL_CAPACITY = 4;
+
     private final KeyHash key;
-    private final LinkedList<Sample<T>> history = new LinkedList<>();
+    private Sample<T>[] ring;  // Latest Sample is at head, older ones follow it
+    private long[] timestamps; // Timestamps of the Samples in ring
+    private int head = 0;
+    private int size = 0;
     private final int maxSamplesPerInstance;
     private final int maxSamples;
     
@@ -41,35 +49,35 @@ public class Instance <T> {
     private final int historyDepth;
 
     private final Watchdog watchdog;
-    private long minimum_separation;
     private long nextTimeBasedFilterTime = System.currentTimeMillis();
     private Task tbfTask;
     private Task deadLineMonitorTask;    
     private WriterProxy owner;
+    private volatile boolean disposed = false;
 
+    @SuppressWarnings("unchecked")
     Instance(KeyHash key, QualityOfService qos, Watchdog watchdog) {
         this.key = key;
         this.maxSamplesPerInstance = qos.getResourceLimits().getMaxSamplesPerInstance();
         this.maxSamples = qos.getResourceLimits().getMaxSamples();
         this.watchdog = watchdog;
-        this.minimum_separation = qos.getTimeBasedFilter().getMinimumSeparation().asMillis();
         this.historyKind = qos.getHistory().getKind();
 
+        int capacity;
         if (historyKind == Kind.KEEP_ALL) {
             this.historyDepth = Integer.MAX_VALUE;
+            capacity = INITIAL_KEEP_ALL_CAPACITY;
+            if (maxSamplesPerInstance > 0) {
+                capacity = Math.min(capacity, maxSamplesPerInstance);
+            }
         }
         else {
-            this.historyDepth = qos.getHistory().getDepth();    
+            this.historyDepth = Math.max(1, qos.getHistory().getDepth());
+            capacity = historyDepth;
         }
-        
-        qos.addPolicyListener(new PolicyListener() {
-			@Override
-			public void policyChanged(QosPolicy policy) {
-				if (policy instanceof QosTimeBasedFilter) {
-					minimum_separation = ((QosTimeBasedFilter)policy).getMinimumSeparation().asMillis();
-				}
-			}
-		});
+
+        this.ring = (Sample<T>[]) new Sample<?>[capacity];
+        this.timestamps = new long[capacity];
     }
 
     /**
@@ -81,6 +89,7 @@ public class Instance <T> {
             final Sample<T> aSample) {
         // Check for time based filter. minimum_separation of 0
         // disables time based filter
+        long minimum_separation = hc.getMinimumSeparation();
 
         if (minimum_separation > 0 && System.currentTimeMillis() < nextTimeBasedFilterTime) {
             // If minimum_separation has not elapsed, add a watchdog task that
@@ -117,8 +126,8 @@ public class Instance <T> {
      * @param aSample
      * @return oldest sample, if history size was exceeded  
      */
-    Sample<T> addSample(final Sample<T> aSample, boolean mayExceedMaxSamples) {
-        if (historyKind == Kind.KEEP_ALL && history.size() == maxSamplesPerInstance) {
+    synchronized Sample<T> addSample(final Sample<T> aSample, boolean mayExceedMaxSamples) {
+        if (historyKind == Kind.KEEP_ALL && size == maxSamplesPerInstance) {
             cancelTimeBasedFilter();
             throw new OutOfResources(OutOfResources.Kind.MAX_SAMPLES_PER_INSTANCE_EXCEEDED, 
                     maxSamplesPerInstance);
@@ -128,54 +137,132 @@ public class Instance <T> {
             deadLineMonitorTask.reset(); // reset deadline monitor
         }
 
-        synchronized (history) {
-            if (history.size() == 0) {
-                history.addFirst(aSample);
-            }
-            else {
-                Sample<T> first = history.getFirst();
-                if (first.getTimestamp() <= aSample.getTimestamp()) {
-                    history.addFirst(aSample);
-                }
-            }
-            
-            if (history.size() > historyDepth) {                
-                return history.removeLast(); // Discard oldest sample
-            }
-            else if (mayExceedMaxSamples) {
-                cancelTimeBasedFilter();
-                throw new OutOfResources(OutOfResources.Kind.MAX_SAMPLES_EXCEEDED, maxSamples);
+        long timestamp = aSample.getTimestamp();
+        if (size > 0 && timestamps[head] > timestamp) {
+            return null; // Older than the latest Sample, not added to history
+        }
+
+        Sample<T> removed = null;
+        if (size == historyDepth) {
+            removed = ring[index(size - 1)]; // Discard oldest sample, its slot is reused
+        }
+        else if (mayExceedMaxSamples) {
+            cancelTimeBasedFilter();
+            throw new OutOfResources(OutOfResources.Kind.MAX_SAMPLES_EXCEEDED, maxSamples);
+        }
+        else {
+            if (size == ring.length) {
+                grow();
             }
+            size++;
         }
 
-        return null;
+        head = head == 0 ? ring.length - 1 : head - 1;
+        ring[head] = aSample;
+        timestamps[head] = timestamp;
+
+        return removed;
     }
 
     /**
      * Removes a Sample from history of this Instance.
      * @param sample Sample to remove
      */
-    void removeSample(Sample<T> sample) {
-        synchronized (history) {
-            history.remove(sample);
+    synchronized void removeSample(Sample<T> sample) {
+        for (int i = 0; i < size; i++) {
+            if (ring[index(i)] == sample) {
+                for (int j = i; j < size - 1; j++) { // Move older samples towards head
+                    ring[index(j)] = ring[index(j + 1)];
+                    timestamps[index(j)] = timestamps[index(j + 1)];
+                }
+
+                ring[index(size - 1)] = null;
+                size--;
+                return;
+            }
         }
     }
 
-
     /**
      * Gets the history of this instance. First element in the List returned represents
      * the latest Sample. Note, that returned List represents history at the time of
      * calling this method.
      * 
      * @return History of this Instance.
+     * @see #getHistoryView()
      */
-    public List<Sample<T>> getHistory() {
-        LinkedList<Sample<T>> ll = new LinkedList<>();
-        synchronized (history) {
-            ll.addAll(history); // TODO: should we create new List here or not
+    public synchronized List<Sample<T>> getHistory() {
+        List<Sample<T>> history = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            history.add(ring[index(i)]);
         }
 
-        return ll; 
+        return history; 
+    }
+
+    /**
+     * Gets a read-only view of the history of this instance. First element of the view 
+     * represents the latest Sample. Unlike getHistory(), history is not copied, and the view 
+     * reflects changes made to history after this method was called. Size of the view is
+     * bounded by the capacity of history.
+     * 
+     * @return a view of the history of this Instance
+     */
+    public List<Sample<T>> getHistoryView() {
+        return Collections.unmodifiableList(new AbstractList<Sample<T>>() {
+            @Override
+            public Sample<T> get(int index) {
+                synchronized (Instance.this) {
+                    if (index < 0 || index >= size) {
+                        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                    }
+
+                    return ring[index(index)];
+                }
+            }
+
+            @Override
+            public int size() {
+                synchronized (Instance.this) {
+                    return size;
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the number of Samples in history of this instance.
+     * @return size of history
+     */
+    public synchronized int getHistorySize() {
+        return size;
+    }
+
+    private int index(int i) {
+        int idx = head + i;
+        return idx < ring.length ? idx : idx - ring.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int capacity = ring.length * 2;
+        if (maxSamplesPerInstance > 0) {
+            capacity = Math.min(capacity, maxSamplesPerInstance);
+        }
+        if (capacity <= ring.length) {
+            capacity = ring.length + 1; // max_samples_per_instance is checked by caller
+        }
+
+        Sample<T>[] newRing = (Sample<T>[]) new Sample<?>[capacity];
+        long[] newTimestamps = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            newRing[i] = ring[index(i)];
+            newTimestamps[i] = timestamps[index(i)];
+        }
+
+        ring = newRing;
+        timestamps = newTimestamps;
+        head = 0;
     }
 
     /** 
@@ -190,23 +277,45 @@ public class Instance <T> {
      * Get the latest sample
      * @return Latest sample, or null if there no samples
      */
-    Sample<T> getLatest() {
-        if (history.size() > 0) {
-            return history.getFirst();
+    synchronized Sample<T> getLatest() {
+        if (size > 0) {
+            return ring[head];
         }
 
         return null;
     }
 
+    /**
+     * Gets the timestamp of the latest sample.
+     * @return timestamp, or Long.MIN_VALUE if there are no samples
+     */
+    synchronized long getLatestTimestamp() {
+        if (size > 0) {
+            return timestamps[head];
+        }
+
+        return Long.MIN_VALUE;
+    }
+
     /**
      * This method is called when Instance is being disposed.
      */
     void dispose() {
+        disposed = true;
         if (deadLineMonitorTask != null) {
             deadLineMonitorTask.cancel();
         }
     }
 
+    /**
+     * Checks whether or not this Instance has been disposed. Samples are not added
+     * to a disposed Instance.
+     * @return true, if disposed
+     */
+    boolean isDisposed() {
+        return disposed;
+    }
+
     /**
      * Cancel time based filter
      */
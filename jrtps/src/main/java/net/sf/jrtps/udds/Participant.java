@@ -1,6 +1,7 @@
 package net.sf.jrtps.udds;
 
 import java.io.Externalizable;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
@@ -52,6 +53,7 @@ import net.sf.jrtps.message.parameter.QosReliability.Kind;
 import net.sf.jrtps.rtps.RTPSParticipant;
 import net.sf.jrtps.rtps.RTPSReader;
 import net.sf.jrtps.rtps.RTPSWriter;
+import net.sf.jrtps.transport.ShmProvider;
 import net.sf.jrtps.transport.TransportProvider;
 import net.sf.jrtps.transport.UDPProvider;
 import net.sf.jrtps.types.Duration;
@@ -85,6 +87,13 @@ public class Participant {
 	private List<DataReader<?>> readers = new CopyOnWriteArrayList<>();
 	private List<DataWriter<?>> writers = new CopyOnWriteArrayList<>();
 
+	/**
+	 * Journals of TRANSIENT and PERSISTENT writers by topic name. A journal outlives
+	 * the writers of its topic, and is closed with this participant.
+	 */
+	private final Map<String, DurabilityJournal> journals = new HashMap<>();
+	private final List<DurabilityJournal> transientJournals = new LinkedList<>();
+
 	private final Watchdog watchdog;
 
 	/**
@@ -200,6 +209,10 @@ public class Participant {
 		UDPProvider provider = new UDPProvider(config, participantId); 
 		TransportProvider.registerTransportProvider(UDPProvider.PROVIDER_SCHEME, provider, 
 				Locator.LOCATOR_KIND_UDPv4 /*, Locator.LOCATOR_KIND_UDPv6*/);
+		if (isShmConfigured()) { // ShmProvider creates files, so it is registered only if it is used
+			TransportProvider.registerTransportProvider(ShmProvider.PROVIDER_SCHEME, new ShmProvider(config), 
+					ShmProvider.LOCATOR_KIND_SHM);
+		}
 
 		int corePoolSize = config.getIntProperty("jrtps.thread-pool.core-size", 20);
 		int maxPoolSize = config.getIntProperty("jrtps.thread-pool.max-size", 20);
@@ -211,7 +224,7 @@ public class Participant {
 
 		logger.debug("Settings for thread-pool: core-size {}, max-size {}", corePoolSize, maxPoolSize);
 
-		this.watchdog = new Watchdog(threadPoolExecutor);
+		this.watchdog = new Watchdog(threadPoolExecutor, config.getWatchdogTickDuration());
 
 		createUnknownParticipantData(domainId);
 
@@ -609,7 +622,8 @@ public class Participant {
 			return (DataWriter<T>) wr;
 		}
 
-		UDDSWriterCache<T> wCache = new UDDSWriterCache<>(eId, m, qos, watchdog);
+		DurabilityJournal journal = eId.isUserDefinedEntity() ? getJournal(topicName, qos) : null;
+		UDDSWriterCache<T> wCache = new UDDSWriterCache<>(eId, m, qos, watchdog, journal);
 		RTPSWriter<T> rtps_writer = rtps_participant.createWriter(eId, topicName, wCache, qos);				
 		final DataWriter<T> writer = entityFactory.createDataWriter(this, type, typeName, rtps_writer, wCache);
 
@@ -633,6 +647,45 @@ public class Participant {
 		return writer;
 	}
 
+	/**
+	 * Gets the journal of a TRANSIENT or PERSISTENT writer. TRANSIENT journal is cleared, 
+	 * when it is opened, and deleted when this participant is closed.
+	 * 
+	 * @return DurabilityJournal, or null if writer does not need one, or it could not be opened
+	 */
+	private DurabilityJournal getJournal(String topicName, QualityOfService qos) {
+		QosDurability.Kind kind = qos.getDurability().getKind();
+		if (kind != QosDurability.Kind.TRANSIENT && kind != QosDurability.Kind.PERSISTENT) {
+			return null;
+		}
+
+		synchronized (journals) {
+			DurabilityJournal journal = journals.get(topicName);
+			if (journal == null) {
+				File dir = new File(config.getDurabilityDirectory(), topicName.replaceAll("[^A-Za-z0-9._-]", "_"));
+				try {
+					journal = DurabilityJournal.open(dir, qos.getDurabilityService(), config.getDurabilitySegmentSize(), 
+							config.getDurabilitySync(), kind == QosDurability.Kind.TRANSIENT, threadPoolExecutor);
+				} catch (IOException e) {
+					logger.warn("Failed to open journal for topic {}, history is kept only in memory", topicName, e);
+					return null;
+				}
+
+				journals.put(topicName, journal);
+				if (kind == QosDurability.Kind.TRANSIENT) {
+					transientJournals.add(journal);
+				}
+			}
+
+			if (!journal.acquire()) {
+				logger.warn("Journal of topic {} is used by another DataWriter, history is kept only in memory", topicName);
+				return null;
+			}
+
+			return journal;
+		}
+	}
+
 	private void checkMatchedReaders(DataWriter writer) {
 		QualityOfService offered = writer.getRTPSWriter().getQualityOfService();
 		for (Entry<Guid, SubscriptionData> e : discoveredReaders.entrySet()) {
@@ -762,6 +815,17 @@ public class Participant {
 
 		threadPoolExecutor.shutdownNow(); // Shutdown now.
 		threadFactory.stopThreads();
+
+		synchronized (journals) {
+			for (DurabilityJournal journal : transientJournals) {
+				journal.delete();
+			}
+			for (DurabilityJournal journal : journals.values()) {
+				journal.close();
+			}
+			journals.clear();
+			transientJournals.clear();
+		}
 	}
 
 	/**
@@ -1084,6 +1148,21 @@ public class Participant {
 		rtps_participant.ignoreParticipant(prefix);
 	}
 
+	/**
+	 * Checks, if shared memory transport is used by any of the configured listener URIs.
+	 */
+	private boolean isShmConfigured() {
+		List<URI> uris = new LinkedList<>(config.getListenerURIs());
+		uris.addAll(config.getDiscoveryListenerURIs());
+		for (URI uri : uris) {
+			if (ShmProvider.PROVIDER_SCHEME.equals(uri.getScheme())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	private void createUnknownParticipantData(int domainId) {
 		List<Locator> discoveryLocators = new LinkedList<>();
 
@@ -0,0 +1,325 @@
+package net.sf.jrtps.udds;
+
+import java.util.LinkedList;
+
+import net.sf.jrtps.rtps.Sample;
+
+/**
+ * SampleRing holds Samples indexed by their sequence number. Samples are stored
+ * in fixed size segments, each segment covering a range of consecutive sequence numbers.
+ * Segments are kept in a spine, so that a Sample can be found with two array lookups.
+ * Segments that become empty are released, and empty segments at the head of the spine
+ * are dropped, which makes trimming of oldest samples cheap.
+ * <p>
+ * Smallest and greatest sequence numbers can be read without locking.
+ *
+ * @author mcr70
+ * @param <T> type of the Samples
+ */
+class SampleRing<T> {
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private Segment[] spine = new Segment[4];
+    private int spineLength = 0;   // Number of spine entries in use
+    private long firstSegment = 0; // Segment number of spine[0]
+
+    private volatile long seqNumMin = 0;
+    private volatile long seqNumMax = 0;
+    private volatile int size = 0;
+
+    /**
+     * Adds a Sample. If there already is a Sample with the same sequence number,
+     * it is replaced.
+     *
+     * @param sample Sample to add
+     */
+    synchronized void add(Sample<T> sample) {
+        long sn = sample.getSequenceNumber();
+        long segNum = sn >>> SEGMENT_BITS;
+
+        if (size == 0) {
+            spineLength = 0;
+            firstSegment = segNum;
+        }
+        else if (segNum < firstSegment) {
+            prependSegments((int) (firstSegment - segNum));
+        }
+
+        int idx = (int) (segNum - firstSegment);
+        if (idx >= spine.length) {
+            Segment[] newSpine = new Segment[Math.max(spine.length * 2, idx + 1)];
+            System.arraycopy(spine, 0, newSpine, 0, spineLength);
+            spine = newSpine;
+        }
+        if (idx >= spineLength) {
+            spineLength = idx + 1;
+        }
+
+        Segment seg = spine[idx];
+        if (seg == null) {
+            seg = new Segment();
+            spine[idx] = seg;
+        }
+
+        int slot = (int) (sn & SEGMENT_MASK);
+        if (seg.slots[slot] == null) {
+            seg.count++;
+            size++;
+        }
+        seg.slots[slot] = sample;
+
+        if (size == 1) {
+            seqNumMin = sn;
+            seqNumMax = sn;
+        }
+        else {
+            if (sn < seqNumMin) {
+                seqNumMin = sn;
+            }
+            if (sn > seqNumMax) {
+                seqNumMax = sn;
+            }
+        }
+    }
+
+    /**
+     * Removes a Sample with the same sequence number as the given Sample.
+     *
+     * @param sample Sample to remove
+     * @return true, if a Sample was removed
+     */
+    synchronized boolean remove(Sample<T> sample) {
+        long sn = sample.getSequenceNumber();
+        Segment seg = getSegment(sn);
+        int slot = (int) (sn & SEGMENT_MASK);
+
+        if (seg == null || seg.slots[slot] == null) {
+            return false;
+        }
+
+        seg.slots[slot] = null;
+        seg.count--;
+        size--;
+
+        if (seg.count == 0) {
+            spine[(int) ((sn >>> SEGMENT_BITS) - firstSegment)] = null;
+        }
+
+        if (size == 0) {
+            clear();
+            return true;
+        }
+
+        if (sn == seqNumMin) {
+            seqNumMin = nextSeqNum(sn);
+        }
+        if (sn == seqNumMax) {
+            seqNumMax = previousSeqNum(sn);
+        }
+
+        trimSpine();
+
+        return true;
+    }
+
+    /**
+     * Gets a Sample with given sequence number.
+     *
+     * @param seqNum sequence number
+     * @return Sample, or null if there is no Sample with given sequence number
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Sample<T> get(long seqNum) {
+        Segment seg = getSegment(seqNum);
+        if (seg == null) {
+            return null;
+        }
+
+        return (Sample<T>) seg.slots[(int) (seqNum & SEGMENT_MASK)];
+    }
+
+    /**
+     * Gets all the Samples, whose sequence number is greater than given sequence number.
+     * Only the Samples returned are visited.
+     *
+     * @param seqNum sequence number
+     * @return Samples ordered by sequence number
+     */
+    @SuppressWarnings("unchecked")
+    synchronized LinkedList<Sample<T>> getSamplesSince(long seqNum) {
+        LinkedList<Sample<T>> result = new LinkedList<>();
+        if (size == 0 || seqNum >= seqNumMax) {
+            return result;
+        }
+
+        long sn = Math.max(seqNum + 1, seqNumMin);
+        while (sn <= seqNumMax) {
+            Segment seg = getSegment(sn);
+            if (seg == null) {
+                sn = ((sn >>> SEGMENT_BITS) + 1) << SEGMENT_BITS; // Skip to next segment
+                continue;
+            }
+
+            for (int slot = (int) (sn & SEGMENT_MASK); slot < SEGMENT_SIZE && sn <= seqNumMax; slot++, sn++) {
+                if (seg.slots[slot] != null) {
+                    result.add((Sample<T>) seg.slots[slot]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets the Sample with the smallest sequence number greater than given sequence number.
+     * Samples can be iterated in order with this method, without copying them.
+     *
+     * @param seqNum sequence number
+     * @return Sample, or null if there is no Sample after given sequence number
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Sample<T> getSampleAfter(long seqNum) {
+        if (size == 0 || seqNum >= seqNumMax) {
+            return null;
+        }
+
+        long sn = Math.max(seqNum + 1, seqNumMin);
+        while (sn <= seqNumMax) {
+            Segment seg = getSegment(sn);
+            if (seg == null) {
+                sn = ((sn >>> SEGMENT_BITS) + 1) << SEGMENT_BITS; // Skip to next segment
+                continue;
+            }
+
+            for (int slot = (int) (sn & SEGMENT_MASK); slot < SEGMENT_SIZE && sn <= seqNumMax; slot++, sn++) {
+                if (seg.slots[slot] != null) {
+                    return (Sample<T>) seg.slots[slot];
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the smallest sequence number in this SampleRing.
+     * @return smallest sequence number, or 0 if this SampleRing is empty
+     */
+    long getSeqNumMin() {
+        return seqNumMin;
+    }
+
+    /**
+     * Gets the greatest sequence number in this SampleRing.
+     * @return greatest sequence number, or 0 if this SampleRing is empty
+     */
+    long getSeqNumMax() {
+        return seqNumMax;
+    }
+
+    /**
+     * Gets the number of Samples in this SampleRing.
+     * @return number of Samples
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the Samples.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < spineLength; i++) {
+            spine[i] = null;
+        }
+
+        spineLength = 0;
+        size = 0;
+        seqNumMin = 0;
+        seqNumMax = 0;
+    }
+
+    private Segment getSegment(long seqNum) {
+        long idx = (seqNum >>> SEGMENT_BITS) - firstSegment;
+        if (idx < 0 || idx >= spineLength) {
+            return null;
+        }
+
+        return spine[(int) idx];
+    }
+
+    private long nextSeqNum(long seqNum) {
+        for (long sn = seqNum + 1; sn <= seqNumMax; sn++) {
+            Segment seg = getSegment(sn);
+            if (seg == null) {
+                sn = (((sn >>> SEGMENT_BITS) + 1) << SEGMENT_BITS) - 1;
+            }
+            else if (seg.slots[(int) (sn & SEGMENT_MASK)] != null) {
+                return sn;
+            }
+        }
+
+        return seqNumMax;
+    }
+
+    private long previousSeqNum(long seqNum) {
+        for (long sn = seqNum - 1; sn >= seqNumMin; sn--) {
+            Segment seg = getSegment(sn);
+            if (seg == null) {
+                sn = (sn >>> SEGMENT_BITS) << SEGMENT_BITS;
+            }
+            else if (seg.slots[(int) (sn & SEGMENT_MASK)] != null) {
+                return sn;
+            }
+        }
+
+        return seqNumMin;
+    }
+
+    /**
+     * Drops empty segments from the head and tail of spine.
+     */
+    private void trimSpine() {
+        while (spineLength > 0 && spine[spineLength - 1] == null) {
+            spineLength--;
+        }
+
+        int emptyHead = 0;
+        while (emptyHead < spineLength && spine[emptyHead] == null) {
+            emptyHead++;
+        }
+
+        if (emptyHead > 0) {
+            System.arraycopy(spine, emptyHead, spine, 0, spineLength - emptyHead);
+            for (int i = spineLength - emptyHead; i < spineLength; i++) {
+                spine[i] = null;
+            }
+
+            spineLength -= emptyHead;
+            firstSegment += emptyHead;
+        }
+    }
+
+    private void prependSegments(int count) {
+        Segment[] newSpine = spine;
+        if (spineLength + count > spine.length) {
+            newSpine = new Segment[Math.max(spine.length * 2, spineLength + count)];
+        }
+
+        System.arraycopy(spine, 0, newSpine, count, spineLength);
+        for (int i = 0; i < count; i++) {
+            newSpine[i] = null;
+        }
+
+        spine = newSpine;
+        spineLength += count;
+        firstSegment -= count;
+    }
+
+    private static class Segment {
+        private final Object[] slots = new Object[SEGMENT_SIZE];
+        private int count = 0;
+    }
+}
@@ -1,17 +1,14 @@
 package net.sf.jrtps.udds;
 
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.jrtps.Marshaller;
 import net.sf.jrtps.OutOfResources;
@@ -23,6 +20,7 @@ import net.sf.jrtps.message.parameter.KeyHash;
 import net.sf.jrtps.message.parameter.QosDeadline;
 import net.sf.jrtps.message.parameter.QosPolicy;
 import net.sf.jrtps.message.parameter.QosResourceLimits;
+import net.sf.jrtps.message.parameter.QosTimeBasedFilter;
 import net.sf.jrtps.rtps.ChangeKind;
 import net.sf.jrtps.rtps.Sample;
 import net.sf.jrtps.types.Duration;
@@ -52,22 +50,26 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
     protected final List<SampleListener<T>> listeners = new CopyOnWriteArrayList<>();    
     private volatile CoherentSet coherentSet; // Current CoherentSet, used by writer
 
-    // Main collection to hold instances. ResourceLimits is checked against this map
-    private final Map<KeyHash, Instance<T>> instances = new LinkedHashMap<>();
+    private static final KeyHash NO_KEY = new KeyHash(new byte[0]); // Map key of keyless samples
+    
+    // Main collection to hold instances. ResourceLimits is checked against this map.
+    // Instances are looked up without locking. Changes to an Instance are made while holding
+    // its monitor, so samples of different instances can be added in parallel.
+    private final ConcurrentHashMap<KeyHash, Instance<T>> instances = new ConcurrentHashMap<>();
 
     private long deadLinePeriod = -1; // -1 represents INFINITE
+    private volatile long minimumSeparation; // TIME_BASED_FILTER of all the instances
 
-    // An ordered set of cache changes.
-    protected final SortedSet<Sample<T>> samples = Collections.synchronizedSortedSet(new TreeSet<>(
-            new Comparator<Sample<T>>() {
-                @Override
-                public int compare(Sample<T> o1, Sample<T> o2) {
-                    return (int) (o1.getSequenceNumber() - o2.getSequenceNumber());
-                }
-            }));
+    // Cache changes indexed by sequence number.
+    protected final SampleRing<T> samples = new SampleRing<>();
 
     protected final Marshaller<T> marshaller;
-    protected volatile long seqNum; // sequence number of a Sample
+    protected final AtomicLong seqNum = new AtomicLong(); // sequence number of a Sample
+    // Sequence numbers are assigned before the instance lock is taken, so changes may be added
+    // out of order. committedSeqNum is the greatest sequence number, up to which all the changes
+    // have been added. Changes added ahead of it are kept in uncommitted.
+    private volatile long committedSeqNum;
+    private final TreeSet<Long> uncommitted = new TreeSet<>();
     protected final EntityId entityId;
 
     protected final Watchdog watchdog;
@@ -83,6 +85,7 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 
         resource_limits = qos.getResourceLimits();
         setDeadlinePeriod(qos.getDeadline());
+        minimumSeparation = qos.getTimeBasedFilter().getMinimumSeparation().asMillis();
         
         qos.addPolicyListener(new PolicyListener() {
 			@Override
@@ -90,10 +93,22 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 				if (policy instanceof QosDeadline) {
 					setDeadlinePeriod((QosDeadline) policy);
 				}
+				else if (policy instanceof QosTimeBasedFilter) {
+					minimumSeparation = ((QosTimeBasedFilter) policy).getMinimumSeparation().asMillis();
+				}
 			}
 		});
     }
 
+    /**
+     * Gets the minimum separation of TIME_BASED_FILTER. It is kept here, rather than in 
+     * each Instance, so that instances do not need to listen to policy changes.
+     * @return minimum separation in milliseconds
+     */
+    long getMinimumSeparation() {
+        return minimumSeparation;
+    }
+
     private void setDeadlinePeriod(QosDeadline dl) {
         Duration period = dl.getPeriod();
 
@@ -111,7 +126,7 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
      */
     @Override
     public void dispose(T sample, long timestamp) {
-        addSample(new Sample<T>(null, marshaller, ++seqNum, timestamp, ChangeKind.DISPOSE, sample));
+        addChange(ChangeKind.DISPOSE, sample, timestamp);
     }
 
     /**
@@ -121,7 +136,7 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
      */
     @Override
     public void unregister(T sample, long timestamp) {
-        addSample(new Sample<T>(null, marshaller, ++seqNum, timestamp, ChangeKind.UNREGISTER, sample));
+        addChange(ChangeKind.UNREGISTER, sample, timestamp);
     }
 
     /**
@@ -131,7 +146,64 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
      */
     @Override
     public void write(T sample, long timestamp) {
-        addSample(new Sample<T>(null, marshaller, ++seqNum, timestamp, ChangeKind.WRITE, sample));
+        addChange(ChangeKind.WRITE, sample, timestamp);
+    }
+
+    /**
+     * Creates a Sample with next sequence number, and adds it to this HistoryCache.
+     * @param kind ChangeKind
+     * @param sample data
+     * @param timestamp timestamp
+     */
+    protected void addChange(ChangeKind kind, T sample, long timestamp) {
+        long sn = seqNum.incrementAndGet();
+        try {
+            addSample(new Sample<T>(null, marshaller, sn, timestamp, kind, sample));
+        }
+        finally {
+            commit(sn); // Committed even if rejected, so that later changes are not held back
+        }
+    }
+
+    /**
+     * Marks the change with given sequence number done.
+     * @param sn sequence number
+     */
+    private void commit(long sn) {
+        synchronized (uncommitted) {
+            long committed = committedSeqNum;
+            if (sn != committed + 1) {
+                uncommitted.add(sn);
+                return;
+            }
+
+            committed = sn;
+            while (!uncommitted.isEmpty() && uncommitted.first() == committed + 1) {
+                committed = uncommitted.pollFirst();
+            }
+            committedSeqNum = committed;
+        }
+    }
+
+    /**
+     * Gets the greatest sequence number, up to which all the changes have been added
+     * to this HistoryCache. Changes with greater sequence numbers may still be in progress.
+     * @return committed sequence number
+     */
+    protected long getCommittedSeqNum() {
+        return committedSeqNum;
+    }
+
+    /**
+     * Sets the sequence number of the latest change, and marks all the changes up to it done.
+     * @param sn sequence number
+     */
+    protected void setSeqNum(long sn) {
+        synchronized (uncommitted) {
+            seqNum.set(sn);
+            uncommitted.clear();
+            committedSeqNum = sn;
+        }
     }
 
     /**
@@ -165,44 +237,52 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 
         sample.setCoherentSet(coherentSet); // Set the CoherentSet attribute, if it exists
 
-        Instance<T> inst = null;
         try {
-            inst = getOrCreateInstance(key);
-            Sample<T> latest = inst.getLatest();
-            if (latest != null && latest.getTimestamp() > sample.getTimestamp()) {
-                logger.debug("Rejecting sample, since its timestamp {} is less than instances latest timestamp {}", 
-                        sample.getTimestamp(), latest.getTimestamp());
-                return null;
-            }
+            while (true) {
+                Instance<T> inst = getOrCreateInstance(key);
+                synchronized (inst) {
+                    if (inst.isDisposed()) {
+                        continue; // Disposed by another thread, a new Instance is needed
+                    }
 
-            if (inst.applyTimeBasedFilter(this, sample)) { // Check, if TIME_BASED_FILTER applies
-                return null;
-            }
+                    sample.internKey(inst.getKey()); // Samples of an instance share the key
 
-            if (kind == ChangeKind.DISPOSE || kind ==ChangeKind.UNREGISTER) {
-                Instance<T> removedInstance = instances.remove(key);
-                if (removedInstance != null) {
-                    removedInstance.dispose(); // cancels deadline monitor
-                }
-            }
-            else {
-                logger.trace("[{}] Creating sample {}", entityId, seqNum + 1);
+                    long latestTimestamp = inst.getLatestTimestamp();
+                    if (latestTimestamp > sample.getTimestamp()) {
+                        logger.debug("Rejecting sample, since its timestamp {} is less than instances latest timestamp {}", 
+                                sample.getTimestamp(), latestTimestamp);
+                        return null;
+                    }
 
-                Sample<T> removedSample =  
-                        inst.addSample(sample, samples.size() == resource_limits.getMaxSamples());
+                    if (inst.applyTimeBasedFilter(this, sample)) { // Check, if TIME_BASED_FILTER applies
+                        return null;
+                    }
 
-                if (removedSample != null) {
-                    synchronized (samples) {
-                        samples.remove(removedSample);
+                    if (kind == ChangeKind.DISPOSE || kind ==ChangeKind.UNREGISTER) {
+                        instances.remove(mapKey(key), inst);
+                        inst.dispose(); // cancels deadline monitor
+                        samples.add(sample);
+                    }
+                    else {
+                        logger.trace("[{}] Creating sample {}", entityId, sample.getSequenceNumber());
+
+                        // Writers of other instances run in parallel. max_samples is checked
+                        // and samples updated atomically, so that it cannot be exceeded.
+                        synchronized (samples) {
+                            int maxSamples = resource_limits.getMaxSamples();
+                            Sample<T> removedSample =  
+                                    inst.addSample(sample, maxSamples >= 0 && samples.size() >= maxSamples);
+
+                            if (removedSample != null) {
+                                samples.remove(removedSample);
+                            }
+                            samples.add(sample);
+                        }
                     }
-                }
-            }
 
-            synchronized (samples) {
-                samples.add(sample);
+                    return sample;
+                }
             }
-
-            return sample;
         }
         catch(OutOfResources oor) {
             logger.debug("Got OutOfResources: {}", oor.getMessage());
@@ -212,15 +292,26 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 
 
     protected Instance<T> getOrCreateInstance(final KeyHash key) {
-        Instance<T> inst = instances.get(key);
+        Instance<T> inst = instances.get(mapKey(key));
         if (inst != null) {
             return inst;
         }
 
+        synchronized (instances) { // Creation is rare. Keeps instance count within resource limits
+            inst = instances.get(mapKey(key));
+            if (inst != null) {
+                return inst;
+            }
+
+            return createInstance(key);
+        }
+    }
+
+    private Instance<T> createInstance(final KeyHash key) {
         logger.trace("[{}] Creating new instance {}", entityId, key);
 
         if (resource_limits.getMaxInstances() != -1 && 
-                instances.size() == resource_limits.getMaxInstances()) {
+                instances.size() >= resource_limits.getMaxInstances()) {
             throw new OutOfResources(OutOfResources.Kind.MAX_INSTANCES_EXCEEDED, 
                     resource_limits.getMaxInstances());
         }
@@ -241,11 +332,15 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
             newInst.setDeadlineMonitorTask(wdTask);
         }
 
-        instances.put(key, newInst);
+        instances.put(mapKey(key), newInst);
 
         return newInst;
     }
 
+    private static KeyHash mapKey(KeyHash key) {
+        return key != null ? key : NO_KEY;
+    }
+
 
 
 
@@ -258,7 +353,7 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 
     @Override
     public Instance<T> getInstance(KeyHash key) {
-        return instances.get(key);
+        return instances.get(mapKey(key));
     }
 
     void clear(Sample<T> aSample) {
@@ -269,20 +364,20 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
 
     void clear(List<Sample<T>> samplesToClear) {
         for (Sample<T> s : samplesToClear) {
-            Instance<T> inst = instances.get(s.getKey());
+            Instance<T> inst = instances.get(mapKey(s.getKey()));
             if (inst != null) {
                 inst.removeSample(s);
             }
         }
-        synchronized (samples) {
-            samples.removeAll(samplesToClear);
-        }                    
+        for (Sample<T> s : samplesToClear) {
+            samples.remove(s);
+        }
     }
 
     @Override
     public void coherentChangesBegin() {
-        coherentSet = new CoherentSet(new SequenceNumber(seqNum + 1));
-        logger.debug("coherentChangesBegin({})", seqNum + 1);
+        coherentSet = new CoherentSet(new SequenceNumber(seqNum.get() + 1));
+        logger.debug("coherentChangesBegin({})", seqNum.get() + 1);
     }
 
     @Override
@@ -291,7 +386,13 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
             logger.debug("coherentChangesEnd({})", coherentSet.getStartSeqNum().getAsLong());
         }
         coherentSet = null;
-        addSample(new Sample<T>(++seqNum)); // Add a Sample denoting end of CoherentSet
+        long sn = seqNum.incrementAndGet();
+        try {
+            addSample(new Sample<T>(sn)); // Add a Sample denoting end of CoherentSet
+        }
+        finally {
+            commit(sn);
+        }
     }
 
     /**
@@ -306,19 +407,7 @@ class UDDSHistoryCache<T, ENTITY_DATA extends DiscoveredData> implements History
     public LinkedList<Sample<T>> getSamplesSince(long sequenceNumber) {
         logger.trace("[{}] getChangesSince({})", entityId, sequenceNumber);
 
-        synchronized (samples) {
-            for (Sample<T> cc : samples) {
-                if (cc.getSequenceNumber() > sequenceNumber) {
-                    SortedSet<Sample<T>> tailSet = samples.tailSet(cc);
-                    logger.trace("[{}] returning {}", entityId, tailSet);
-
-                    return new LinkedList<Sample<T>>(tailSet);
-                }
-            }
-        }
-
-        logger.trace("[{}] No chances to return for seq num {}", entityId, sequenceNumber);
-        return new LinkedList<>();
+        return samples.getSamplesSince(sequenceNumber);
     }
 
 
@@ -1,9 +1,9 @@
 package net.sf.jrtps.udds;
 
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.jrtps.Marshaller;
 import net.sf.jrtps.QualityOfService;
@@ -32,9 +32,11 @@ import org.slf4j.LoggerFactory;
 class UDDSReaderCache<T> extends UDDSHistoryCache<T, PublicationData> implements ReaderCache<T> {
     private static final Logger logger = LoggerFactory.getLogger(UDDSReaderCache.class);
 
-    private Map<Guid, List<Sample<T>>> coherentSets = new HashMap<>(); // Used by reader
+    private final Map<Guid, List<Sample<T>>> coherentSets = new ConcurrentHashMap<>(); // Used by reader
     private final Kind destinationOrderKind;
-    private final Map<Integer, List<Sample<T>>> incomingSamples = new HashMap<>();
+    // Pending samples of each message being processed. Messages may be processed in parallel.
+    private final Map<Integer, List<Sample<T>>> incomingSamples = new ConcurrentHashMap<>();
+    private final Object changesLock = new Object();
     private final boolean exclusiveOwnership;
 
     private RTPSReader<T> rtps_reader;
@@ -143,7 +145,7 @@ class UDDSReaderCache<T> extends UDDSHistoryCache<T, PublicationData> implements
 
         List<Sample<T>> coherentSet = getCoherentSet(writerGuid); // Get current CoherentSet for writer
         List<Sample<T>> pendingSamples = incomingSamples.get(id); 
-        Sample<T> sample = new Sample<T>(writerGuid, marshaller, ++seqNum, ts, sourceTimeStamp, data);
+        Sample<T> sample = new Sample<T>(writerGuid, marshaller, seqNum.incrementAndGet(), ts, sourceTimeStamp, data);
         CoherentSet cs = sample.getCoherentSet();
 
         
@@ -170,6 +172,7 @@ class UDDSReaderCache<T> extends UDDSHistoryCache<T, PublicationData> implements
         }
         else {
             logger.debug("Skipping sample #{} from being delivered to reader, since it does not contain Data", data.getWriterSequenceNumber());
+            sample.detach();
         }
     }
 
@@ -191,10 +194,13 @@ class UDDSReaderCache<T> extends UDDSHistoryCache<T, PublicationData> implements
         List<Sample<T>> acceptedSamples = new LinkedList<>();
 
         if (pendingSamples.size() > 0) {
-            // Add each pending Sample to HistoryCache
-            for (Sample<T> cc : pendingSamples) {
-                if (addSample(cc) != null) {
-                    acceptedSamples.add(cc);
+            // Add each pending Sample to HistoryCache. Samples of a message are added
+            // atomically with respect to other message receivers.
+            synchronized (changesLock) {
+                for (Sample<T> cc : pendingSamples) {
+                    if (addSample(cc) != null) {
+                        acceptedSamples.add(cc);
+                    }
                 }
             }
 
@@ -204,6 +210,12 @@ class UDDSReaderCache<T> extends UDDSHistoryCache<T, PublicationData> implements
                     aListener.onSamples(new LinkedList<>(pendingSamples)); // each Listener has its own List
                 }
             }
+
+            // Listeners read samples in place. Once the message is handled, samples no longer
+            // refer to its receive buffer, whether they were kept in history or not.
+            for (Sample<T> cc : pendingSamples) {
+                cc.detach();
+            }
         }
     }
 
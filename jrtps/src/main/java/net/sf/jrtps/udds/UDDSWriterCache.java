@@ -1,23 +1,43 @@
 package net.sf.jrtps.udds;
 
+import java.io.IOException;
+import java.util.LinkedList;
 
 import net.sf.jrtps.Marshaller;
+import net.sf.jrtps.OutOfResources;
 import net.sf.jrtps.QualityOfService;
 import net.sf.jrtps.QualityOfService.PolicyListener;
 import net.sf.jrtps.builtin.SubscriptionData;
 import net.sf.jrtps.message.parameter.QosLifespan;
 import net.sf.jrtps.message.parameter.QosPolicy;
+import net.sf.jrtps.rtps.ChangeKind;
 import net.sf.jrtps.rtps.Sample;
 import net.sf.jrtps.rtps.WriterCache;
 import net.sf.jrtps.types.EntityId;
 import net.sf.jrtps.util.Watchdog;
 import net.sf.jrtps.util.Watchdog.Listener;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 class UDDSWriterCache<T> extends UDDSHistoryCache<T, SubscriptionData> implements WriterCache<T> {    
+    private static final Logger logger = LoggerFactory.getLogger(UDDSWriterCache.class);
+
+    private final DurabilityJournal journal;
     private long lifeSpanDuration;
     
     UDDSWriterCache(EntityId eId, Marshaller<T> marshaller, QualityOfService qos, Watchdog watchdog) {
+        this(eId, marshaller, qos, watchdog, null);
+    }
+
+    /**
+     * Creates a UDDSWriterCache, whose history is kept in a DurabilityJournal as well.
+     * History is first recovered from the journal.
+     */
+    UDDSWriterCache(EntityId eId, Marshaller<T> marshaller, QualityOfService qos, Watchdog watchdog, 
+            DurabilityJournal journal) {
         super(eId, marshaller, qos, watchdog, false);
+        this.journal = journal;
 
         lifeSpanDuration = qos.getLifespan().getDuration().asMillis();
         
@@ -29,6 +49,25 @@ class UDDSWriterCache<T> extends UDDSHistoryCache<T, SubscriptionData> implement
 				}
 			}
 		});
+
+        if (journal != null) {
+            recover();
+        }
+    }
+
+    private void recover() {
+        for (Sample<T> s : journal.getSamplesSince(0, Long.MAX_VALUE, marshaller)) {
+            try {
+                addToHistory(s);
+            }
+            catch (OutOfResources oor) {
+                logger.debug("[{}] Could not recover sample {}: {}", entityId, s.getSequenceNumber(), oor.getMessage());
+            }
+        }
+
+        setSeqNum(journal.getSeqNumMax());
+        logger.debug("[{}] Recovered {} samples from journal, sequence number is {}", 
+                entityId, samples.size(), seqNum.get());
     }
 
     // ----  WriterCache implementation follows  -------------------------
@@ -39,38 +78,129 @@ class UDDSWriterCache<T> extends UDDSHistoryCache<T, SubscriptionData> implement
      */
     @Override
     public long getSeqNumMin() {
-        long seqNumMin = 0;
-        synchronized (samples) {
-            if (samples.size() > 0) {
-                seqNumMin = samples.first().getSequenceNumber();
+        if (journal != null) {
+            long journalMin = journal.getSeqNumMin();
+            if (journalMin > 0 && (samples.size() == 0 || journalMin < samples.getSeqNumMin())) {
+                return journalMin;
             }
         }
 
-        return seqNumMin;
+        return samples.getSeqNumMin();
     }
 
     /**
-     * Gets the biggest sequence number this HistoryCache has.
+     * Gets the biggest sequence number this HistoryCache has. Samples, that are
+     * being added by other threads ahead of a sample still in progress, are not 
+     * counted. Otherwise a reader could be marked having a sample not yet added.
      * 
      * @return seqNumMax
      */
     @Override
     public long getSeqNumMax() {
-        long seqNumMax = 0;
+        return Math.min(samples.getSeqNumMax(), getCommittedSeqNum());
+    }
+
+    @Override
+    public Sample<T> getSample(long seqNum) {
+        Sample<T> sample = samples.get(seqNum);
+        if (sample == null && journal != null) {
+            sample = journal.getSample(seqNum, marshaller);
+        }
+
+        return sample;
+    }
+
+    /**
+     * Gets the Sample after given sequence number. Samples, that are no longer in the
+     * history of the writer, are read from the journal.
+     */
+    @Override
+    public Sample<T> getSampleAfter(long sequenceNumber) {
+        Sample<T> sample = samples.getSampleAfter(sequenceNumber);
+        if (journal != null && (sample == null || sample.getSequenceNumber() > sequenceNumber + 1)) {
+            long before = sample != null ? sample.getSequenceNumber() : Long.MAX_VALUE;
+            Sample<T> journaled = journal.getSampleAfter(sequenceNumber, before, marshaller);
+            if (journaled != null) {
+                return journaled;
+            }
+        }
+
+        return sample;
+    }
 
-        synchronized (samples) {
-            if (samples.size() > 0) {
-                seqNumMax = samples.last().getSequenceNumber();
+    /**
+     * Gets the Samples since given sequence number. Samples, that are no longer in the
+     * history of the writer, are read from the journal.
+     */
+    @Override
+    public LinkedList<Sample<T>> getSamplesSince(long sequenceNumber) {
+        LinkedList<Sample<T>> history = super.getSamplesSince(sequenceNumber);
+        if (journal == null) {
+            return history;
+        }
+
+        // Only the samples older than the history need to be read from the journal
+        long before = samples.size() > 0 ? samples.getSeqNumMin() : Long.MAX_VALUE;
+        LinkedList<Sample<T>> journaled = journal.getSamplesSince(sequenceNumber, before, marshaller);
+        if (journaled.isEmpty()) {
+            return history;
+        }
+
+        // Merge by sequence number. History may have been trimmed after it was read, in which
+        // case the same sample may be in both lists. Samples of the history are preferred.
+        LinkedList<Sample<T>> result = new LinkedList<>();
+        while (!history.isEmpty() || !journaled.isEmpty()) {
+            if (journaled.isEmpty() || (!history.isEmpty() && 
+                    history.getFirst().getSequenceNumber() <= journaled.getFirst().getSequenceNumber())) {
+                Sample<T> s = history.removeFirst();
+                if (!journaled.isEmpty() && journaled.getFirst().getSequenceNumber() == s.getSequenceNumber()) {
+                    journaled.removeFirst();
+                }
+                result.add(s);
+            }
+            else {
+                result.add(journaled.removeFirst());
             }
         }
 
-        return seqNumMax;
+        return result;
     }
 
+    @Override
+    protected void addChange(ChangeKind kind, T sample, long timestamp) {
+        if (journal == null) {
+            super.addChange(kind, sample, timestamp);
+            return;
+        }
 
+        synchronized (journal) { // Samples are journaled in sequence number order
+            super.addChange(kind, sample, timestamp);
+        }
+    }
 
     @Override
     public Sample<T> addSample(final Sample<T> aSample) {
+        Sample<T> sample = addToHistory(aSample);
+        if (sample != null && journal != null && sample.getKind() != null) {
+            try {
+                journal.append(sample);
+            } catch (IOException e) {
+                logger.warn("[{}] Failed to write sample {} to journal", entityId, sample.getSequenceNumber(), e);
+            }
+        }
+
+        return sample;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (journal != null) {
+            journal.release(); // Journal outlives the writer
+        }
+    }
+
+    private Sample<T> addToHistory(final Sample<T> aSample) {
         if (lifeSpanDuration > 0) {
             // NOTE, should we try to calculate timediff of source timestamp
             // and destination timestamp? And network delay? 
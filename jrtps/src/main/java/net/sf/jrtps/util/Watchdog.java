@@ -1,102 +1,278 @@
 package net.sf.jrtps.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Watchdog class utilizes ScheduledExecutorService to provide 
- * applications watchdog functionality. Multiple Tasks may be
- * given to be watched. 
- * 
+ * Watchdog class provides applications watchdog functionality. Multiple Tasks may be
+ * given to be watched.
+ * <p>
+ * Tasks are kept in a hierarchical timing wheel, that is advanced by a single periodic
+ * tick run by the ScheduledExecutorService. Resetting a Task only updates its deadline;
+ * the wheel notices the new deadline lazily, when the Task is visited. This keeps frequent
+ * resets out of the executor's delay queue. Listeners are called at most one tick
+ * after the trigger time has elapsed. The tick is stopped, when there are no Tasks
+ * left in the wheel.
+ *
  * @author mcr70
  */
 public class Watchdog {
-    private ScheduledExecutorService ses;
+    private static final Logger logger = LoggerFactory.getLogger(Watchdog.class);
+
+    /**
+     * Default tick duration in milliseconds.
+     */
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4; // With 10 ms ticks, wheels span 640 ms, 41 s, 44 min and 46 h
+    private static final long MAX_TRIGGER_TIME = Long.MAX_VALUE / 4;
+
+    private final ScheduledExecutorService ses;
+    private final long tickDuration;
+    private final long startTime = now();
+
+    private final Object lock = new Object();
+    private final List<List<ArrayDeque<Task>>> wheels = new ArrayList<>(LEVELS);
+    private ArrayDeque<Task> spare = new ArrayDeque<>();
+    private long currentTick = 0;
+    private int taskCount = 0; // Number of Tasks in the wheel
+    private ScheduledFuture<?> tickFuture;
+
+    // Used only by the tick, which is never run concurrently
+    private final List<Task> expiredTasks = new ArrayList<>();
 
     /**
      * Create Watchdog with given ScheduledExecutorService.
      * @param ses ScheduledExecutorService to be used with this Watchdog
      */
     public Watchdog(ScheduledExecutorService ses) {
+        this(ses, DEFAULT_TICK_DURATION);
+    }
+
+    /**
+     * Create Watchdog with given ScheduledExecutorService and tick duration.
+     * @param ses ScheduledExecutorService to be used with this Watchdog
+     * @param tickDuration resolution of this Watchdog in milliseconds
+     */
+    public Watchdog(ScheduledExecutorService ses, long tickDuration) {
         this.ses = ses;
+        this.tickDuration = Math.max(1, tickDuration);
+
+        for (int level = 0; level < LEVELS; level++) {
+            List<ArrayDeque<Task>> wheel = new ArrayList<>(WHEEL_SIZE);
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel.add(new ArrayDeque<Task>());
+            }
+            wheels.add(wheel);
+        }
     }
-    
+
     /**
-     * Adds a new Watchdog Task to executor. 
-     * 
-     * @param triggerTime watchdog trigger time in milliseconds. 
+     * Adds a new Watchdog Task.
+     *
+     * @param triggerTime watchdog trigger time in milliseconds.
      * @param listener A Listener, that will be called if application does
      *        not call Task.reset() before trigger time has elapsed.
      * @return Task
      */
     public Task addTask(long triggerTime, final Listener listener) {
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                listener.triggerTimeMissed();
-            }
-        };
-        
-        // Create Task and start watchdog
-        ScheduledFuture<?> scheduledFuture = ses.schedule(r, triggerTime, TimeUnit.MILLISECONDS);
-        Task task = new Task(scheduledFuture, triggerTime, r);
-        
+        Task task = new Task(triggerTime, listener);
+        task.deadline = deadline(triggerTime);
+        schedule(task);
+
         return task;
     }
-    
-    
+
+    private void schedule(Task task) {
+        synchronized (lock) {
+            if (task.scheduled) {
+                return;
+            }
+
+            task.scheduled = true;
+
+            if (tickFuture == null) { // Wheel is empty, and tick is stopped
+                currentTick = (now() - startTime) / tickDuration;
+                tickFuture = ses.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+            }
+
+            insert(task);
+        }
+    }
+
+    /**
+     * Places a Task in the wheel of the lowest level, that spans its deadline.
+     * Must be called while holding the lock.
+     */
+    private void insert(Task task) {
+        long deadlineTick = (task.deadline - startTime + tickDuration - 1) / tickDuration;
+        if (deadlineTick <= currentTick) {
+            deadlineTick = currentTick + 1;
+        }
+
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+
+        int idx = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels.get(level).get(idx).add(task);
+        taskCount++;
+    }
+
+    private void tick() {
+        long targetTick = (now() - startTime) / tickDuration;
+
+        synchronized (lock) {
+            while (currentTick < targetTick) {
+                currentTick++;
+
+                // Cascade Tasks from higher levels, when the wheel below has completed a round
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                        expire(level, (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+                    }
+                }
+
+                expire(0, (int) (currentTick & WHEEL_MASK));
+            }
+        }
+
+        for (Task task : expiredTasks) {
+            try {
+                task.listener.triggerTimeMissed();
+            } catch (RuntimeException e) {
+                logger.warn("Watchdog listener failed", e); // Must not stop the tick
+            }
+        }
+
+        expiredTasks.clear();
+
+        synchronized (lock) {
+            // Listeners have been called, so a new tick cannot overlap with this one
+            if (taskCount == 0 && tickFuture != null) {
+                tickFuture.cancel(false);
+                tickFuture = null;
+            }
+        }
+    }
+
+    /**
+     * Visits the Tasks of a bucket. Reset Tasks are placed again in the wheel, according to
+     * their new deadline. Tasks, whose deadline has elapsed are collected to expiredTasks.
+     */
+    private void expire(int level, int idx) {
+        ArrayDeque<Task> bucket = wheels.get(level).set(idx, spare);
+        spare = bucket;
+
+        long now = now();
+        Task task;
+        while ((task = bucket.poll()) != null) {
+            taskCount--;
+            if (task.cancelled) {
+                task.scheduled = false;
+                if (!task.cancelled) { // reset() did not see scheduled flag cleared
+                    task.scheduled = true;
+                    insert(task);
+                }
+            }
+            else if (task.deadline > now) {
+                insert(task);
+            }
+            else {
+                task.scheduled = false;
+                if (task.deadline > now) { // reset() did not see scheduled flag cleared
+                    task.scheduled = true;
+                    insert(task);
+                }
+                else {
+                    expiredTasks.add(task);
+                }
+            }
+        }
+    }
+
+    private long deadline(long triggerTime) {
+        // Infinite durations are given as very large trigger times
+        return now() + Math.min(triggerTime, MAX_TRIGGER_TIME);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
     /**
      * Watchdog Task. Application is expected to call cancel() or reset()
-     * method before triggertime occurs. Canceling a task removes it from ScheduledExecutorService,
+     * method before triggertime occurs. Canceling a task removes it from Watchdog,
      * and it cannot be used for watchdog purposes anymore. By calling a reset(),
-     * triggertime is reseted to original value and application is again expected 
+     * triggertime is reseted to original value and application is again expected
      * to make either call. If application fails to make either call before triggertime
      * has elapsed, a call to Listeners triggerTimeMissed() is called.
-     *  
+     *
      * @author mcr70
      */
     public class Task {
-        private ScheduledFuture<?> scheduledFuture;
-        private long triggerTime;
-        private Runnable runnable;
+        private final long triggerTime;
+        private final Listener listener;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+        private volatile boolean scheduled = false; // Whether or not this Task is in the wheel
 
-        private Task(ScheduledFuture<?> scheduledFuture, long triggerTime, Runnable r) {
-            this.scheduledFuture = scheduledFuture;
+        private Task(long triggerTime, Listener listener) {
             this.triggerTime = triggerTime;
-            this.runnable = r;
+            this.listener = listener;
         }
 
         /**
-         * Cancel this Task. Canceling of a task removes it from 
-         * executor.
+         * Cancel this Task. Canceled Task is removed from the wheel,
+         * when its bucket is visited next time.
          */
         public void cancel() {
-            scheduledFuture.cancel(false); // do not interrupt
+            cancelled = true;
         }
-        
+
         /**
          * Resets time of this Task. Application is expected to call this method
          * at period less than watchdog trigger time used when Task was created.
          * I.e. Once reset is called, trigger time is reset to initial value.
          */
         public void reset() {
-            scheduledFuture.cancel(false); // do not interrupt
-            this.scheduledFuture = ses.schedule(runnable, triggerTime, TimeUnit.MILLISECONDS);
+            deadline = deadline(triggerTime);
+            cancelled = false;
+
+            if (!scheduled) { // Task has expired, or was canceled
+                schedule(this);
+            }
         }
     }
 
     /**
-     * Implementations of Listener interface gets called when Watchdog reset has been 
+     * Implementations of Listener interface gets called when Watchdog reset has been
      * missed.
-     * 
+     *
      * @author mcr70
      */
     public interface Listener {
         /**
          * Called when an application failed to call reset() method of Task
          * before trigger time.
-         * 
+         *
          * @see Task#reset()
          */
         void triggerTimeMissed();
@@ -3,11 +3,13 @@ package net.sf.jrtps.message;
 import static org.junit.Assert.assertArrayEquals;
 
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.sf.jrtps.transport.RTPSByteBuffer;
 import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.FragmentNumberSet;
 import net.sf.jrtps.types.GuidPrefix;
 import net.sf.jrtps.types.Locator;
 import net.sf.jrtps.types.LocatorUDPv4_t;
@@ -174,6 +176,127 @@ public class MessageTests {
 		assertArrayEquals(bytes1, bytes2);
 	}
 
+	/**
+	 * Tests, that reading and writing of DataFrag is symmetrical, and that
+	 * DataFrag carries the right fragments of the payload.
+	 * @throws IllegalMessageException on exception
+	 */
+	@Test
+	public void testDataFrag() throws IllegalMessageException {
+		byte[] payload = new byte[250];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+
+		// Fragments 3-4 of 100 byte fragments; last fragment is only 50 bytes
+		Message m1 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m1.addSubMessage(new DataFrag(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 1, null, payload, 3, 2, 100));
+
+		byte[] bytes1 = write(m1);
+		Message m2 = read(bytes1);
+		byte[] bytes2 = write(m2);
+
+		assertArrayEquals(bytes1, bytes2);
+
+		DataFrag df = (DataFrag) m2.getSubMessages().get(0);
+		Assert.assertEquals(3, df.getFragmentStartingNumber());
+		Assert.assertEquals(250, df.getSampleSize());
+		Assert.assertEquals(50, df.getSerializedPayload().length);
+		Assert.assertEquals(200, df.getSerializedPayload()[0] & 0xff);
+	}
+
+	/**
+	 * Tests, that reading and writing of Data is symmetrical, and that
+	 * payload of received Data is read in place.
+	 * @throws IllegalMessageException on exception
+	 */
+	@Test
+	public void testData() throws IllegalMessageException {
+		CDREncapsulation cdrEnc = new CDREncapsulation(64);
+		cdrEnc.getBuffer().write_long(0x12345678);
+
+		Message m1 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m1.addSubMessage(new Data(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 1, null, cdrEnc));
+
+		byte[] bytes1 = write(m1);
+		Message m2 = read(bytes1);
+		
+		Data data = (Data) m2.getSubMessages().get(0);
+		RTPSByteBuffer bb = ((CDREncapsulation) data.getDataEncapsulation()).getBuffer();
+		Assert.assertTrue(bb.getBuffer().isReadOnly());
+		Assert.assertEquals(0x12345678, bb.read_long());
+
+		byte[] bytes2 = write(m2);
+		assertArrayEquals(bytes1, bytes2);
+	}
+
+	/**
+	 * Tests, that Data sharing encoded form is written with its own readerId.
+	 * @throws IllegalMessageException on exception
+	 */
+	@Test
+	public void testDataWithReaderId() throws IllegalMessageException {
+		CDREncapsulation cdrEnc = new CDREncapsulation(64);
+		cdrEnc.getBuffer().write_long(0x12345678);
+		Data template = new Data(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 1, null, cdrEnc);
+
+		Message m1 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m1.addSubMessage(template.withReaderId(EntityId.SPDP_BUILTIN_PARTICIPANT_READER));
+		Message m2 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m2.addSubMessage(template.withReaderId(EntityId.SEDP_BUILTIN_PUBLICATIONS_READER));
+
+		write(m1); // Encodes Data
+		Data d2 = (Data) read(write(m2)).getSubMessages().get(0); // Uses encoded form
+		Assert.assertTrue(EntityId.SEDP_BUILTIN_PUBLICATIONS_READER.equals(d2.getReaderId()));
+		Assert.assertEquals(1, d2.getWriterSequenceNumber());
+
+		RTPSByteBuffer bb = ((CDREncapsulation) d2.getDataEncapsulation()).getBuffer();
+		Assert.assertEquals(0x12345678, bb.read_long());
+	}
+
+	/**
+	 * Tests, that a duplicate of received Data reads its payload independently.
+	 * @throws IllegalMessageException on exception
+	 */
+	@Test
+	public void testDataDuplicate() throws IllegalMessageException {
+		CDREncapsulation cdrEnc = new CDREncapsulation(64);
+		cdrEnc.getBuffer().write_long(0x12345678);
+
+		Message m1 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m1.addSubMessage(new Data(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 1, null, cdrEnc));
+
+		Data data = (Data) read(write(m1)).getSubMessages().get(0);
+		Data copy = data.duplicate();
+
+		Assert.assertEquals(0x12345678, ((CDREncapsulation) data.getDataEncapsulation()).getBuffer().read_long());
+		Assert.assertEquals(0x12345678, ((CDREncapsulation) copy.getDataEncapsulation()).getBuffer().read_long());
+	}
+
+	/**
+	 * Tests, that reading and writing of NackFrag is symmetrical, and that
+	 * missing fragments are decoded correctly.
+	 * @throws IllegalMessageException on exception
+	 */
+	@Test
+	public void testNackFrag() throws IllegalMessageException {
+		// Fragments 5, 7 and 8 are missing
+		FragmentNumberSet fns = new FragmentNumberSet(5, 4, new int[] {0xb0000000});
+		
+		Message m1 = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+		m1.addSubMessage(new NackFrag(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 3, fns, 1));
+
+		byte[] bytes1 = write(m1);
+		Message m2 = read(bytes1);
+		byte[] bytes2 = write(m2);
+
+		assertArrayEquals(bytes1, bytes2);
+
+		NackFrag nf = (NackFrag) m2.getSubMessages().get(0);
+		Assert.assertEquals(Arrays.asList(5, 7, 8), nf.getFragmentNumberState().getSequenceNumbers());
+		Assert.assertEquals(Arrays.asList(6), nf.getFragmentNumberState().getMissingSequenceNumbers());
+	}
+
 	/**
 	 * Writes a message to a byte array. 
 	 * @param m Message
@@ -0,0 +1,144 @@
+package net.sf.jrtps.rtps;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.QualityOfService;
+import net.sf.jrtps.builtin.ParticipantData;
+import net.sf.jrtps.builtin.PublicationData;
+import net.sf.jrtps.builtin.SubscriptionData;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.parameter.QosReliability;
+import net.sf.jrtps.message.parameter.UnicastLocator;
+import net.sf.jrtps.transport.ReceiveBuffer;
+import net.sf.jrtps.transport.Receiver;
+import net.sf.jrtps.transport.Transmitter;
+import net.sf.jrtps.transport.TransportProvider;
+import net.sf.jrtps.types.Duration;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.GuidPrefix;
+import net.sf.jrtps.types.Locator;
+import net.sf.jrtps.udds.security.NoOpAuthenticationPlugin;
+
+/**
+ * Creates participants and remote entities for tests of RTPS endpoints. Messages sent
+ * to Locators created by this class are captured, instead of being sent to network.
+ */
+class EndpointFixture {
+    static final int LOCATOR_KIND_CAPTURE = 0x8c01;
+
+    private static final CapturingProvider provider = new CapturingProvider();
+    static {
+        TransportProvider.registerTransportProvider("capture", provider, LOCATOR_KIND_CAPTURE);
+    }
+
+    static Configuration config(String... keysAndValues) {
+        Map<String, Object> props = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            props.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return new Configuration(props);
+    }
+
+    static RTPSParticipant participant(Configuration cfg, int id) {
+        return new RTPSParticipant(new Guid(prefix(id), EntityId.PARTICIPANT), 0, id, 
+                new ScheduledThreadPoolExecutor(1), new HashMap<GuidPrefix, ParticipantData>(), 
+                new NoOpAuthenticationPlugin(cfg));
+    }
+
+    static GuidPrefix prefix(int id) {
+        byte[] bytes = new byte[12];
+        bytes[11] = (byte) id;
+
+        return new GuidPrefix(bytes);
+    }
+
+    static EntityId entityId(int key, int kind) {
+        return new EntityId.UserDefinedEntityId(new byte[] { 0, 0, (byte) key }, kind);
+    }
+
+    static QualityOfService qos(boolean reliable) {
+        QualityOfService qos = new QualityOfService();
+        if (reliable) {
+            qos.setPolicy(new QosReliability(QosReliability.Kind.RELIABLE, new Duration(100)));
+        }
+        else {
+            qos.setPolicy(new QosReliability(QosReliability.Kind.BEST_EFFORT, new Duration(0)));
+        }
+
+        return qos;
+    }
+
+    static Locator locator(int port) {
+        return new Locator(LOCATOR_KIND_CAPTURE, port, new byte[16]);
+    }
+
+    static SubscriptionData subscription(Guid guid, QualityOfService qos, Locator locator) {
+        SubscriptionData sd = new SubscriptionData("topic", "type", guid, qos);
+        sd.getParameters().add(new UnicastLocator(locator));
+
+        return sd;
+    }
+
+    static PublicationData publication(Guid guid, QualityOfService qos) {
+        return new PublicationData("topic", "type", guid, qos);
+    }
+
+    /**
+     * Gets the messages sent to given Locator, and forgets them.
+     */
+    static List<Message> takeMessages(Locator locator) {
+        return provider.take(locator);
+    }
+
+    private static class CapturingProvider extends TransportProvider {
+        private final Map<Locator, List<Message>> sent = new HashMap<>();
+
+        CapturingProvider() {
+            super(new Configuration(new HashMap<String, Object>()));
+        }
+
+        synchronized List<Message> take(Locator locator) {
+            List<Message> messages = sent.remove(locator);
+            return messages != null ? messages : new LinkedList<Message>();
+        }
+
+        @Override
+        public Transmitter getTransmitter(final Locator locator) {
+            return new Transmitter() {
+                @Override
+                public boolean sendMessage(Message msg) {
+                    synchronized (CapturingProvider.this) {
+                        List<Message> messages = sent.get(locator);
+                        if (messages == null) {
+                            messages = new LinkedList<>();
+                            sent.put(locator, messages);
+                        }
+                        messages.add(msg);
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public Receiver getReceiver(Locator locator, BlockingQueue<ReceiveBuffer> queue) throws IOException {
+            return null;
+        }
+
+        @Override
+        public Locator createLocator(URI uri, int domainId, int participantId, boolean isDiscovery) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.sf.jrtps.rtps;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.jrtps.message.DataEncapsulation;
+
+/**
+ * A simple WriterCache for tests of RTPSWriter. Samples are kept in a TreeMap.
+ */
+class HistoryFixture implements WriterCache<Object> {
+    private final TreeMap<Long, Sample<Object>> samples = new TreeMap<>();
+
+    /**
+     * Adds a Sample with given sequence number, and a payload of given size.
+     */
+    synchronized Sample<Object> add(long seqNum, int payloadSize) {
+        Sample<Object> sample = new Sample<Object>(null, null, seqNum, seqNum, seqNum, ChangeKind.WRITE, null, 
+                DataEncapsulation.wrap(new byte[payloadSize]));
+        samples.put(seqNum, sample);
+
+        return sample;
+    }
+
+    @Override
+    public synchronized long getSeqNumMin() {
+        return samples.isEmpty() ? 0 : samples.firstKey();
+    }
+
+    @Override
+    public synchronized long getSeqNumMax() {
+        return samples.isEmpty() ? 0 : samples.lastKey();
+    }
+
+    @Override
+    public synchronized LinkedList<Sample<Object>> getSamplesSince(long seqNum) {
+        return new LinkedList<>(samples.tailMap(seqNum, false).values());
+    }
+
+    @Override
+    public synchronized Sample<Object> getSampleAfter(long seqNum) {
+        Map.Entry<Long, Sample<Object>> e = samples.higherEntry(seqNum);
+        return e != null ? e.getValue() : null;
+    }
+
+    @Override
+    public synchronized Sample<Object> getSample(long seqNum) {
+        return samples.get(seqNum);
+    }
+
+    synchronized Map<Long, Sample<Object>> getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,79 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jrtps.transport.ReceiveBuffer;
+
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+    private static final int MESSAGES = 100;
+
+    @Test
+    public void testMessagesOfParticipantStayOrderedOnOnePartition() throws InterruptedException {
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>();
+        List<BlockingQueue<ReceiveBuffer>> workerQueues = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            workerQueues.add(new LinkedBlockingQueue<ReceiveBuffer>());
+        }
+
+        MessageDispatcher dispatcher = new MessageDispatcher(queue, workerQueues);
+        Thread t = new Thread(dispatcher);
+        t.start();
+
+        // Interleave messages of three participants
+        byte[] participants = new byte[] { 1, 2, 3 };
+        for (int i = 0; i < MESSAGES; i++) {
+            for (byte p : participants) {
+                queue.put(message(p, i));
+            }
+        }
+
+        // Each participant is expected in a single partition, with its messages in order
+        int[] partition = new int[participants.length + 1];
+        int[] expectedMessages = new int[workerQueues.size()];
+        for (byte p : participants) {
+            partition[p] = dispatcher.partitionOf(message(p, 0));
+            expectedMessages[partition[p]] += MESSAGES;
+        }
+
+        int[] nextCount = new int[participants.length + 1];
+        for (int i = 0; i < workerQueues.size(); i++) {
+            for (int j = 0; j < expectedMessages[i]; j++) {
+                ReceiveBuffer buffer = workerQueues.get(i).poll(1, TimeUnit.SECONDS);
+                assertNotNull("Partition " + i + " received only " + j + " messages", buffer);
+
+                byte sender = buffer.array()[8];
+                assertEquals(partition[sender], i);
+                assertEquals(nextCount[sender]++, buffer.array()[20]);
+            }
+        }
+
+        for (BlockingQueue<ReceiveBuffer> workerQueue : workerQueues) {
+            assertTrue(workerQueue.isEmpty());
+        }
+
+        dispatcher.close();
+        t.join(1000);
+        assertTrue(!t.isAlive());
+    }
+
+    private ReceiveBuffer message(byte participant, int count) {
+        byte[] bytes = new byte[24];
+        bytes[0] = 'R'; bytes[1] = 'T'; bytes[2] = 'P'; bytes[3] = 'S';
+        for (int i = 8; i < 20; i++) {
+            bytes[i] = participant; // GuidPrefix
+        }
+        bytes[20] = (byte) count;
+
+        return ReceiveBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,100 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.message.CDREncapsulation;
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.transport.RTPSByteBuffer;
+import net.sf.jrtps.transport.ReceiveBuffer;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.Time;
+import net.sf.jrtps.udds.security.NoOpAuthenticationPlugin;
+
+import org.junit.Test;
+
+public class RTPSMessageReceiverTest {
+    private static final EntityId WRITER_ID = EndpointFixture.entityId(1, 0x02);
+
+    private final Configuration cfg = EndpointFixture.config();
+    private final RTPSParticipant participant = EndpointFixture.participant(cfg, 1);
+    private final Guid writerGuid = new Guid(EndpointFixture.prefix(2), WRITER_ID);
+
+    @Test
+    public void testUnknownEntityDataIsDeliveredToEveryMatchedReader() throws Exception {
+        ReaderCacheFixture cache1 = createReader(1, true);
+        ReaderCacheFixture cache2 = createReader(2, true);
+        ReaderCacheFixture unmatched = createReader(3, false);
+
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>();
+        RTPSMessageReceiver receiver = new RTPSMessageReceiver(new NoOpAuthenticationPlugin(cfg).getCryptoPlugin(),
+                participant, queue, cfg);
+        Thread t = new Thread(receiver);
+        t.start();
+
+        Message m = new Message(writerGuid.getPrefix());
+        m.addSubMessage(new Data(EntityId.UNKNOWN_ENTITY, WRITER_ID, 1, null, new CDREncapsulation(8)));
+        queue.put(ReceiveBuffer.wrap(toBytes(m)));
+
+        cache1.await(1);
+        cache2.await(1);
+        assertEquals(Arrays.asList(1L), cache1.seqNums);
+        assertEquals(Arrays.asList(1L), cache2.seqNums);
+        assertTrue(unmatched.seqNums.isEmpty());
+
+        t.interrupt();
+    }
+
+    private ReaderCacheFixture createReader(int key, boolean matched) {
+        ReaderCacheFixture cache = new ReaderCacheFixture();
+        RTPSReader<Object> reader = participant.createReader(EndpointFixture.entityId(key, 0x07), "topic", cache,
+                EndpointFixture.qos(false));
+        if (matched) {
+            reader.addMatchedWriter(EndpointFixture.publication(writerGuid, EndpointFixture.qos(false)));
+        }
+
+        return cache;
+    }
+
+    private byte[] toBytes(Message m) {
+        RTPSByteBuffer bb = new RTPSByteBuffer(ByteBuffer.allocate(1024));
+        m.writeTo(bb);
+
+        return Arrays.copyOf(bb.getBuffer().array(), bb.position());
+    }
+
+    private static class ReaderCacheFixture implements ReaderCache<Object> {
+        private final List<Long> seqNums = new LinkedList<>();
+
+        @Override
+        public void changesBegin(int id) {
+        }
+
+        @Override
+        public synchronized void addChange(int id, Guid writerGuid, Data data, Time timestamp) {
+            seqNums.add(data.getWriterSequenceNumber());
+            notifyAll();
+        }
+
+        @Override
+        public void changesEnd(int id) {
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (seqNums.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+    }
+}
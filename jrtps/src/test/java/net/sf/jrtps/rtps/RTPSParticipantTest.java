@@ -0,0 +1,64 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import net.sf.jrtps.builtin.PublicationData;
+import net.sf.jrtps.builtin.SubscriptionData;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.GuidPrefix;
+
+import org.junit.Test;
+
+public class RTPSParticipantTest {
+    private static final EntityId WRITER_ID = EndpointFixture.entityId(1, 0x02);
+    private static final EntityId READER_ID = EndpointFixture.entityId(1, 0x07);
+    private static final GuidPrefix REMOTE_PREFIX = EndpointFixture.prefix(2);
+
+    private final RTPSParticipant participant = EndpointFixture.participant(EndpointFixture.config(), 1);
+
+    @Test
+    public void testUnknownEntityLookupOfReaders() {
+        RTPSReader<Object> reader1 = participant.createReader(READER_ID, "topic", null, EndpointFixture.qos(false));
+        RTPSReader<Object> reader2 = participant.createReader(EndpointFixture.entityId(2, 0x07), "topic", null,
+                EndpointFixture.qos(false));
+        PublicationData pd = EndpointFixture.publication(new Guid(REMOTE_PREFIX, WRITER_ID), EndpointFixture.qos(false));
+
+        reader1.addMatchedWriter(pd);
+        reader2.addMatchedWriter(pd);
+        assertEquals(2, participant.getReaders(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, WRITER_ID).size());
+
+        reader1.removeMatchedWriter(pd);
+        assertSame(reader2, participant.getReaders(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, WRITER_ID).get(0));
+
+        // Once the last reader is unmatched, writer is removed from the index
+        reader2.removeMatchedWriter(pd);
+        assertSame(Collections.emptyList(), participant.getReaders(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, WRITER_ID));
+
+        reader1.addMatchedWriter(pd);
+        assertEquals(Collections.singletonList(reader1),
+                participant.getReaders(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, WRITER_ID));
+    }
+
+    @Test
+    public void testUnknownEntityLookupOfWriters() {
+        RTPSWriter<Object> writer = participant.createWriter(WRITER_ID, "topic", new HistoryFixture(),
+                EndpointFixture.qos(false));
+        SubscriptionData sd = EndpointFixture.subscription(new Guid(REMOTE_PREFIX, READER_ID),
+                EndpointFixture.qos(false), EndpointFixture.locator(5));
+
+        writer.addMatchedReader(sd);
+        assertSame(writer, participant.getWriter(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, READER_ID));
+
+        writer.removeMatchedReader(sd);
+        assertNull(participant.getWriter(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, READER_ID));
+
+        writer.addMatchedReader(sd);
+        assertSame(writer, participant.getWriter(EntityId.UNKNOWN_ENTITY, REMOTE_PREFIX, READER_ID));
+        writer.close();
+    }
+}
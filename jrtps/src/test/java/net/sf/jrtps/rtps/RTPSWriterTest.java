@@ -0,0 +1,386 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.QualityOfService;
+import net.sf.jrtps.message.AckNack;
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.Gap;
+import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.SubMessage;
+import net.sf.jrtps.message.parameter.QosLatencyBudget;
+import net.sf.jrtps.transport.RTPSByteBuffer;
+import net.sf.jrtps.types.Duration;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.Locator;
+import net.sf.jrtps.types.SequenceNumberSet;
+
+import org.junit.Test;
+
+public class RTPSWriterTest {
+    private static final int BUFFER_SIZE = 4096;
+    private static final EntityId WRITER_ID = EndpointFixture.entityId(1, 0x02);
+    private static final EntityId READER_ID = EndpointFixture.entityId(1, 0x07);
+
+    private final HistoryFixture history = new HistoryFixture();
+
+    @Test
+    public void testRepairsAreSplitIntoBoundedMessages() throws Exception {
+        Locator locator = EndpointFixture.locator(1);
+        RTPSWriter<Object> writer = createWriter(config());
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(true), locator));
+
+        for (long sn = 1; sn <= 256; sn++) {
+            if (sn % 4 == 1) { // Every fourth sample is available, others are sent as Gaps
+                history.add(sn, 300);
+            }
+        }
+
+        int[] bitmaps = new int[8];
+        Arrays.fill(bitmaps, -1);
+        writer.onAckNack(readerGuid.getPrefix(), 
+                new AckNack(READER_ID, WRITER_ID, new SequenceNumberSet(1, 256, bitmaps), 1));
+
+        List<Message> messages = awaitHeartbeat(locator);
+        assertTrue(messages.size() > 1);
+
+        List<Long> seqNums = new LinkedList<>();
+        for (Message m : messages) {
+            assertFalse(m.writeTo(new RTPSByteBuffer(ByteBuffer.allocate(BUFFER_SIZE))));
+            for (SubMessage sm : m.getSubMessages()) {
+                if (sm instanceof Data) {
+                    seqNums.add(((Data) sm).getWriterSequenceNumber());
+                }
+                else if (sm instanceof Gap) {
+                    for (long sn = ((Gap) sm).getGapStart(); sn <= ((Gap) sm).getGapEnd(); sn++) {
+                        seqNums.add(sn);
+                    }
+                }
+            }
+        }
+
+        assertEquals(256, seqNums.size()); // Every requested sequence number, once and in order
+        for (int i = 0; i < seqNums.size(); i++) {
+            assertEquals(i + 1, (long) seqNums.get(i));
+        }
+
+        writer.close();
+    }
+
+    @Test
+    public void testReadersSharingLocatorAreGrouped() throws Exception {
+        Locator locator1 = EndpointFixture.locator(2);
+        Locator locator2 = EndpointFixture.locator(3);
+        RTPSWriter<Object> writer = createWriter(config());
+        EntityId readerC = EndpointFixture.entityId(3, 0x07);
+        matchReader(writer, READER_ID, locator1);
+        matchReader(writer, EndpointFixture.entityId(2, 0x07), locator1);
+        matchReader(writer, readerC, locator2);
+
+        history.add(1, 100);
+        history.add(2, 100);
+        writer.notifyReaders();
+
+        // Both readers behind locator1 are addressed with a single Data per sample
+        Map<EntityId, List<Long>> received = awaitData(locator1, 2);
+        assertEquals(Arrays.asList(1L, 2L), received.get(EntityId.UNKNOWN_ENTITY));
+        assertEquals(1, received.size());
+
+        received = awaitData(locator2, 2);
+        assertEquals(Arrays.asList(1L, 2L), received.get(readerC));
+        assertEquals(1, received.size());
+
+        writer.close();
+    }
+
+    @Test
+    public void testReaderAheadOfItsGroupIsNotSentDuplicates() throws Exception {
+        Locator locator = EndpointFixture.locator(4);
+        RTPSWriter<Object> writer = createWriter(config());
+        EntityId readerB = EndpointFixture.entityId(2, 0x07);
+        matchReader(writer, READER_ID, locator);
+        matchReader(writer, readerB, locator);
+
+        history.add(1, 100);
+        history.add(2, 100);
+        history.add(3, 100);
+
+        // READER_ID has received samples up to #2 
+        writer.onAckNack(EndpointFixture.prefix(2), 
+                new AckNack(READER_ID, WRITER_ID, new SequenceNumberSet(3), 1));
+        writer.notifyReaders();
+
+        Map<EntityId, List<Long>> received = awaitData(locator, 4);
+        assertEquals(Arrays.asList(3L), received.get(READER_ID));
+        assertEquals(Arrays.asList(1L, 2L, 3L), received.get(readerB));
+        assertEquals(2, received.size());
+
+        writer.close();
+    }
+
+    @Test
+    public void testSamplesWithinLatencyBudgetAreSentTogether() throws Exception {
+        Locator locator = EndpointFixture.locator(6);
+        RTPSWriter<Object> writer = createWriter(config(), latencyBudget(200));
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(false), locator));
+
+        for (long sn = 1; sn <= 3; sn++) {
+            history.add(sn, 100);
+            writer.notifyReaders();
+        }
+        assertTrue(EndpointFixture.takeMessages(locator).isEmpty()); // Delayed by latency budget
+
+        Thread.sleep(400);
+        List<Message> messages = EndpointFixture.takeMessages(locator);
+        assertEquals(1, messages.size());
+        assertEquals(3, countData(messages.get(0)));
+
+        writer.close();
+    }
+
+    @Test
+    public void testFullMessageIsSentBeforeLatencyBudget() throws Exception {
+        Locator locator = EndpointFixture.locator(7);
+        RTPSWriter<Object> writer = createWriter(config(), latencyBudget(100000));
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(false), locator));
+
+        // Size of a Data is estimated as 128 bytes, before anything has been sent. With a buffer
+        // of 4096 bytes, 28 samples are estimated to fill a message.
+        long sn = 1;
+        for (; sn < 28; sn++) {
+            history.add(sn, 10);
+            writer.notifyReaders();
+        }
+        assertTrue(EndpointFixture.takeMessages(locator).isEmpty());
+
+        history.add(sn, 10);
+        writer.notifyReaders();
+
+        int dataCount = 0;
+        for (Message m : EndpointFixture.takeMessages(locator)) {
+            dataCount += countData(m);
+        }
+        assertEquals(28, dataCount); // Sent immediately
+
+        writer.close();
+    }
+
+    @Test
+    public void testPacedMessagesAreSentInOrderAndQueueIsBounded() throws Exception {
+        Locator locator = EndpointFixture.locator(8);
+        RTPSWriter<Object> writer = createWriter(config("rtps.writer.flow-control.rate", "65536", 
+                "rtps.writer.flow-control.burst", "4096", "rtps.writer.flow-control.queue-size", "4"));
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(false), locator));
+
+        for (long sn = 1; sn <= 21; sn++) {
+            history.add(sn, 1000); // 3 samples per message, 7 messages
+        }
+        writer.notifyReaders();
+        assertEquals(1, EndpointFixture.takeMessages(locator).size()); // Within burst
+
+        // 4 messages are queued, and sent as the rate allows. The last 2 did not fit into queue.
+        Map<EntityId, List<Long>> received = awaitData(locator, 12);
+        List<Long> expected = new LinkedList<>();
+        for (long sn = 4; sn <= 15; sn++) {
+            expected.add(sn);
+        }
+        assertEquals(expected, received.get(READER_ID));
+
+        writer.close();
+    }
+
+    @Test
+    public void testQueuedSamplesAreNotAnnouncedOrRepaired() throws Exception {
+        Locator locator = EndpointFixture.locator(9);
+        RTPSWriter<Object> writer = createWriter(config("rtps.writer.flow-control.rate", "16384", 
+                "rtps.writer.flow-control.burst", "4096"));
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(true), locator));
+
+        for (long sn = 1; sn <= 12; sn++) {
+            history.add(sn, 1000);
+        }
+        writer.notifyReaders(); // #1 - #3 are sent, the rest are queued
+
+        writer.assertLiveliness(); // Heartbeat is not paced
+        Heartbeat hb = null;
+        for (Message m : EndpointFixture.takeMessages(locator)) {
+            for (SubMessage sm : m.getSubMessages()) {
+                if (sm instanceof Heartbeat) {
+                    hb = (Heartbeat) sm;
+                }
+            }
+        }
+        assertEquals(3, hb.getLastSequenceNumber());
+
+        // Reader requests everything after #3, which is queued already
+        int[] bitmaps = new int[] { -1 };
+        writer.onAckNack(readerGuid.getPrefix(), 
+                new AckNack(READER_ID, WRITER_ID, new SequenceNumberSet(4, 9, bitmaps), 1));
+
+        Map<EntityId, List<Long>> received = awaitData(locator, 9);
+        assertEquals(Arrays.asList(4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L), received.get(READER_ID));
+
+        Thread.sleep(500); // Repairs would be paced after the queued messages
+        assertEquals(0, takeData(locator, received));
+
+        writer.close();
+    }
+
+    @Test
+    public void testSampleWrittenWhileSendingIsSentToBestEffortReader() throws Exception {
+        Locator locator = EndpointFixture.locator(10);
+        HistoryFixture cache = new HistoryFixture() {
+            @Override
+            public synchronized Sample<Object> getSampleAfter(long seqNum) {
+                if (seqNum == 1 && getSamples().size() == 2) {
+                    add(3, 100); // Written by another thread, while #1 - #2 are being sent
+                }
+                return super.getSampleAfter(seqNum);
+            }
+        };
+        RTPSWriter<Object> writer = EndpointFixture.participant(config(), 1).createWriter(WRITER_ID, "topic", 
+                cache, EndpointFixture.qos(false));
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), READER_ID);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(false), locator));
+
+        cache.add(1, 100);
+        cache.add(2, 100);
+        writer.notifyReaders();
+        assertEquals(Arrays.asList(1L, 2L), awaitData(locator, 2).get(READER_ID));
+
+        writer.notifyReaders(); // Best effort reader is not sent repairs, so #3 must be sent now
+        assertEquals(Arrays.asList(3L), awaitData(locator, 1).get(READER_ID));
+
+        writer.close();
+    }
+
+    private QualityOfService latencyBudget(long millis) {
+        QualityOfService qos = EndpointFixture.qos(true);
+        qos.setPolicy(new QosLatencyBudget(new Duration(millis)));
+
+        return qos;
+    }
+
+    private int countData(Message m) {
+        int count = 0;
+        for (SubMessage sm : m.getSubMessages()) {
+            if (sm instanceof Data) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private void matchReader(RTPSWriter<Object> writer, EntityId readerId, Locator locator) {
+        Guid readerGuid = new Guid(EndpointFixture.prefix(2), readerId);
+        writer.addMatchedReader(EndpointFixture.subscription(readerGuid, EndpointFixture.qos(true), locator));
+    }
+
+    /**
+     * Waits until given number of Data submessages has been sent to given Locator.
+     * 
+     * @return sequence numbers of Data, by the reader they were addressed to
+     */
+    private Map<EntityId, List<Long>> awaitData(Locator locator, int count) throws InterruptedException {
+        Map<EntityId, List<Long>> received = new HashMap<>();
+        int dataCount = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            dataCount += takeData(locator, received);
+            if (dataCount >= count) {
+                Thread.sleep(50); // Make sure nothing else gets sent
+                dataCount += takeData(locator, received);
+                assertEquals("Got " + received, count, dataCount);
+
+                return received;
+            }
+            Thread.sleep(10);
+        }
+
+        throw new AssertionError("Expected " + count + " Data, got " + received);
+    }
+
+    private int takeData(Locator locator, Map<EntityId, List<Long>> received) {
+        int dataCount = 0;
+        for (Message m : EndpointFixture.takeMessages(locator)) {
+            for (SubMessage sm : m.getSubMessages()) {
+                if (sm instanceof Data) {
+                    Data data = (Data) sm;
+                    List<Long> seqNums = received.get(data.getReaderId());
+                    if (seqNums == null) {
+                        seqNums = new LinkedList<>();
+                        received.put(data.getReaderId(), seqNums);
+                    }
+                    seqNums.add(data.getWriterSequenceNumber());
+                    dataCount++;
+                }
+            }
+        }
+
+        return dataCount;
+    }
+
+    private RTPSWriter<Object> createWriter(Configuration cfg) {
+        return createWriter(cfg, EndpointFixture.qos(true));
+    }
+
+    private RTPSWriter<Object> createWriter(Configuration cfg, QualityOfService qos) {
+        RTPSParticipant participant = EndpointFixture.participant(cfg, 1);
+        return participant.createWriter(WRITER_ID, "topic", history, qos);
+    }
+
+    private Configuration config(String... keysAndValues) {
+        Configuration cfg = EndpointFixture.config("jrtps.buffer-size", "" + BUFFER_SIZE, 
+                "rtps.writer.heartbeat-period", "100000", "rtps.writer.nack-response-delay", "0");
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            cfg.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return cfg;
+    }
+
+    /**
+     * Waits until a message with a Heartbeat has been sent to given Locator.
+     */
+    private List<Message> awaitHeartbeat(Locator locator) throws InterruptedException {
+        List<Message> messages = new LinkedList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            messages.addAll(EndpointFixture.takeMessages(locator));
+            if (!messages.isEmpty() && hasHeartbeat(messages.get(messages.size() - 1))) {
+                return messages;
+            }
+            Thread.sleep(10);
+        }
+
+        throw new AssertionError("No Heartbeat was sent, got " + messages);
+    }
+
+    private boolean hasHeartbeat(Message m) {
+        for (SubMessage sm : m.getSubMessages()) {
+            if (sm instanceof Heartbeat) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.jrtps.message.parameter.KeyHash;
+
+import org.junit.Test;
+
+public class SampleTest {
+    @Test
+    public void testStatus() {
+        Sample<Object> write = new Sample<Object>(null, null, 1, 1, ChangeKind.WRITE, "data");
+        assertEquals(ChangeKind.WRITE, write.getKind());
+        assertFalse(write.isDisposed());
+        assertFalse(write.isUnregistered());
+
+        Sample<Object> dispose = new Sample<Object>(null, null, 2, 2, ChangeKind.DISPOSE, "data");
+        assertEquals(ChangeKind.DISPOSE, dispose.getKind());
+        assertTrue(dispose.isDisposed());
+
+        Sample<Object> unregister = new Sample<Object>(null, null, 3, 3, ChangeKind.UNREGISTER, "data");
+        assertEquals(ChangeKind.UNREGISTER, unregister.getKind());
+        assertTrue(unregister.isUnregistered());
+
+        Sample<Object> noChange = new Sample<Object>(4);
+        assertNull(noChange.getKind());
+        assertFalse(noChange.isDisposed());
+    }
+
+    @Test
+    public void testPropertiesAndKey() throws CloneNotSupportedException {
+        KeyHash key = new KeyHash(new byte[] { 1 });
+        Sample<Object> sample = new Sample<Object>(null, null, 1, 1, 1, ChangeKind.WRITE, key, null);
+        assertNull(sample.getProperty("foo"));
+
+        sample.setProperty("foo", "bar");
+        @SuppressWarnings("unchecked")
+        Sample<Object> clone = (Sample<Object>) sample.clone();
+        clone.setProperty("foo", "baz");
+        assertEquals("bar", sample.getProperty("foo"));
+
+        KeyHash canonical = new KeyHash(new byte[] { 1 });
+        sample.internKey(canonical);
+        assertSame(canonical, sample.getKey());
+        sample.internKey(new KeyHash(new byte[] { 2 })); // Not equal, not replaced
+        assertSame(canonical, sample.getKey());
+        assertNotSame(canonical, clone.getKey());
+    }
+}
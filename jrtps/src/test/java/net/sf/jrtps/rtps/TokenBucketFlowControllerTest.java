@@ -0,0 +1,28 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketFlowControllerTest {
+
+    @Test
+    public void testBurstAndRate() throws InterruptedException {
+        FlowController fc = new TokenBucketFlowController(100000, 10000); // 100 kB/s
+
+        for (int i = 0; i < 10; i++) { // Burst is available at once
+            assertEquals(0, fc.getDelay(1000));
+            fc.sent(1000);
+        }
+
+        long delay = fc.getDelay(1000);
+        assertTrue(delay > 0 && delay <= 10000000); // At most 10 ms for 1000 bytes
+
+        Thread.sleep(delay / 1000000 + 1);
+        assertEquals(0, fc.getDelay(1000));
+
+        fc.sent(50000); // Larger than burst; pays back before next send
+        assertTrue(fc.getDelay(1) > 400000000);
+    }
+}
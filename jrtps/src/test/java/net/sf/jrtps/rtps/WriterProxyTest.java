@@ -0,0 +1,155 @@
+package net.sf.jrtps.rtps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataFrag;
+import net.sf.jrtps.message.Gap;
+import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.rtps.WriterProxy.ReceivedData;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.SequenceNumberSet;
+import net.sf.jrtps.types.Time;
+
+import org.junit.Test;
+
+public class WriterProxyTest {
+    private static final EntityId READER_ID = EndpointFixture.entityId(1, 0x07);
+    private static final EntityId WRITER_ID = EndpointFixture.entityId(1, 0x02);
+
+    private final WriterProxy wp = createProxy(EndpointFixture.config("jrtps.reader.reorder-window", "8"));
+
+    @Test
+    public void testOutOfOrderDataIsReleasedInOrder() {
+        assertSeqNums(wp.addData(data(1), time()), 1);
+        assertSeqNums(wp.addData(data(3), time())); // Held
+        assertSeqNums(wp.addData(data(4), time())); // Held
+        assertSeqNums(wp.addData(data(9), time())); // Held, at the end of window
+        assertSeqNums(wp.addData(data(10), time())); // Beyond window, dropped
+
+        assertSeqNums(wp.addData(data(2), time()), 2, 3, 4);
+        assertEquals(4, wp.getGreatestDataSeqNum());
+    }
+
+    @Test
+    public void testDuplicatesAreSuppressed() {
+        assertSeqNums(wp.addData(data(1), time()), 1);
+        assertSeqNums(wp.addData(data(1), time()));
+        assertSeqNums(wp.addData(data(3), time()));
+        assertSeqNums(wp.addData(data(3), time())); // Already held
+
+        assertSeqNums(wp.addData(data(2), time()), 2, 3);
+        assertSeqNums(wp.addData(data(3), time()));
+    }
+
+    @Test
+    public void testGapReleasesHeldData() {
+        assertSeqNums(wp.addData(data(1), time()), 1);
+        assertSeqNums(wp.addData(data(4), time()));
+        assertSeqNums(wp.addData(data(7), time()));
+
+        assertSeqNums(wp.applyGap(new Gap(READER_ID, WRITER_ID, 5, 6))); // Not contiguous with #1
+        assertSeqNums(wp.applyGap(new Gap(READER_ID, WRITER_ID, 2, 3)), 4, 7);
+        assertEquals(7, wp.getGreatestDataSeqNum());
+    }
+
+    @Test
+    public void testHeartbeatSkipsLostData() {
+        assertSeqNums(wp.addData(data(1), time()), 1);
+        assertSeqNums(wp.addData(data(5), time()));
+        assertSeqNums(wp.addData(data(6), time()));
+
+        Heartbeat hb = new Heartbeat(READER_ID, WRITER_ID, 5, 6, 1);
+        assertTrue(wp.heartbeatReceived(hb));
+        assertSeqNums(wp.applyHeartbeat(hb), 5, 6); // #2 - #4 are not available anymore
+        assertEquals(6, wp.getGreatestDataSeqNum());
+        assertTrue(wp.isAllReceived());
+    }
+
+    @Test
+    public void testSequenceNumberSet() {
+        assertSeqNums(wp.addData(data(1), time()), 1);
+        assertSeqNums(wp.addData(data(3), time()));
+        assertSeqNums(wp.addData(data(5), time()));
+        assertNull(wp.addFragments(new DataFrag(READER_ID, WRITER_ID, 6, null, new byte[100], 1, 1, 50)));
+
+        wp.heartbeatReceived(new Heartbeat(READER_ID, WRITER_ID, 1, 40, 1));
+        SequenceNumberSet snSet = wp.getSequenceNumberSet();
+        assertEquals(2, snSet.getBitmapBase());
+        assertEquals(39, snSet.getNumBits());
+        // Missing are 2, 4 and 7-40. 3 and 5 are held, and 6 is being reassembled
+        assertArrayEquals(new int[] { 0xa7ffffff, 0xfe000000 }, snSet.getBitmaps());
+
+        WriterProxy late = createProxy(EndpointFixture.config());
+        late.heartbeatReceived(new Heartbeat(READER_ID, WRITER_ID, 10, 12, 1));
+        snSet = late.getSequenceNumberSet();
+        assertEquals(10, snSet.getBitmapBase()); // Samples before first sequence number are not nacked
+        assertEquals(3, snSet.getNumBits());
+        assertArrayEquals(new int[] { 0xe0000000 }, snSet.getBitmaps());
+    }
+
+    @Test
+    public void testInvalidDataFragsAreDropped() {
+        WriterProxy wp = createProxy(EndpointFixture.config("jrtps.reader.max-fragmented-sample-size", "100"));
+
+        assertNull(wp.addFragments(dataFrag(1, new byte[50], 1, 1, 0))); // fragment size 0
+        assertNull(wp.addFragments(dataFrag(2, new byte[200], 1, 1, 100))); // sample too big
+        assertEquals(0, wp.getFragmentBuffers().size());
+
+        assertNotNull(wp.addFragments(dataFrag(3, new byte[100], 1, 2, 50)));
+    }
+
+    @Test
+    public void testConcurrentReassembliesAreBounded() {
+        WriterProxy wp = createProxy(EndpointFixture.config("jrtps.reader.max-fragment-buffers", "2"));
+
+        assertNull(wp.addFragments(dataFrag(1, new byte[100], 1, 1, 50)));
+        assertNull(wp.addFragments(dataFrag(2, new byte[100], 1, 1, 50)));
+        assertNull(wp.addFragments(dataFrag(3, new byte[100], 1, 1, 50))); // Dropped
+        assertEquals(2, wp.getFragmentBuffers().size());
+
+        assertNotNull(wp.addFragments(dataFrag(1, new byte[100], 2, 1, 50))); // #1 completes
+        assertNull(wp.addFragments(dataFrag(3, new byte[100], 1, 1, 50))); // Now accepted
+        assertEquals(2, wp.getFragmentBuffers().size());
+    }
+
+    static WriterProxy createProxy(Configuration cfg) {
+        return createProxy(cfg, true);
+    }
+
+    static WriterProxy createProxy(Configuration cfg, boolean reliable) {
+        RTPSParticipant participant = EndpointFixture.participant(cfg, 1);
+        RTPSReader<Object> reader = participant.createReader(READER_ID, "topic", null, 
+                EndpointFixture.qos(reliable));
+
+        Guid writerGuid = new Guid(EndpointFixture.prefix(2), WRITER_ID);
+        return reader.addMatchedWriter(EndpointFixture.publication(writerGuid, EndpointFixture.qos(reliable)));
+    }
+
+    static Data data(long sn) {
+        return new Data(READER_ID, WRITER_ID, sn, null, null);
+    }
+
+    static Time time() {
+        return new Time(System.currentTimeMillis());
+    }
+
+    private void assertSeqNums(List<ReceivedData> released, long... seqNums) {
+        assertEquals(seqNums.length, released.size());
+        for (int i = 0; i < seqNums.length; i++) {
+            assertEquals(seqNums[i], released.get(i).getData().getWriterSequenceNumber());
+        }
+    }
+
+    private DataFrag dataFrag(long sn, byte[] payload, int fragmentNum, int count, int fragmentSize) {
+        return new DataFrag(READER_ID, WRITER_ID, sn, null, payload, fragmentNum, count, fragmentSize);
+    }
+}
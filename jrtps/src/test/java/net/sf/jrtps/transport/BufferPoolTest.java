@@ -0,0 +1,37 @@
+package net.sf.jrtps.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testRecycle() {
+        BufferPool pool = new BufferPool(128, 1);
+
+        ReceiveBuffer b1 = pool.acquire();
+        b1.setLength(10);
+        b1.retain(); // e.g. a Sample referencing the buffer
+
+        b1.release();
+        assertEquals(0, pool.size()); // Still referenced
+
+        b1.release();
+        assertEquals(1, pool.size());
+
+        ReceiveBuffer b2 = pool.acquire();
+        assertSame(b1, b2);
+        assertEquals(128, b2.length());
+        assertEquals(0, pool.size());
+
+        ReceiveBuffer b3 = pool.acquire();
+        assertNotSame(b2, b3);
+
+        b2.release();
+        b3.release();
+        assertEquals(1, pool.size()); // maxPooled is 1
+    }
+}
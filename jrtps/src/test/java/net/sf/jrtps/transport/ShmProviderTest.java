@@ -0,0 +1,144 @@
+package net.sf.jrtps.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.message.InfoTimestamp;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.types.GuidPrefix;
+import net.sf.jrtps.types.Locator;
+
+import org.junit.Test;
+
+public class ShmProviderTest {
+    private static final int BURST = 2000; // A ring of 64 kB fits about 1200 of the small messages
+
+    @Test
+    public void testSendAndReceive() throws Exception {
+        File dir = Files.createTempDirectory("jrtps-shm").toFile();
+        Configuration cfg = new Configuration();
+        cfg.setProperty("jrtps.shm.directory", dir.getAbsolutePath());
+        cfg.setProperty("jrtps.shm.ring-size", "65536");
+
+        ShmProvider provider = new ShmProvider(cfg);
+        Locator locator = provider.createLocator(new URI("shm://localhost:7777"), 0, 0, false);
+        assertTrue(provider.isReachable(locator));
+        assertFalse(provider.isReachable(new ShmLocator(new ShmLocator(locator).getHostId() + 1, 7777)));
+
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>();
+        Receiver receiver = provider.getReceiver(locator, queue);
+        Thread t = new Thread(receiver);
+        t.start();
+
+        Transmitter tr = provider.getTransmitter(locator);
+        for (int i = 0; i < 3000; i++) { // Wraps around the ring
+            Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+            m.addSubMessage(new InfoTimestamp(i * 1000L));
+            assertFalse(tr.sendMessage(m));
+
+            ReceiveBuffer rb = queue.poll(5, TimeUnit.SECONDS);
+            assertNotNull(rb);
+
+            Message received = new Message(new RTPSByteBuffer(rb));
+            InfoTimestamp its = (InfoTimestamp) received.getSubMessages().get(0);
+            assertEquals(i * 1000L, its.getTimeStamp().timeMillis());
+            rb.release();
+        }
+
+        provider.close();
+        t.join(5000);
+        assertFalse(new File(dir, "jrtps-7777").exists());
+
+        new File(dir, "jrtps.host-id").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testTransmitterWaitsForReceiverToOpenRing() throws Exception {
+        File dir = Files.createTempDirectory("jrtps-shm").toFile();
+        final ShmTransmitter tr = new ShmTransmitter(new ShmLocator(1, 7778), dir, 65536, 16384);
+        final AtomicInteger sent = new AtomicInteger();
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BURST; i++) {
+                    Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+                    m.addSubMessage(new InfoTimestamp(i * 1000L));
+                    tr.sendMessage(m);
+                    sent.incrementAndGet();
+                }
+            }
+        });
+        sender.start();
+
+        // Ring gets full before receiver finds it. Sender must wait, instead of dropping messages.
+        int sentBeforeOpen;
+        long deadline = System.currentTimeMillis() + 2000;
+        do {
+            sentBeforeOpen = sent.get();
+            Thread.sleep(20);
+        } while (sentBeforeOpen != sent.get() && System.currentTimeMillis() < deadline);
+
+        assertEquals(sentBeforeOpen, sent.get()); // Sender is waiting
+        assertTrue(sentBeforeOpen < BURST);
+
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        ShmRing ring = ShmRing.open(files[0]);
+
+        // Messages written before the open are all received in order
+        BufferPool pool = new BufferPool(16384, 4);
+        for (int i = 0; i < sentBeforeOpen; i++) {
+            ReceiveBuffer rb;
+            while ((rb = ring.read(pool)) == null) {
+                Thread.yield();
+            }
+
+            InfoTimestamp its = (InfoTimestamp) new Message(new RTPSByteBuffer(rb)).getSubMessages().get(0);
+            assertEquals(i * 1000L, its.getTimeStamp().timeMillis());
+            rb.release();
+        }
+
+        sender.interrupt();
+        sender.join(5000);
+        tr.close();
+        dir.delete();
+    }
+
+    @Test
+    public void testMessagesToStaleReceiverAreDroppedWithoutWaiting() throws Exception {
+        File dir = Files.createTempDirectory("jrtps-shm").toFile();
+        ShmTransmitter tr = new ShmTransmitter(new ShmLocator(1, 7779), dir, 65536, 16384);
+        Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+        m.addSubMessage(new InfoTimestamp(1000L));
+        tr.sendMessage(m);
+
+        // Receiver opens the ring, and then dies without reading or closing it
+        ShmRing.open(dir.listFiles()[0]);
+        for (int i = 0; i < BURST; i++) {
+            tr.sendMessage(m);
+        }
+        Thread.sleep(ShmTransmitter.CONSUMER_TIMEOUT + 100);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BURST; i++) { // Each one would wait for 1 ms, if receiver was alive
+            tr.sendMessage(m);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(BURST / 4));
+
+        tr.close();
+        dir.delete();
+    }
+}
@@ -0,0 +1,83 @@
+package net.sf.jrtps.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.message.InfoTimestamp;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.types.GuidPrefix;
+import net.sf.jrtps.types.Locator;
+
+import org.junit.Test;
+
+public class UDPSelectorTest {
+
+    @Test
+    public void testReceiveFromManyLocators() throws Exception {
+        Configuration cfg = new Configuration();
+        cfg.setProperty("jrtps.udp.selector-threads", "1");
+        UDPProvider provider = new UDPProvider(cfg, 0);
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>();
+
+        Locator[] locators = new Locator[3];
+        for (int i = 0; i < locators.length; i++) {
+            locators[i] = provider.createLocator(new URI("udp://127.0.0.1:" + (17500 + i)), 0, 0, false);
+            provider.getReceiver(locators[i], queue).run(); // Returns after registering
+        }
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < locators.length; i++) {
+                Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+                m.addSubMessage(new InfoTimestamp(round * 1000L + i));
+                provider.getTransmitter(locators[i]).sendMessage(m);
+            }
+        }
+
+        long sum = 0;
+        for (int i = 0; i < 10 * locators.length; i++) {
+            ReceiveBuffer rb = queue.poll(5, TimeUnit.SECONDS);
+            assertNotNull(rb);
+
+            Message received = new Message(new RTPSByteBuffer(rb));
+            sum += ((InfoTimestamp) received.getSubMessages().get(0)).getTimeStamp().timeMillis();
+            rb.release();
+        }
+        assertEquals(45 * 1000L * locators.length + 10 * 3, sum);
+
+        provider.close();
+    }
+
+    @Test
+    public void testBuffersAreReturnedToPoolWhenChannelIsClosed() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4);
+        BlockingQueue<ReceiveBuffer> queue = new LinkedBlockingQueue<>();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        UDPSelector.getInstance(1).register(channel, queue, pool);
+
+        DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap(new byte[16]), channel.getLocalAddress());
+        ReceiveBuffer rb = queue.poll(5, TimeUnit.SECONDS);
+        assertNotNull(rb);
+        assertEquals(16, rb.length());
+
+        channel.close();
+        sender.close();
+        rb.release();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, pool.size()); // Received buffer, and the one read into after it
+    }
+}
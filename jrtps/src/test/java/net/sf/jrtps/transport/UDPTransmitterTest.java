@@ -0,0 +1,93 @@
+package net.sf.jrtps.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.jrtps.Configuration;
+import net.sf.jrtps.message.Heartbeat;
+import net.sf.jrtps.message.InfoDestination;
+import net.sf.jrtps.message.InfoTimestamp;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.message.SubMessage;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.GuidPrefix;
+
+import org.junit.Test;
+
+public class UDPTransmitterTest {
+
+    @Test
+    public void testSend() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+
+        UDPProvider provider = new UDPProvider(new Configuration(), 0);
+        Transmitter tr = provider.getTransmitter(provider.createLocator(new URI("udp://127.0.0.1:" + port), 0, 0, false));
+
+        for (int i = 1; i <= 2; i++) { // Second message reuses the send buffer of this thread
+            Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+            m.addSubMessage(new InfoTimestamp(i * 1000L));
+            tr.sendMessage(m);
+
+            ByteBuffer bb = ByteBuffer.allocate(2048);
+            channel.receive(bb);
+            Message received = new Message(new RTPSByteBuffer(Arrays.copyOf(bb.array(), bb.position())));
+            assertEquals(1, received.getSubMessages().size());
+            assertEquals(i * 1000L, ((InfoTimestamp) received.getSubMessages().get(0)).getTimeStamp().timeMillis());
+        }
+
+        provider.close();
+        channel.close();
+    }
+
+    @Test
+    public void testCombinedDatagram() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+
+        Configuration cfg = new Configuration();
+        cfg.setProperty("jrtps.udp.flush-window", "10000000"); // Only explicit flush
+        UDPProvider provider = new UDPProvider(cfg, 0);
+        Transmitter tr = provider.getTransmitter(provider.createLocator(new URI("udp://127.0.0.1:" + port), 0, 0, false));
+
+        for (int i = 1; i <= 3; i++) {
+            Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+            m.addSubMessage(new InfoTimestamp(i * 1000L));
+            m.addSubMessage(new Heartbeat(EntityId.UNKNOWN_ENTITY, EntityId.UNKNOWN_ENTITY, 1, i, i));
+            tr.sendMessage(m);
+        }
+        provider.flush();
+
+        ByteBuffer bb = ByteBuffer.allocate(2048);
+        channel.receive(bb);
+        bb.flip();
+
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        Message received = new Message(new RTPSByteBuffer(bytes));
+        List<SubMessage> subMessages = received.getSubMessages();
+        assertEquals(2 + 2 * 4, subMessages.size());
+
+        for (int i = 1; i <= 3; i++) {
+            int idx = (i - 1) * 4;
+            if (i > 1) {
+                assertTrue(subMessages.get(idx - 2) instanceof InfoDestination);
+                assertTrue(((InfoTimestamp) subMessages.get(idx - 1)).invalidateFlag());
+            }
+            assertEquals(i * 1000L, ((InfoTimestamp) subMessages.get(idx)).getTimeStamp().timeMillis());
+            assertEquals(i, ((Heartbeat) subMessages.get(idx + 1)).getLastSequenceNumber());
+        }
+
+        provider.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,110 @@
+package net.sf.jrtps.udds;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.parameter.KeyHash;
+import net.sf.jrtps.message.parameter.QosDurabilityService;
+import net.sf.jrtps.message.parameter.QosHistory;
+import net.sf.jrtps.rtps.ChangeKind;
+import net.sf.jrtps.rtps.Sample;
+import net.sf.jrtps.types.Duration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurabilityJournalTest {
+    private static final QosDurabilityService KEEP_LAST_2 =
+            new QosDurabilityService(new Duration(0), QosHistory.Kind.KEEP_LAST, 2, -1, -1, -1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRetainAndRecover() throws IOException {
+        File dir = folder.newFolder("topic");
+        DurabilityJournal journal = DurabilityJournal.open(dir, KEEP_LAST_2, 256, false, false, null);
+
+        KeyHash a = new KeyHash(new byte[] { 1 });
+        KeyHash b = new KeyHash(new byte[] { 2 });
+        journal.append(sample(1, a, ChangeKind.WRITE));
+        journal.append(sample(2, a, ChangeKind.WRITE));
+        journal.append(sample(3, b, ChangeKind.WRITE));
+        journal.append(sample(4, a, ChangeKind.WRITE)); // Sample 1 is no longer retained
+        journal.append(sample(5, b, ChangeKind.DISPOSE)); // Only dispose of instance b is retained
+
+        assertSeqNums(journal.getSamplesSince(0, Long.MAX_VALUE, null), 2, 4, 5);
+        assertNull(journal.getSample(1, null));
+        assertEquals(3, dir.list().length - 1); // Segments of samples 1 and 3 are deleted, lock file is not
+        journal.close();
+
+        journal = DurabilityJournal.open(dir, KEEP_LAST_2, 256, false, false, null);
+        assertEquals(5, journal.getSeqNumMax());
+        LinkedList<Sample<Object>> samples = journal.getSamplesSince(2, Long.MAX_VALUE, null);
+        assertSeqNums(samples, 4); // Dispose has nothing to hide, when sample 3 is gone
+        assertEquals(a, samples.getFirst().getKey());
+        assertArrayEquals(payload(4), samples.getFirst().getDataEncapsulation().getSerializedPayload());
+        journal.close();
+
+        journal = DurabilityJournal.open(dir, KEEP_LAST_2, 256, false, true, null); // Cleared
+        assertEquals(0, journal.size());
+        assertEquals(0, journal.getSeqNumMax());
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File dir = folder.newFolder("keyed");
+        QosDurabilityService keepLast1 = 
+                new QosDurabilityService(new Duration(0), QosHistory.Kind.KEEP_LAST, 1, -1, -1, -1);
+        DurabilityJournal journal = DurabilityJournal.open(dir, keepLast1, 512, false, false, null); // 3 records/segment
+
+        KeyHash a = new KeyHash(new byte[] { 1 });
+        KeyHash b = new KeyHash(new byte[] { 2 });
+        KeyHash c = new KeyHash(new byte[] { 3 });
+        journal.append(sample(1, a, ChangeKind.WRITE)); // Keeps first segment alive
+        for (int i = 2; i <= 30; i++) {
+            journal.append(sample(i, i % 2 == 0 ? b : c, ChangeKind.WRITE));
+        }
+        journal.append(sample(31, c, ChangeKind.DISPOSE));
+        assertEquals(3, journal.getSegmentCount()); // first, the one with sample 30, and active one
+
+        journal.compact();
+        assertEquals(2, journal.getSegmentCount()); // snapshot and active
+        assertSeqNums(journal.getSamplesSince(0, Long.MAX_VALUE, null), 1, 30, 31);
+        journal.close();
+
+        journal = DurabilityJournal.open(dir, keepLast1, 512, false, false, null);
+        assertEquals(31, journal.getSeqNumMax());
+        assertSeqNums(journal.getSamplesSince(0, Long.MAX_VALUE, null), 1, 30); // Dispose hides nothing
+        assertEquals(a, journal.getSample(1, null).getKey());
+        assertArrayEquals(payload(30), journal.getSample(30, null).getDataEncapsulation().getSerializedPayload());
+        journal.close();
+    }
+
+    private Sample<Object> sample(long sn, KeyHash key, ChangeKind kind) {
+        return new Sample<Object>(null, null, sn, sn, sn, kind, key, DataEncapsulation.wrap(payload(sn)));
+    }
+
+    private byte[] payload(long sn) {
+        byte[] bytes = new byte[100]; // Each record gets a segment of its own
+        bytes[1] = 1; // CDR_LE
+        bytes[4] = (byte) sn;
+
+        return bytes;
+    }
+
+    private void assertSeqNums(LinkedList<Sample<Object>> samples, long... seqNums) {
+        assertEquals(seqNums.length, samples.size());
+        for (int i = 0; i < seqNums.length; i++) {
+            assertEquals(seqNums[i], samples.get(i).getSequenceNumber());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.sf.jrtps.udds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import net.sf.jrtps.OutOfResources;
+import net.sf.jrtps.QualityOfService;
+import net.sf.jrtps.message.parameter.QosHistory;
+import net.sf.jrtps.message.parameter.QosResourceLimits;
+import net.sf.jrtps.rtps.ChangeKind;
+import net.sf.jrtps.rtps.Sample;
+import net.sf.jrtps.util.Watchdog;
+
+import org.junit.Test;
+
+public class InstanceTest {
+    private final Watchdog watchdog = new Watchdog(new ScheduledThreadPoolExecutor(1));
+
+    @Test
+    public void testKeepLastEvictsOldest() {
+        QualityOfService qos = new QualityOfService();
+        qos.setPolicy(new QosHistory(QosHistory.Kind.KEEP_LAST, 3));
+        Instance<Object> inst = new Instance<>(null, qos, watchdog);
+        List<Sample<Object>> view = inst.getHistoryView();
+
+        Sample<Object>[] samples = samples(5);
+        assertNull(inst.addSample(samples[0], false));
+        assertNull(inst.addSample(samples[1], false));
+        assertNull(inst.addSample(samples[2], false));
+        assertSame(samples[0], inst.addSample(samples[3], false));
+        assertSame(samples[1], inst.addSample(samples[4], false));
+        assertHistory(view, samples[4], samples[3], samples[2]);
+
+        inst.removeSample(samples[3]);
+        assertHistory(inst.getHistory(), samples[4], samples[2]);
+        assertHistory(view, samples[4], samples[2]);
+        assertSame(samples[4], inst.getLatest());
+        assertEquals(4, inst.getLatestTimestamp());
+    }
+
+    @Test
+    public void testKeepAllGrowsUpToMaxSamplesPerInstance() {
+        QualityOfService qos = new QualityOfService();
+        qos.setPolicy(new QosHistory(QosHistory.Kind.KEEP_ALL, 1));
+        qos.setPolicy(new QosResourceLimits(100, -1, 10));
+        Instance<Object> inst = new Instance<>(null, qos, watchdog);
+
+        Sample<Object>[] samples = samples(11);
+        for (int i = 0; i < 10; i++) {
+            assertNull(inst.addSample(samples[i], false));
+        }
+        assertEquals(10, inst.getHistorySize());
+        assertSame(samples[9], inst.getHistory().get(0));
+        assertSame(samples[0], inst.getHistory().get(9));
+
+        try {
+            inst.addSample(samples[10], false);
+            throw new AssertionError("Expected OutOfResources");
+        } catch (OutOfResources e) {
+            assertEquals(OutOfResources.Kind.MAX_SAMPLES_PER_INSTANCE_EXCEEDED, e.getKind());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Sample<Object>[] samples(int count) {
+        Sample<Object>[] samples = new Sample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new Sample<Object>(null, null, i + 1, i, i, ChangeKind.WRITE, null, null);
+        }
+
+        return samples;
+    }
+
+    private void assertHistory(List<Sample<Object>> history, Sample<?>... expected) {
+        assertEquals(expected.length, history.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], history.get(i));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.sf.jrtps.udds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedList;
+
+import net.sf.jrtps.rtps.Sample;
+
+import org.junit.Test;
+
+public class SampleRingTest {
+
+    @Test
+    public void testAddAndRemove() {
+        SampleRing<Object> ring = new SampleRing<>();
+        for (int i = 1; i <= 3000; i++) {
+            ring.add(new Sample<Object>(i));
+        }
+
+        assertEquals(3000, ring.size());
+        assertEquals(1, ring.getSeqNumMin());
+        assertEquals(3000, ring.getSeqNumMax());
+        assertEquals(1500, ring.get(1500).getSequenceNumber());
+
+        // Remove two first segments worth of samples
+        for (int i = 1; i <= 2048; i++) {
+            ring.remove(new Sample<Object>(i));
+        }
+
+        assertEquals(952, ring.size());
+        assertEquals(2049, ring.getSeqNumMin());
+        assertNull(ring.get(1500));
+
+        ring.remove(new Sample<Object>(3000));
+        assertEquals(2999, ring.getSeqNumMax());
+    }
+
+    @Test
+    public void testGetSamplesSince() {
+        SampleRing<Object> ring = new SampleRing<>();
+        ring.add(new Sample<Object>(5));
+        ring.add(new Sample<Object>(10000));
+        ring.add(new Sample<Object>(10002));
+        ring.add(new Sample<Object>(2)); // Before the first segment
+
+        LinkedList<Sample<Object>> samples = ring.getSamplesSince(4);
+        assertEquals(3, samples.size());
+        assertEquals(5, samples.getFirst().getSequenceNumber());
+        assertEquals(10002, samples.getLast().getSequenceNumber());
+
+        assertEquals(4, ring.getSamplesSince(0).size());
+        assertEquals(0, ring.getSamplesSince(10002).size());
+
+        ring.remove(new Sample<Object>(10000));
+        ring.remove(new Sample<Object>(10002));
+        assertEquals(5, ring.getSeqNumMax());
+    }
+
+    @Test
+    public void testGetSampleAfter() {
+        SampleRing<Object> ring = new SampleRing<>();
+        ring.add(new Sample<Object>(2));
+        ring.add(new Sample<Object>(5));
+        ring.add(new Sample<Object>(10000));
+
+        assertEquals(2, ring.getSampleAfter(0).getSequenceNumber());
+        assertEquals(5, ring.getSampleAfter(2).getSequenceNumber());
+        assertEquals(10000, ring.getSampleAfter(5).getSequenceNumber()); // Skips empty segments
+        assertNull(ring.getSampleAfter(10000));
+    }
+}
@@ -0,0 +1,163 @@
+package net.sf.jrtps.udds;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.jrtps.Marshaller;
+import net.sf.jrtps.OutOfResources;
+import net.sf.jrtps.QualityOfService;
+import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.parameter.QosHistory;
+import net.sf.jrtps.message.parameter.QosResourceLimits;
+import net.sf.jrtps.util.Watchdog;
+
+import org.junit.Test;
+
+public class UDDSHistoryCacheTest {
+    private static final int THREADS = 12;
+    private static final int INSTANCES_PER_THREAD = 10;
+    private static final int WRITES = 2000;
+
+    @Test
+    public void testConcurrentWritersOfDisjointInstances() throws Exception {
+        QualityOfService qos = new QualityOfService();
+        qos.setPolicy(new QosHistory(QosHistory.Kind.KEEP_LAST, 2));
+        final UDDSWriterCache<int[]> cache =
+                new UDDSWriterCache<>(null, new IntArrayMarshaller(), qos, new Watchdog(new ScheduledThreadPoolExecutor(1)));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int w = 0; w < WRITES; w++) {
+                            int instance = thread * INSTANCES_PER_THREAD + w % INSTANCES_PER_THREAD;
+                            cache.write(new int[] { instance, w }, System.currentTimeMillis());
+                            if (w % 100 == 49) { // Instance is written again after dispose
+                                cache.dispose(new int[] { instance, w }, System.currentTimeMillis());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        assertEquals(null, failure.get());
+        assertEquals(THREADS * INSTANCES_PER_THREAD, cache.getInstances().size());
+        for (Instance<int[]> inst : cache.getInstances()) {
+            assertEquals(2, inst.getHistory().size());
+        }
+    }
+
+    @Test
+    public void testMaxSamplesIsNotExceededByConcurrentWriters() throws Exception {
+        QualityOfService qos = new QualityOfService();
+        qos.setPolicy(new QosResourceLimits(100, -1, -1));
+        qos.setPolicy(new QosHistory(QosHistory.Kind.KEEP_LAST, 2));
+        final UDDSWriterCache<int[]> cache =
+                new UDDSWriterCache<>(null, new IntArrayMarshaller(), qos, new Watchdog(new ScheduledThreadPoolExecutor(1)));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int w = 0; w < WRITES; w++) { // Every write is a new instance
+                            try {
+                                cache.write(new int[] { thread * WRITES + w, w }, System.currentTimeMillis());
+                            } catch (OutOfResources oor) {
+                                // expected, once max_samples is reached
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        assertEquals(null, failure.get());
+        assertEquals(100, cache.samples.size());
+    }
+
+    @Test
+    public void testSeqNumMaxDoesNotPassSampleInProgress() throws Exception {
+        final CountDownLatch keyExtracted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final UDDSWriterCache<int[]> cache = new UDDSWriterCache<>(null, new IntArrayMarshaller() {
+            @Override
+            public byte[] extractKey(int[] data) {
+                if (data[1] < 0) { // Holds the writer before the sample is added
+                    keyExtracted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.extractKey(data);
+            }
+        }, new QualityOfService(), new Watchdog(new ScheduledThreadPoolExecutor(1)));
+
+        Thread t = new Thread() {
+            public void run() {
+                cache.write(new int[] { 1, -1 }, System.currentTimeMillis()); // #1
+            }
+        };
+        t.start();
+        keyExtracted.await();
+
+        cache.write(new int[] { 2, 0 }, System.currentTimeMillis()); // #2 is added before #1
+        assertEquals(0, cache.getSeqNumMax());
+
+        release.countDown();
+        t.join();
+        assertEquals(2, cache.getSeqNumMax());
+    }
+
+    private static class IntArrayMarshaller implements Marshaller<int[]> {
+        @Override
+        public boolean hasKey() {
+            return true;
+        }
+
+        @Override
+        public byte[] extractKey(int[] data) {
+            return new byte[] { (byte) (data[0] >> 8), (byte) data[0] };
+        }
+
+        @Override
+        public int[] unmarshall(DataEncapsulation dEnc) throws IOException {
+            return null;
+        }
+
+        @Override
+        public DataEncapsulation marshall(int[] data) throws IOException {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.sf.jrtps.udds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import net.sf.jrtps.Marshaller;
+import net.sf.jrtps.QualityOfService;
+import net.sf.jrtps.message.CDREncapsulation;
+import net.sf.jrtps.message.Data;
+import net.sf.jrtps.message.DataEncapsulation;
+import net.sf.jrtps.message.Message;
+import net.sf.jrtps.transport.BufferPool;
+import net.sf.jrtps.transport.RTPSByteBuffer;
+import net.sf.jrtps.transport.ReceiveBuffer;
+import net.sf.jrtps.types.EntityId;
+import net.sf.jrtps.types.Guid;
+import net.sf.jrtps.types.GuidPrefix;
+import net.sf.jrtps.util.Watchdog;
+
+import org.junit.Test;
+
+public class UDDSReaderCacheTest {
+    private static final EntityId WRITER_ID = new EntityId.UserDefinedEntityId(new byte[] { 0, 0, 1 }, 0x02);
+
+    @Test
+    public void testSampleInHistoryDoesNotHoldReceiveBuffer() throws Exception {
+        byte[] bytes = toBytes(42);
+        BufferPool pool = new BufferPool(bytes.length, 1);
+        ReceiveBuffer buffer = pool.acquire();
+        System.arraycopy(bytes, 0, buffer.array(), 0, bytes.length);
+
+        UDDSReaderCache<Integer> cache = new UDDSReaderCache<>(null, new IntMarshaller(), new QualityOfService(),
+                new Watchdog(new ScheduledThreadPoolExecutor(1)));
+        Message m = new Message(new RTPSByteBuffer(buffer));
+        cache.changesBegin(1);
+        cache.addChange(1, new Guid(GuidPrefix.GUIDPREFIX_UNKNOWN, WRITER_ID), (Data) m.getSubMessages().get(0), null);
+        cache.changesEnd(1);
+        buffer.release(); // Message is handled
+
+        // Buffer is back in the pool, and it is overwritten by the next message
+        assertSame(buffer, pool.acquire());
+        Arrays.fill(buffer.array(), (byte) 0);
+
+        Instance<Integer> inst = cache.getInstances().iterator().next();
+        assertEquals(42, (int) inst.getHistory().get(0).getData());
+    }
+
+    private byte[] toBytes(int value) {
+        CDREncapsulation payload = new CDREncapsulation(8);
+        payload.getBuffer().write_long(value);
+        Message m = new Message(GuidPrefix.GUIDPREFIX_UNKNOWN);
+        m.addSubMessage(new Data(EntityId.UNKNOWN_ENTITY, WRITER_ID, 1, null, payload));
+
+        RTPSByteBuffer bb = new RTPSByteBuffer(ByteBuffer.allocate(1024));
+        m.writeTo(bb);
+
+        return Arrays.copyOf(bb.getBuffer().array(), bb.position());
+    }
+
+    private static class IntMarshaller implements Marshaller<Integer> {
+        @Override
+        public boolean hasKey() {
+            return false;
+        }
+
+        @Override
+        public byte[] extractKey(Integer data) {
+            return null;
+        }
+
+        @Override
+        public Integer unmarshall(DataEncapsulation dEnc) throws IOException {
+            return ((CDREncapsulation) dEnc).getBuffer().read_long();
+        }
+
+        @Override
+        public DataEncapsulation marshall(Integer data) throws IOException {
+            return null;
+        }
+    }
+}
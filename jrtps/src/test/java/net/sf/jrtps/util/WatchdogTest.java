@@ -0,0 +1,73 @@
+package net.sf.jrtps.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jrtps.util.Watchdog.Listener;
+import net.sf.jrtps.util.Watchdog.Task;
+
+import org.junit.Test;
+
+public class WatchdogTest {
+
+    @Test
+    public void testTriggerResetAndCancel() throws InterruptedException {
+        ScheduledThreadPoolExecutor ses = new ScheduledThreadPoolExecutor(1);
+        Watchdog watchdog = new Watchdog(ses, 5);
+
+        final AtomicInteger triggered = new AtomicInteger();
+        Listener listener = new Listener() {
+            @Override
+            public void triggerTimeMissed() {
+                triggered.incrementAndGet();
+            }
+        };
+
+        Task expiring = watchdog.addTask(50, listener);
+        Task reset = watchdog.addTask(100, listener);
+        Task canceled = watchdog.addTask(50, listener);
+        canceled.cancel();
+
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(40);
+            reset.reset(); // Never let the trigger time elapse
+        }
+        assertEquals(1, triggered.get()); // Only the first task
+
+        expiring.reset(); // Expired task is watched again
+        Thread.sleep(150);
+        assertEquals(3, triggered.get()); // expiring and reset
+
+        ses.shutdown();
+    }
+
+    @Test
+    public void testTickIsStoppedWhenIdle() throws InterruptedException {
+        ScheduledThreadPoolExecutor ses = new ScheduledThreadPoolExecutor(1);
+        ses.setRemoveOnCancelPolicy(true);
+        Watchdog watchdog = new Watchdog(ses, 5);
+
+        final AtomicInteger triggered = new AtomicInteger();
+        Listener listener = new Listener() {
+            @Override
+            public void triggerTimeMissed() {
+                triggered.incrementAndGet();
+            }
+        };
+
+        watchdog.addTask(20, listener);
+        assertEquals(1, ses.getQueue().size());
+
+        Thread.sleep(100);
+        assertEquals(1, triggered.get());
+        assertEquals(0, ses.getQueue().size()); // Wheel is empty, no more ticks
+
+        watchdog.addTask(20, listener); // Restarts the tick
+        Thread.sleep(100);
+        assertEquals(2, triggered.get());
+
+        ses.shutdown();
+    }
+}